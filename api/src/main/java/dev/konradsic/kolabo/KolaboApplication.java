@@ -1,12 +1,17 @@
 package dev.konradsic.kolabo;
 
+import dev.konradsic.kolabo.config.ClusterProperties;
 import dev.konradsic.kolabo.config.CorsProperties;
+import dev.konradsic.kolabo.config.CrdtProperties;
+import dev.konradsic.kolabo.config.WsProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
-@EnableConfigurationProperties(CorsProperties.class)
+@EnableConfigurationProperties({CorsProperties.class, CrdtProperties.class, WsProperties.class, ClusterProperties.class})
+@EnableScheduling
 public class KolaboApplication {
 
     public static void main(String[] args) {
@@ -1,5 +1,6 @@
 package dev.konradsic.kolabo.api;
 
+import dev.konradsic.kolabo.crdt.AllocationStrategy;
 import dev.konradsic.kolabo.dao.DocumentMemberDao;
 import dev.konradsic.kolabo.dto.ApiResponse;
 import dev.konradsic.kolabo.dto.CreateDocumentRequest;
@@ -11,14 +12,21 @@ import dev.konradsic.kolabo.model.Document;
 import dev.konradsic.kolabo.model.DocumentMember;
 import dev.konradsic.kolabo.model.LinkAccessRole;
 import dev.konradsic.kolabo.model.User;
+import dev.konradsic.kolabo.service.CrdtOpService;
 import dev.konradsic.kolabo.service.DocumentMapper;
 import dev.konradsic.kolabo.service.DocumentMemberService;
 import dev.konradsic.kolabo.service.DocumentService;
 import dev.konradsic.kolabo.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpSession;
 import jakarta.validation.Valid;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -31,12 +39,14 @@ public class DocumentController {
     private final DocumentService documentService;
     private final DocumentMemberService documentMemberService;
     private final DocumentMemberDao documentMemberDao;
+    private final CrdtOpService crdtOpService;
 
-    public DocumentController(UserService userService, DocumentService documentService, DocumentMemberService documentMemberService, DocumentMemberDao documentMemberDao, DocumentMapper documentMapper) {
+    public DocumentController(UserService userService, DocumentService documentService, DocumentMemberService documentMemberService, DocumentMemberDao documentMemberDao, DocumentMapper documentMapper, CrdtOpService crdtOpService) {
         this.userService = userService;
         this.documentService = documentService;
         this.documentMemberService = documentMemberService;
         this.documentMemberDao = documentMemberDao;
+        this.crdtOpService = crdtOpService;
     }
 
     @PostMapping
@@ -55,6 +65,36 @@ public class DocumentController {
         ));
     }
 
+    // creates a document from a plain-text (UTF-8) body; the body is streamed straight into the CRDT
+    @PostMapping(value = "/import", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public ApiResponse<Object> importDocument(
+            @RequestParam(defaultValue = "Imported document") String title,
+            HttpServletRequest request,
+            HttpSession session
+    ) throws IOException {
+        UUID userId = (UUID) session.getAttribute("user");
+        if (userId == null) {
+            throw new UnauthorizedException("User not logged in");
+        }
+        User user = userService.findById(userId);
+        Document doc = documentService.createDocument(title, user);
+
+        int length;
+        try (Reader reader = new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8)) {
+            length = crdtOpService.importDocument(doc.getId(), reader);
+        } catch (IOException | RuntimeException e) {
+            documentService.deleteDocumentById(doc.getId());
+            throw e;
+        }
+
+        return new ApiResponse<>(true, Map.of(
+            "message", "Document imported successfully",
+            "title", title,
+            "documentId", doc.getId(),
+            "length", length
+        ));
+    }
+
     @GetMapping
     public ApiResponse<Object> getOwnedOrInvitedToDocuments(HttpSession session) {
         UUID userId = (UUID) session.getAttribute("user");
@@ -78,6 +118,56 @@ public class DocumentController {
         ));
     }
 
+    @GetMapping("/{id}/text")
+    public ApiResponse<Object> getText(
+            @PathVariable("id") UUID documentId,
+            @RequestParam(defaultValue = "0") int from,
+            @RequestParam(required = false) Integer to,
+            HttpSession session
+    ) {
+        UUID userId = (UUID) session.getAttribute("user");
+        if (userId == null) {
+            throw new UnauthorizedException("User not logged in");
+        }
+        documentService.getDocumentForUserOrThrow(documentId, userId);
+
+        String text = crdtOpService.getText(documentId, from, to != null ? to : Integer.MAX_VALUE);
+        return new ApiResponse<>(true, Map.of("from", Math.max(from, 0), "text", text));
+    }
+
+    @GetMapping("/{id}/identifier-depth")
+    public ApiResponse<Object> getIdentifierDepth(@PathVariable("id") UUID documentId, HttpSession session) {
+        UUID userId = (UUID) session.getAttribute("user");
+        if (userId == null) {
+            throw new UnauthorizedException("User not logged in");
+        }
+        documentService.getDocumentForUserOrThrow(documentId, userId);
+
+        return new ApiResponse<>(true, Map.of("histogram", crdtOpService.getDepthHistogram(documentId)));
+    }
+
+    @PutMapping("/{id}/allocation-strategy/{strategy}")
+    public ApiResponse<Object> updateAllocationStrategy(
+            @PathVariable("id") UUID documentId,
+            @PathVariable AllocationStrategy strategy,
+            HttpSession session
+    ) {
+        UUID loggedInUserId = (UUID) session.getAttribute("user");
+        if (loggedInUserId == null) {
+            throw new UnauthorizedException("User not logged in");
+        }
+        Document document = documentService.getDocumentById(documentId);
+        if (document == null) {
+            throw new NotFoundException("Document not found");
+        }
+        if (!document.getOwner().getId().equals(loggedInUserId)) {
+            throw new UnauthorizedException("You're not the owner of this document");
+        }
+
+        crdtOpService.setAllocationStrategy(documentId, strategy);
+        return new ApiResponse<>(true, Map.of("message", "Allocation strategy updated successfully", "strategy", strategy));
+    }
+
     @PutMapping("/{id}")
     public ApiResponse<DocumentContentDto> updateDocumentTitle(
             @PathVariable("id") UUID documentId,
@@ -0,0 +1,36 @@
+package dev.konradsic.kolabo.config;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@Configuration
+public class ClusterConfig {
+
+    // one thread, so messages of a channel reach the sessions in the order they were published
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService clusterRelayExecutor() {
+        return Executors.newSingleThreadExecutor(new CustomizableThreadFactory("cluster-relay-"));
+    }
+
+    // writes queued publishes as one pipelined batch per turn
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService clusterPublishExecutor() {
+        return Executors.newSingleThreadExecutor(new CustomizableThreadFactory("cluster-publish-"));
+    }
+
+    // subscribes lazily, a node without cluster relay or without open documents holds no channel
+    @Bean
+    public RedisMessageListenerContainer clusterListenerContainer(RedisConnectionFactory connectionFactory, @Qualifier("clusterRelayExecutor") ExecutorService relayExecutor) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setTaskExecutor(relayExecutor);
+        return container;
+    }
+}
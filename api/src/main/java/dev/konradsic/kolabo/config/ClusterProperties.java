@@ -0,0 +1,90 @@
+package dev.konradsic.kolabo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kolabo.cluster")
+public class ClusterProperties {
+
+    // relay ops and presence between nodes over redis pub/sub; off for a single node
+    private boolean enabled = false;
+    // prefix of the per-document channels, the document id is appended
+    private String channelPrefix = "kolabo:doc:";
+    // base url other nodes redirect clients to for documents this node owns, e.g. wss://node-1.example.com
+    private String advertisedUrl;
+    // how often a node renews its membership; a node silent for node-timeout is dropped from the ring
+    private Duration heartbeatInterval = Duration.ofSeconds(2);
+    private Duration nodeTimeout = Duration.ofSeconds(6);
+    // points per node on the ownership ring, more spread documents more evenly
+    private int ringReplicas = 128;
+    // how long a node that lost a document keeps answering catch-up requests for it
+    private Duration handoffGrace = Duration.ofSeconds(5);
+    // how long a node that just took a document up holds its first sessions' join replies for the
+    // other nodes' state, in case none answers
+    private Duration catchUpWait = Duration.ofSeconds(2);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getChannelPrefix() {
+        return channelPrefix;
+    }
+
+    public void setChannelPrefix(String channelPrefix) {
+        this.channelPrefix = channelPrefix;
+    }
+
+    public String getAdvertisedUrl() {
+        return advertisedUrl;
+    }
+
+    public void setAdvertisedUrl(String advertisedUrl) {
+        this.advertisedUrl = advertisedUrl;
+    }
+
+    public Duration getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public void setHeartbeatInterval(Duration heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public Duration getNodeTimeout() {
+        return nodeTimeout;
+    }
+
+    public void setNodeTimeout(Duration nodeTimeout) {
+        this.nodeTimeout = nodeTimeout;
+    }
+
+    public int getRingReplicas() {
+        return ringReplicas;
+    }
+
+    public void setRingReplicas(int ringReplicas) {
+        this.ringReplicas = ringReplicas;
+    }
+
+    public Duration getHandoffGrace() {
+        return handoffGrace;
+    }
+
+    public void setHandoffGrace(Duration handoffGrace) {
+        this.handoffGrace = handoffGrace;
+    }
+
+    public Duration getCatchUpWait() {
+        return catchUpWait;
+    }
+
+    public void setCatchUpWait(Duration catchUpWait) {
+        this.catchUpWait = catchUpWait;
+    }
+}
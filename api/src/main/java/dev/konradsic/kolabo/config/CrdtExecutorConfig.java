@@ -0,0 +1,57 @@
+package dev.konradsic.kolabo.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class CrdtExecutorConfig {
+
+    // shared by every document actor, one document never occupies more than one worker at a time
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService crdtExecutor(CrdtProperties properties) {
+        int threads = properties.getWorkerThreads() > 0
+            ? properties.getWorkerThreads()
+            : Runtime.getRuntime().availableProcessors();
+        return Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("crdt-worker-"));
+    }
+
+    // document loads (snapshot read and op log replay), so a burst of cold documents queues here
+    // instead of blocking the common pool
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService crdtLoadExecutor(CrdtProperties properties) {
+        return Executors.newFixedThreadPool(properties.getLoadThreads(), new CustomizableThreadFactory("crdt-loader-"));
+    }
+
+    // Op log writes, one task per batch. A full queue runs the write on the submitting actor, which
+    // slows that document down instead of piling up ops in memory while the database lags.
+    @Bean
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public ThreadPoolTaskExecutor crdtPersistExecutor(CrdtProperties properties) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("crdt-persist-");
+        executor.setCorePoolSize(properties.getPersistConcurrency());
+        executor.setMaxPoolSize(properties.getPersistConcurrency());
+        executor.setQueueCapacity(10_000);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    // one virtual thread per write; the limit blocks the submitting actor the same way a full queue does
+    @Bean("crdtPersistExecutor")
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public SimpleAsyncTaskExecutor crdtPersistExecutorVirtual(CrdtProperties properties) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("crdt-persist-");
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(properties.getPersistConcurrency());
+        return executor;
+    }
+}
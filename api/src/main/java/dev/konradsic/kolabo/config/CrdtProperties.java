@@ -0,0 +1,69 @@
+package dev.konradsic.kolabo.config;
+
+import dev.konradsic.kolabo.crdt.AllocationStrategy;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "kolabo.crdt")
+public class CrdtProperties {
+
+    // used for documents created from now on, existing snapshots keep their own
+    private AllocationStrategy allocationStrategy = AllocationStrategy.LSEQ;
+    // deflate binary snapshots before they go to redis
+    private boolean snapshotCompression = true;
+    // threads shared by all document actors, 0 means one per core
+    private int workerThreads = 0;
+    // threads loading documents into the cache
+    private int loadThreads = 4;
+    // op log writes in flight at once, keep it at or below the JDBC pool size
+    private int persistConcurrency = 8;
+    // heap budget of cached documents without connected clients; open documents are never evicted
+    private long cacheMaxBytes = 256L * 1024 * 1024;
+
+    public AllocationStrategy getAllocationStrategy() {
+        return allocationStrategy;
+    }
+
+    public void setAllocationStrategy(AllocationStrategy allocationStrategy) {
+        this.allocationStrategy = allocationStrategy;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getLoadThreads() {
+        return loadThreads;
+    }
+
+    public void setLoadThreads(int loadThreads) {
+        this.loadThreads = loadThreads;
+    }
+
+    public int getPersistConcurrency() {
+        return persistConcurrency;
+    }
+
+    public void setPersistConcurrency(int persistConcurrency) {
+        this.persistConcurrency = persistConcurrency;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    public boolean isSnapshotCompression() {
+        return snapshotCompression;
+    }
+
+    public void setSnapshotCompression(boolean snapshotCompression) {
+        this.snapshotCompression = snapshotCompression;
+    }
+}
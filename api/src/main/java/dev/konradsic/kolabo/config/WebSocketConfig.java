@@ -2,10 +2,12 @@ package dev.konradsic.kolabo.config;
 
 import dev.konradsic.kolabo.ws.DocumentWSComponent;
 import dev.konradsic.kolabo.ws.HttpSessionHandshakeInterceptor;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
 @Configuration
 @EnableWebSocket
@@ -13,10 +15,21 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     private final HttpSessionHandshakeInterceptor handshakeInterceptor;
     private final DocumentWSComponent documentWSComponent;
+    private final WsProperties wsProperties;
 
-    public WebSocketConfig(DocumentWSComponent documentWSComponent, HttpSessionHandshakeInterceptor handshakeInterceptor) {
+    public WebSocketConfig(DocumentWSComponent documentWSComponent, HttpSessionHandshakeInterceptor handshakeInterceptor, WsProperties wsProperties) {
         this.documentWSComponent = documentWSComponent;
         this.handshakeInterceptor = handshakeInterceptor;
+        this.wsProperties = wsProperties;
+    }
+
+    // the handler takes partial messages, so this only bounds a single fragment, not a whole paste
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(wsProperties.getTextBufferSize());
+        container.setMaxBinaryMessageBufferSize(wsProperties.getBinaryBufferSize());
+        return container;
     }
 
     @Override
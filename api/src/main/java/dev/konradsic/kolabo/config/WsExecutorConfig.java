@@ -0,0 +1,41 @@
+package dev.konradsic.kolabo.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+@Configuration
+public class WsExecutorConfig {
+
+    // drains the outbound queues of all sessions, one session never occupies more than one thread at a time
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public ExecutorService wsSendExecutor(WsProperties properties) {
+        int threads = properties.getSendThreads() > 0
+            ? properties.getSendThreads()
+            : 2 * Runtime.getRuntime().availableProcessors();
+        return Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("ws-send-"));
+    }
+
+    // a drain blocked on a slow client only parks its virtual thread, so there is no pool to size
+    @Bean("wsSendExecutor")
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public SimpleAsyncTaskExecutor wsSendExecutorVirtual() {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("ws-send-");
+        executor.setVirtualThreads(true);
+        return executor;
+    }
+
+    // closes op batching windows and runs caret ticks; both only encode and queue, so a couple of threads are plenty
+    @Bean(destroyMethod = "shutdown")
+    public ScheduledExecutorService wsBatchScheduler() {
+        return Executors.newScheduledThreadPool(2, new CustomizableThreadFactory("ws-batch-"));
+    }
+}
@@ -0,0 +1,141 @@
+package dev.konradsic.kolabo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kolabo.ws")
+public class WsProperties {
+
+    // container buffer for incoming text; larger messages arrive as several fragments
+    private int textBufferSize = 64 * 1024;
+    // same for binary ("kolabo.binary.v1") messages
+    private int binaryBufferSize = 64 * 1024;
+    // largest binary message reassembled from its fragments before it is decoded
+    private int binaryMessageLimit = 16 * 1024 * 1024;
+    // ops of a streamed array applied to the document per actor turn
+    private int ingestChunkOps = 1000;
+    // applied-but-unfinished chunks a sender may have before its socket stops being read
+    private int ingestMaxInflightChunks = 4;
+    // frames queued per session before carets are dropped, ops merged and finally the session closed
+    private int outboundQueueCapacity = 512;
+    // threads writing to sockets, 0 means two per core
+    private int sendThreads = 0;
+    // longest a single write may block on a client that stopped reading (Tomcat)
+    private Duration sendTimeout = Duration.ofSeconds(5);
+    // how long relayed ops of a document are collected into one frame per recipient; longer windows mean
+    // fewer frames but added latency, zero relays every op on its own
+    private Duration opBatchWindow = Duration.ofMillis(10);
+    // ops that close a window early
+    private int opBatchMaxOps = 256;
+    // carets are relayed at most once per interval per user, only the latest offset; zero relays each one
+    private Duration caretInterval = Duration.ofMillis(50);
+    // how often sessions that reported an outdated presence version get the full user list again; zero never
+    private Duration presenceResyncInterval = Duration.ofSeconds(30);
+    // how long a new session may take to send a sync as its first frame before it gets the whole document
+    private Duration joinSyncWait = Duration.ofSeconds(1);
+
+    public int getTextBufferSize() {
+        return textBufferSize;
+    }
+
+    public void setTextBufferSize(int textBufferSize) {
+        this.textBufferSize = textBufferSize;
+    }
+
+    public int getBinaryBufferSize() {
+        return binaryBufferSize;
+    }
+
+    public void setBinaryBufferSize(int binaryBufferSize) {
+        this.binaryBufferSize = binaryBufferSize;
+    }
+
+    public int getBinaryMessageLimit() {
+        return binaryMessageLimit;
+    }
+
+    public void setBinaryMessageLimit(int binaryMessageLimit) {
+        this.binaryMessageLimit = binaryMessageLimit;
+    }
+
+    public int getIngestChunkOps() {
+        return ingestChunkOps;
+    }
+
+    public void setIngestChunkOps(int ingestChunkOps) {
+        this.ingestChunkOps = ingestChunkOps;
+    }
+
+    public int getIngestMaxInflightChunks() {
+        return ingestMaxInflightChunks;
+    }
+
+    public void setIngestMaxInflightChunks(int ingestMaxInflightChunks) {
+        this.ingestMaxInflightChunks = ingestMaxInflightChunks;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    public int getSendThreads() {
+        return sendThreads;
+    }
+
+    public void setSendThreads(int sendThreads) {
+        this.sendThreads = sendThreads;
+    }
+
+    public Duration getSendTimeout() {
+        return sendTimeout;
+    }
+
+    public void setSendTimeout(Duration sendTimeout) {
+        this.sendTimeout = sendTimeout;
+    }
+
+    public Duration getOpBatchWindow() {
+        return opBatchWindow;
+    }
+
+    public void setOpBatchWindow(Duration opBatchWindow) {
+        this.opBatchWindow = opBatchWindow;
+    }
+
+    public int getOpBatchMaxOps() {
+        return opBatchMaxOps;
+    }
+
+    public void setOpBatchMaxOps(int opBatchMaxOps) {
+        this.opBatchMaxOps = opBatchMaxOps;
+    }
+
+    public Duration getCaretInterval() {
+        return caretInterval;
+    }
+
+    public void setCaretInterval(Duration caretInterval) {
+        this.caretInterval = caretInterval;
+    }
+
+    public Duration getPresenceResyncInterval() {
+        return presenceResyncInterval;
+    }
+
+    public void setPresenceResyncInterval(Duration presenceResyncInterval) {
+        this.presenceResyncInterval = presenceResyncInterval;
+    }
+
+    public Duration getJoinSyncWait() {
+        return joinSyncWait;
+    }
+
+    public void setJoinSyncWait(Duration joinSyncWait) {
+        this.joinSyncWait = joinSyncWait;
+    }
+}
@@ -0,0 +1,9 @@
+package dev.konradsic.kolabo.crdt;
+
+// How new positions are allocated between two neighbours, chosen per document.
+public enum AllocationStrategy {
+    // split the gap in half and append a digit after the last character (the original scheme)
+    MIDPOINT,
+    // LSEQ: boundary+/boundary- alternating per depth, base doubling per depth, flat appends
+    LSEQ
+}
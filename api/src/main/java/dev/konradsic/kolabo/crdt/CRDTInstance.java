@@ -1,48 +1,143 @@
 package dev.konradsic.kolabo.crdt;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.DeleteRangeOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+
+import java.io.IOException;
+import java.io.Reader;
 import java.util.*;
 
 
 // based on https://namvdo.ai/position-based-crdt-text-editor/
+// Characters are stored as runs (see CharacterBlock); a run splits when something is inserted
+// into it or part of it gets deleted.
 public class CRDTInstance {
 
     private Integer clock = 0;
-    private final Map<UUID, Character> characters = new HashMap<>();
+    // blocks by the id of their first character
+    private final NavigableMap<UUID, CharacterBlock> blocks = new TreeMap<>();
+    private final PositionIndex index = new PositionIndex();
+    // highest clock applied per site: insert clocks of every site plus our own delete stamps
+    private final VersionVector vector = new VersionVector();
+    // highest delete stamp whose tombstone may have been purged; replicas behind it need a full state
+    private int purgedThrough;
     private final Double BASE;
     private final String siteId;
     private double boundary = 10.0;
+    private AllocationStrategy strategy = AllocationStrategy.MIDPOINT;
+    private final SplittableRandom random = new SplittableRandom();
+    // flattened visible text, dropped whenever the visible text changes
+    private String cachedText;
 
     public CRDTInstance(Double base, String siteId) {
         this.BASE = base;
         this.siteId = siteId;
     }
 
-    private Integer incrementClock() {
-        return ++clock;
+    @JsonCreator
+    public static CRDTInstance fromSnapshot(
+        @JsonProperty("base") Double base,
+        @JsonProperty("siteId") String siteId,
+        @JsonProperty("clock") Integer clock,
+        @JsonProperty("boundary") Double boundary,
+        @JsonProperty("blocks") List<CharacterBlock> blocks,
+        @JsonProperty("characters") Map<UUID, Character> characters,
+        @JsonProperty("vector") VersionVector vector,
+        @JsonProperty("strategy") AllocationStrategy strategy,
+        @JsonProperty("purgedThrough") Integer purgedThrough
+    ) {
+        CRDTInstance crdt = new CRDTInstance(base != null ? base : 32.0, siteId);
+        if (clock != null) crdt.clock = clock;
+        if (boundary != null) crdt.boundary = boundary;
+        if (strategy != null) crdt.strategy = strategy;
+        // older snapshots did not record it, assume anything up to the clock may be gone
+        crdt.purgedThrough = purgedThrough != null ? purgedThrough : crdt.clock;
+        if (vector != null) crdt.vector.merge(vector);
+        if (blocks != null) blocks.forEach(crdt::add);
+        // snapshots written before blocks existed
+        if (characters != null) characters.values().forEach(crdt::integrate);
+        return crdt;
+    }
+
+    // Builds a document from plain text in one pass. The text becomes runs from this site laid out one
+    // unit apart at depth 1, so no identifier is allocated per character and every identifier is as
+    // shallow as it gets. A surrogate pair gets its own single-character block, as when it is typed.
+    public static CRDTInstance fromText(Double base, String siteId, AllocationStrategy strategy, Reader reader) throws IOException {
+        CRDTInstance crdt = new CRDTInstance(base, siteId);
+        crdt.strategy = strategy;
+
+        char[] buffer = new char[8192];
+        StringBuilder run = new StringBuilder();
+        int placed = 0;
+        char high = 0;
+        for (int n; (n = reader.read(buffer)) != -1; ) {
+            for (int i = 0; i < n; i++) {
+                char c = buffer[i];
+                if (high != 0 && java.lang.Character.isLowSurrogate(c)) {
+                    placed = crdt.importRun(placed, run);
+                    run = new StringBuilder();
+                    crdt.add(new CharacterBlock(crdt.importId(), new String(new char[]{high, c}), crdt.importPosition(placed), false));
+                    placed++;
+                    high = 0;
+                    continue;
+                }
+                if (high != 0) run.append(high);
+                high = 0;
+                if (java.lang.Character.isHighSurrogate(c)) high = c;
+                else run.append(c);
+            }
+        }
+        if (high != 0) run.append(high);
+        placed = crdt.importRun(placed, run);
+
+        crdt.clock = placed;
+        if (placed > 0) crdt.vector.observe(siteId, placed);
+        return crdt;
+    }
+
+    private int importRun(int start, StringBuilder text) {
+        if (text.isEmpty()) return start;
+        text.trimToSize();
+        add(CharacterBlock.run(importId(), text, importPosition(start)));
+        return start + text.length();
     }
 
-    private int comparePositions(Position pos1, Position pos2) {
-        int len = Math.min(pos1.getIndex().size(), pos2.getIndex().size());
+    // k-th imported character: one unit after the previous one, clocks counting from 1
+    private Position importPosition(int k) {
+        return new Position(new long[]{Position.toFixed(BASE) + (long) k * Position.UNIT}, siteId, k + 1);
+    }
 
-        for (int i=0; i<len; i++)
-            if (!Objects.equals(pos1.getIndex().get(i), pos2.getIndex().get(i)))
-                return Double.compare(pos1.getIndex().get(i), pos2.getIndex().get(i));
+    // runs count their ids up from lsb 0 so even the longest import cannot overflow them
+    private UUID importId() {
+        return new UUID(random.nextLong(), 0);
+    }
 
-        if (pos1.getIndex().size() != pos2.getIndex().size())
-            return Integer.compare(pos1.getIndex().size(), pos2.getIndex().size());
+    private Integer incrementClock() {
+        return ++clock;
+    }
 
-        if (!Objects.equals(pos1.getSiteId(), pos2.getSiteId()))
-            return pos1.getSiteId().compareTo(pos2.getSiteId());
+    // blocks in document order, tombstones included
+    public List<CharacterBlock> getBlocks() {
+        List<CharacterBlock> ordered = new ArrayList<>(index.blockCount());
+        index.forEach(ordered::add);
+        return ordered;
+    }
 
-        return Integer.compare(pos1.getClock(), pos2.getClock());
+    public VersionVector getVector() {
+        return vector;
     }
 
-    private int compareCharacterPositions(Character c1, Character c2) {
-        return comparePositions(c1.getPosition(), c2.getPosition());
+    public Double getBase() {
+        return BASE;
     }
 
-    public Map<UUID, Character> getCharacters() {
-        return characters;
+    public Integer getClock() {
+        return clock;
     }
 
     public String getSiteId() {
@@ -57,100 +152,623 @@ public class CRDTInstance {
         this.boundary = boundary;
     }
 
-    private List<Double> generatePositionBefore(List<Double> index) {
-        if (index.get(0) <= boundary) return List.of(index.get(0) - 1);
-        return List.of(index.get(0) - boundary);
+    public int getPurgedThrough() {
+        return purgedThrough;
+    }
+
+    public AllocationStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(AllocationStrategy strategy) {
+        this.strategy = strategy;
     }
 
-    private List<Double> generatePositionAfter(List<Double> index) {
-        List<Double> newIndex = new ArrayList<>(index);
-        newIndex.add(BASE);
+    private long[] generatePositionBefore(long[] index) {
+        long boundary = Position.toFixed(this.boundary);
+        if (index[0] <= boundary) return new long[]{index[0] - Position.UNIT};
+        return new long[]{index[0] - boundary};
+    }
+
+    private long[] generatePositionAfter(long[] index) {
+        long[] newIndex = Arrays.copyOf(index, index.length + 1);
+        newIndex[index.length] = Position.toFixed(BASE);
         return newIndex;
     }
 
-    public Position generatePositionBetween(Position prev, Position next, List<Double> newPos) {
-        if (prev == null && next == null) return new Position(List.of(BASE), siteId, incrementClock());
+    public Position generatePositionBetween(Position prev, Position next) {
+        return strategy == AllocationStrategy.LSEQ ? allocateLseq(prev, next) : allocateMidpoint(prev, next);
+    }
+
+    private Position allocateMidpoint(Position prev, Position next) {
+        long base = Position.toFixed(BASE);
+        if (prev == null && next == null) return new Position(new long[]{base}, siteId, incrementClock());
 
         if (prev == null) {
             return new Position(
-                generatePositionBefore(next.getIndex()),
+                generatePositionBefore(next.digits()),
                 siteId,
                 incrementClock()
             );
         }
         if (next == null) {
             return new Position(
-                generatePositionAfter(prev.getIndex()),
+                generatePositionAfter(prev.digits()),
                 siteId,
                 incrementClock()
             );
         }
 
-        List<Double> prevIdx = prev.getIndex();
-        List<Double> nextIdx = next.getIndex();
+        long[] prevIdx = prev.digits();
+        long[] nextIdx = next.digits();
+        long[] newPos = new long[prevIdx.length + nextIdx.length + 1];
+        int len = 0;
+        int p = 0;
+        int n = 0;
+
+        while (true) {
+            // Find a common prefix
+            while (p < prevIdx.length && n < nextIdx.length && prevIdx[p] == nextIdx[n]) {
+                newPos[len++] = prevIdx[p];
+                p++;
+                n++;
+            }
 
-        // Find a common prefix
-        int i = 0;
-        while (i < prevIdx.size() && i < nextIdx.size()) {
-            if (!Objects.equals(prevIdx.get(i), nextIdx.get(i))) break;
+            long prevDigit = (p < prevIdx.length) ? prevIdx[p] : 0;
+            long nextDigit = (n < nextIdx.length) ? nextIdx[n] : base;
+            long diff = nextDigit - prevDigit;
 
-            newPos.add(prevIdx.get(i));
-            i++;
+            if (diff >= 2 * Position.UNIT) {
+                newPos[len++] = prevDigit + Math.floorDiv(diff, 2 * Position.UNIT) * Position.UNIT;
+                return new Position(Arrays.copyOf(newPos, len), siteId, incrementClock());
+            }
+
+            // descend into the remaining digits, same as the web client
+            newPos[len++] = prevDigit;
+            p = Math.min(p + 1, prevIdx.length);
+            n = Math.min(n + 1, nextIdx.length);
         }
+    }
 
-        Double prevDigit = (i < prevIdx.size()) ? prevIdx.get(i) : 0;
-        Double nextDigit = (i < nextIdx.size()) ? nextIdx.get(i) : BASE;
-        double diff = nextDigit - prevDigit;
+    // doubles per depth up to a cap, so deeper levels offer more room without overflowing the digits
+    private long levelBase(int depth) {
+        return Position.toFixed(BASE) << Math.min(depth, 20);
+    }
 
-        if (diff > 1) {
-            newPos.add(prevDigit + Math.floor(diff / 2));
-            return new Position(newPos, siteId, incrementClock());
-        } else {
-            newPos.add(prevDigit);
-            return generatePositionBetween(
-                new Position(prevIdx.subList(0,i+1), prev.siteId, prev.clock),
-                new Position(nextIdx.subList(0,i+1), next.siteId, next.clock),
-                newPos
-            );
+    private Position allocateLseq(Position prev, Position next) {
+        long unit = Position.UNIT;
+        long step = Math.max(1, Position.toFixed(boundary) / unit);
+        if (prev == null && next == null) return new Position(new long[]{Position.toFixed(BASE)}, siteId, incrementClock());
+
+        long[] p = prev != null ? prev.digits() : null;
+        long[] q = next != null ? next.digits() : null;
+        // appending at the end of the document never has to go deeper than the first digit
+        if (q == null) {
+            return new Position(new long[]{p[0] + (1 + random.nextLong(step)) * unit}, siteId, incrementClock());
+        }
+
+        long[] out = new long[(p != null ? p.length : 0) + q.length + 1];
+        boolean boundedBelow = p != null;
+        boolean boundedAbove = true;
+        for (int d = 0; ; d++) {
+            // both bounds are exclusive
+            long lower = boundedBelow && d < p.length ? p[d] : 0;
+            long upper = boundedAbove && d < q.length ? q[d] : levelBase(d);
+
+            if (upper - lower >= 2 * unit) {
+                long offset = (1 + random.nextLong(Math.min(step, (upper - lower) / unit - 1))) * unit;
+                out[d] = d % 2 == 0 ? lower + offset : upper - offset;
+                return new Position(Arrays.copyOf(out, d + 1), siteId, incrementClock());
+            }
+
+            // no room at this depth: follow the lower neighbour, or step just below the upper one
+            if (boundedBelow && d < p.length) {
+                out[d] = p[d];
+                boundedAbove = boundedAbove && d < q.length && q[d] == p[d];
+            } else {
+                out[d] = upper - unit;
+                boundedBelow = false;
+                boundedAbove = false;
+            }
         }
     }
 
+    // number of characters per identifier depth, index 0 is unused
+    public int[] depthHistogram() {
+        int[] histogram = new int[1];
+        for (CharacterBlock block : index) {
+            int depth = block.getPosition().depth();
+            if (depth >= histogram.length) histogram = Arrays.copyOf(histogram, depth + 1);
+            histogram[depth] += block.getLength();
+        }
+        return histogram;
+    }
+
     public Character insert(String value, UUID prevId, UUID nextId) {
-        Position pos = generatePositionBetween(
-            prevId != null ? characters.get(prevId).getPosition() : null,
-            nextId != null ? characters.get(nextId).getPosition() : null,
-            List.of()
-        );
+        CharacterBlock prevBlock = prevId != null ? blockOf(prevId) : null;
+        Position prevPos = prevBlock != null ? prevBlock.positionAt(prevBlock.offsetOf(prevId)) : null;
+        Position nextPos = nextId != null ? positionOf(nextId) : null;
+
+        // typing right after our own run continues it instead of allocating a new identifier
+        if (prevBlock != null && canExtend(prevBlock, prevId, value, nextPos)) {
+            UUID id = prevBlock.idAt(prevBlock.getLength());
+            Position pos = prevBlock.positionAt(prevBlock.getLength());
+            clock = Math.max(clock, pos.getClock());
+            integrate(id, value, pos, false);
+            return new Character(id, value, pos, new CharacterMetadata());
+        }
 
+        Position pos = generatePositionBetween(prevPos, nextPos);
         Character character = new Character(value, pos);
-        characters.put(character.getId(), character);
+        integrate(character);
         return character;
     }
 
+    private boolean canExtend(CharacterBlock block, UUID prevId, String value, Position nextPos) {
+        int length = block.getLength();
+        if (block.isDeleted() || block.offsetOf(prevId) != length - 1) return false;
+        if (!block.getPosition().getSiteId().equals(siteId)) return false;
+        // only when nothing else took a clock since, so our clocks stay increasing for version vectors
+        if (block.getPosition().getClock() + length != clock + 1) return false;
+        UUID id = block.idAt(length);
+        if (!block.continuesWith(id, value, block.positionAt(length)) || blockOf(id) != null) return false;
+
+        // the derived digits must still fall strictly before everything that follows the run, tombstones
+        // included; a tie broken only by site would leave no room to insert between the two later
+        if (nextPos != null && block.compareDigitsAt(length, nextPos) >= 0) return false;
+        CharacterBlock successor = index.higher(block.getPosition());
+        return successor == null || block.compareDigitsAt(length, successor.getPosition()) < 0;
+    }
+
+    // adds a character (local or remote), extending the preceding run when it continues it
+    public boolean integrate(Character character) {
+        return integrate(character.getId(), character.getValue(), character.getPosition(), character.getMetadata().isDeleted());
+    }
+
+    private boolean integrate(UUID id, String value, Position position, boolean deleted) {
+        if (blockOf(id) != null) return false;
+
+        CharacterBlock prev = index.floor(position);
+        if (prev != null) {
+            int k = firstAfter(prev, position);
+            if (k < 0) return false; // position already taken
+            if (k < prev.getLength()) split(prev, k);
+
+            if (prev.isDeleted() == deleted && prev.continuesWith(id, value, position)) {
+                if (!deleted) cachedText = null;
+                prev.append(value);
+                index.refresh(prev.getPosition());
+                vector.observe(position.getSiteId(), position.getClock());
+                return true;
+            }
+        }
+        if (!deleted) cachedText = null;
+        add(new CharacterBlock(id, value, position, deleted));
+        vector.observe(position.getSiteId(), position.getClock());
+        return true;
+    }
+
+    public List<TextChange> apply(CrdtOp op) {
+        return applyBatch(List.of(op));
+    }
+
+    // Applies remote ops in one go: inserts and insert runs are sorted by position and grouped into
+    // runs so every run is one structural update, then deletes follow in document order and range
+    // deletes after them. The returned visible-range changes are coalesced where they touch.
+    public List<TextChange> applyBatch(List<CrdtOp> ops) {
+        List<CharacterBlock> pieces = new ArrayList<>();
+        List<UUID> deletes = new ArrayList<>();
+        List<DeleteRangeOp> ranges = new ArrayList<>();
+        for (CrdtOp op : ops) {
+            if (op instanceof InsertOp insertOp && insertOp.charId() != null && insertOp.position() != null && insertOp.value() != null) {
+                pieces.add(new CharacterBlock(insertOp.charId(), insertOp.value(), insertOp.position(), false));
+            } else if (op instanceof InsertRunOp runOp && isValidRun(runOp)) {
+                pieces.add(new CharacterBlock(runOp.charId(), runOp.text(), runOp.position(), runOp.text().length(), false, 0));
+            } else if (op instanceof DeleteOp deleteOp && deleteOp.charId() != null) {
+                deletes.add(deleteOp.charId());
+            } else if (op instanceof DeleteRangeOp rangeOp && rangeOp.startId() != null && rangeOp.endId() != null) {
+                ranges.add(rangeOp);
+            }
+        }
+
+        List<TextChange> changes = new ArrayList<>();
+        pieces.sort((a, b) -> a.getPosition().compareTo(b.getPosition()));
+        CharacterBlock run = null;
+        for (CharacterBlock piece : pieces) {
+            if (run != null && run.canAbsorb(piece)) {
+                run.absorb(piece);
+                continue;
+            }
+            if (run != null) integrateRun(run, changes);
+            run = piece;
+        }
+        if (run != null) integrateRun(run, changes);
+
+        Map<UUID, Position> deletePositions = new HashMap<>();
+        for (UUID id : deletes) {
+            Position pos = positionOf(id);
+            if (pos != null) deletePositions.put(id, pos);
+        }
+        List<UUID> orderedDeletes = new ArrayList<>(deletePositions.keySet());
+        orderedDeletes.sort((a, b) -> deletePositions.get(a).compareTo(deletePositions.get(b)));
+        for (UUID id : orderedDeletes) {
+            int visibleIndex = visibleIndexOf(id);
+            if (delete(id)) record(changes, TextChange.delete(visibleIndex, 1));
+        }
+        for (DeleteRangeOp range : ranges) deleteSpan(range.startId(), range.endId(), changes);
+        return changes;
+    }
+
+    // a run needs text and ids that stay inside one msb for its whole length
+    private static boolean isValidRun(InsertRunOp op) {
+        if (op.charId() == null || op.position() == null || op.text() == null || op.text().isEmpty()) return false;
+        long lsb = op.charId().getLeastSignificantBits();
+        return lsb + op.text().length() - 1 >= lsb;
+    }
+
+    // deletes every known, still visible character with an id in [startId, endId], one tombstone per
+    // block it touches
+    private void deleteSpan(UUID startId, UUID endId, List<TextChange> changes) {
+        long msb = startId.getMostSignificantBits();
+        long from = startId.getLeastSignificantBits();
+        long to = endId.getLeastSignificantBits();
+        if (endId.getMostSignificantBits() != msb || to < from) return;
+
+        CharacterBlock first = blockOf(startId);
+        UUID lowest = first != null ? first.getId() : startId;
+        List<CharacterBlock> touched = new ArrayList<>(blocks.subMap(lowest, true, endId, true).values());
+        for (CharacterBlock block : touched) {
+            if (block.isDeleted()) continue;
+            long start = block.getId().getLeastSignificantBits();
+            long a = Math.max(from, start);
+            long b = Math.min(to, start + block.getLength() - 1);
+            if (a > b) continue;
+
+            UUID id = new UUID(msb, a);
+            int count = (int) (b - a + 1);
+            int visibleIndex = visibleIndexOf(id);
+            if (deleteRun(id, count)) record(changes, TextChange.delete(visibleIndex, count));
+        }
+    }
+
+    // places a whole run with one index update when nothing already known falls inside its span,
+    // otherwise integrates it character by character
+    private void integrateRun(CharacterBlock run, List<TextChange> changes) {
+        if (run.getLength() > 1 && integrateBlock(run)) {
+            record(changes, TextChange.insert(visibleIndexOf(run.getId()), run.getText()));
+            return;
+        }
+        for (int k = 0; k < run.getLength(); k++) {
+            UUID id = run.idAt(k);
+            if (integrate(id, run.valueAt(k), run.positionAt(k), false)) {
+                record(changes, TextChange.insert(visibleIndexOf(id), run.valueAt(k)));
+            }
+        }
+    }
+
+    private boolean integrateBlock(CharacterBlock run) {
+        int length = run.getLength();
+        UUID lastId = run.idAt(length - 1);
+        Map.Entry<UUID, CharacterBlock> known = blocks.floorEntry(lastId);
+        if (known != null && (known.getValue().offsetOf(run.getId()) >= 0 || run.offsetOf(known.getKey()) >= 0)) return false;
+
+        Position last = run.positionAt(length - 1);
+        CharacterBlock prev = index.floor(run.getPosition());
+        if (prev != null) {
+            int k = firstAfter(prev, run.getPosition());
+            if (k < 0) return false;
+            if (k < prev.getLength()) {
+                if (prev.compareAt(k, last) <= 0) return false;
+                split(prev, k);
+            }
+        }
+        CharacterBlock next = index.higher(run.getPosition());
+        if (next != null && next.getPosition().compareTo(last) <= 0) return false;
+
+        if (!run.isDeleted()) cachedText = null;
+        if (prev != null && prev.canAbsorb(run)) {
+            prev.absorb(run);
+            index.refresh(prev.getPosition());
+        } else {
+            add(run);
+        }
+        vector.observe(last.getSiteId(), last.getClock());
+        return true;
+    }
+
+    private static void record(List<TextChange> changes, TextChange change) {
+        if (!changes.isEmpty()) {
+            TextChange last = changes.get(changes.size() - 1);
+            if (change.deleted() == 0 && last.deleted() == 0 && last.index() + last.inserted().length() == change.index()) {
+                changes.set(changes.size() - 1, TextChange.insert(last.index(), last.inserted() + change.inserted()));
+                return;
+            }
+            if (change.inserted().isEmpty() && last.inserted().isEmpty() && last.index() == change.index()) {
+                changes.set(changes.size() - 1, TextChange.delete(last.index(), last.deleted() + change.deleted()));
+                return;
+            }
+        }
+        changes.add(change);
+    }
+
+    public boolean delete(UUID charId) {
+        return deleteRun(charId, 1);
+    }
+
+    // deletes `count` characters of one block starting at charId under a single delete stamp
+    private boolean deleteRun(UUID charId, int count) {
+        CharacterBlock block = blockOf(charId);
+        if (block == null || block.isDeleted()) return false;
+
+        int k = block.offsetOf(charId);
+        CharacterBlock target = k > 0 ? split(block, k) : block;
+        if (target.getLength() > count) split(target, count);
+        int stamp = incrementClock();
+        cachedText = null;
+        target.markDeleted(stamp);
+        index.refresh(target.getPosition());
+        vector.observe(siteId, stamp);
+
+        // keep neighbouring tombstones of one run together
+        CharacterBlock before = index.lower(target.getPosition());
+        if (before != null && before.isDeleted() && before.canAbsorb(target)) {
+            absorb(before, target);
+            target = before;
+        }
+        CharacterBlock after = index.higher(target.getPosition());
+        if (after != null && after.isDeleted() && target.canAbsorb(after)) {
+            absorb(target, after);
+        }
+        return true;
+    }
+
     public void merge(CRDTInstance other) {
-        // iterate over [id, char] of other.characters and merge
-        for (Map.Entry<UUID, Character> entry : other.getCharacters().entrySet()) {
-            if (!characters.containsKey(entry.getKey())) {
-                characters.put(entry.getKey(), entry.getValue());
-            } else {
-                Character existing = characters.get(entry.getKey());
-                if (comparePositions(entry.getValue().getPosition(), existing.getPosition()) > 0) {
-                    characters.put(entry.getKey(), entry.getValue());
+        for (CharacterBlock block : other.index) {
+            for (int k = 0; k < block.getLength(); k++) {
+                UUID id = block.idAt(k);
+                if (blockOf(id) == null) {
+                    integrate(id, block.valueAt(k), block.positionAt(k), block.isDeleted());
+                } else if (block.isDeleted()) {
+                    delete(id);
+                }
+            }
+        }
+    }
+
+    // Brings this replica up to another one's whole state, tombstones included: characters it lacks are
+    // added (tombstones too, so a late insert cannot bring them back), characters deleted there are
+    // deleted here, and so are visible characters the other replica no longer holds although its vector
+    // covers their insert, since those were deleted and purged there. Deletes get this replica's own
+    // stamps like any other delete applied here. Returns what changed as per-character ops, inserts in
+    // document order first.
+    public List<CrdtOp> reconcile(CRDTInstance other) {
+        List<CrdtOp> inserts = new ArrayList<>();
+        List<UUID> deletes = new ArrayList<>();
+        for (CharacterBlock block : other.index) {
+            for (int k = 0; k < block.getLength(); k++) {
+                UUID id = block.idAt(k);
+                CharacterBlock known = blockOf(id);
+                if (known == null) {
+                    if (integrate(id, block.valueAt(k), block.positionAt(k), block.isDeleted()) && !block.isDeleted()) {
+                        inserts.add(new InsertOp(id, block.valueAt(k), block.positionAt(k)));
+                    }
+                } else if (block.isDeleted() && !known.isDeleted()) {
+                    deletes.add(id);
                 }
             }
         }
+        for (CharacterBlock block : index) {
+            if (block.isDeleted()) continue;
+            for (int k = 0; k < block.getLength(); k++) {
+                Position position = block.positionAt(k);
+                UUID id = block.idAt(k);
+                if (other.blockOf(id) == null && other.vector.includes(position.getSiteId(), position.getClock())) deletes.add(id);
+            }
+        }
+
+        List<CrdtOp> ops = new ArrayList<>(inserts);
+        for (UUID id : deletes) {
+            if (delete(id)) ops.add(new DeleteOp(id));
+        }
+        vector.merge(other.vector);
+        // our own delete stamps must stay above anything the merged vector now claims for this site
+        clock = Math.max(clock, vector.get(siteId));
+        return ops;
+    }
+
+    public Character character(UUID charId) {
+        CharacterBlock block = blockOf(charId);
+        return block != null ? block.characterAt(block.offsetOf(charId)) : null;
+    }
+
+    // visible index of a character; for tombstones this is the index it would occupy if visible
+    public int visibleIndexOf(UUID charId) {
+        CharacterBlock block = blockOf(charId);
+        if (block == null) return -1;
+        int start = index.visibleIndexOf(block.getPosition());
+        return block.isDeleted() ? start : start + block.offsetOf(charId);
+    }
+
+    public Character visibleCharacterAt(int visibleIndex) {
+        PositionIndex.Slot slot = index.visibleAt(visibleIndex);
+        return slot.block().characterAt(slot.offset());
+    }
+
+    public int visibleLength() {
+        return index.visibleSize();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public int blockCount() {
+        return index.blockCount();
+    }
+
+    public int tombstoneCount() {
+        return index.size() - index.visibleSize();
+    }
+
+    // rough heap footprint of the document, walks every block
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (CharacterBlock block : index) bytes += block.estimatedBytes();
+        return bytes;
+    }
+
+    // physically removes tombstones whose delete stamp every replica has acknowledged
+    public TombstoneStats purgeTombstones(int stableClock) {
+        if (tombstoneCount() == 0) return TombstoneStats.NONE;
+
+        List<CharacterBlock> purgeable = new ArrayList<>();
+        for (CharacterBlock block : index) {
+            if (block.isDeleted() && block.getDeletedAt() <= stableClock) purgeable.add(block);
+        }
+        int characters = 0;
+        long bytes = 0;
+        for (CharacterBlock block : purgeable) {
+            blocks.remove(block.getId());
+            index.remove(block.getPosition());
+            characters += block.getLength();
+            bytes += block.estimatedBytes();
+            purgedThrough = Math.max(purgedThrough, block.getDeletedAt());
+        }
+        return new TombstoneStats(characters, bytes);
+    }
+
+    // ops a replica that has applied everything in `seen` is missing, in document order with deletes
+    // last; null when tombstones it may still hold the live copy of were already purged
+    public List<CrdtOp> opsSince(VersionVector seen) {
+        int seenDeletes = seen.get(siteId);
+        if (seenDeletes < purgedThrough) return null;
+
+        List<CrdtOp> inserts = new ArrayList<>();
+        List<CrdtOp> deletes = new ArrayList<>();
+        for (CharacterBlock block : index) {
+            Position start = block.getPosition();
+            int known = seen.get(start.getSiteId());
+            if (block.isDeleted() && (block.getDeletedAt() <= seenDeletes || start.getClock() > known)) continue;
+
+            // the replica has the inserts of the first `held` characters of the run
+            int held = (int) Math.max(0, Math.min(block.getLength(), (long) known - start.getClock() + 1));
+            if (!block.isDeleted() && held < block.getLength()) {
+                inserts.add(insertOp(block, held, block.getLength()));
+            } else if (block.isDeleted() && held > 0) {
+                // the replica never saw characters that were inserted and deleted since, skip them
+                deletes.add(held == 1
+                    ? new DeleteOp(block.getId())
+                    : new DeleteRangeOp(block.getId(), block.idAt(held - 1)));
+            }
+        }
+        inserts.addAll(deletes);
+        return inserts;
+    }
+
+    // the visible document as inserts, a compacted replacement for the whole op history
+    public List<CrdtOp> visibleOps() {
+        List<CrdtOp> ops = new ArrayList<>();
+        for (CharacterBlock block : index) {
+            if (!block.isDeleted()) ops.add(insertOp(block, 0, block.getLength()));
+        }
+        return ops;
+    }
+
+    // characters [from, to) of a block as one op, a plain insert when it is a single character
+    private static CrdtOp insertOp(CharacterBlock block, int from, int to) {
+        if (to - from == 1) return new InsertOp(block.idAt(from), block.valueAt(from), block.positionAt(from));
+        StringBuilder sb = new StringBuilder(to - from);
+        block.appendTo(sb, from, to);
+        return new InsertRunOp(block.idAt(from), sb.toString(), block.positionAt(from));
+    }
+
+    // every character including tombstones, in document order
+    public Iterator<Character> orderedIterator() {
+        Iterator<CharacterBlock> blockIterator = index.iterator();
+        return new Iterator<>() {
+            private CharacterBlock block;
+            private int k;
+
+            @Override
+            public boolean hasNext() {
+                return (block != null && k < block.getLength()) || blockIterator.hasNext();
+            }
+
+            @Override
+            public Character next() {
+                if (block == null || k >= block.getLength()) {
+                    block = blockIterator.next();
+                    k = 0;
+                }
+                return block.characterAt(k++);
+            }
+        };
     }
 
     public String extractText() {
-        List<Character> characters = new ArrayList<>(this.characters.values())
-            .stream()
-            .filter(c -> !c.getMetadata().isDeleted())
-            .sorted(this::compareCharacterPositions)
-            .toList();
-        StringBuilder sb = new StringBuilder();
-        for (Character c : characters) {
-            sb.append(c.getValue());
+        if (cachedText == null) {
+            StringBuilder sb = new StringBuilder(index.visibleSize());
+            index.appendVisible(sb);
+            cachedText = sb.toString();
         }
+        return cachedText;
+    }
+
+    // visible characters [from, to), clamped to the document; reads only the blocks in range
+    public String extractText(int from, int to) {
+        int start = Math.max(from, 0);
+        int end = Math.min(to, index.visibleSize());
+        if (start >= end) return "";
+        if (cachedText != null && cachedText.length() == index.visibleSize()) return cachedText.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(end - start);
+        index.appendVisible(sb, start, end);
         return sb.toString();
     }
+
+    // --- block bookkeeping ---
+
+    private CharacterBlock blockOf(UUID charId) {
+        Map.Entry<UUID, CharacterBlock> entry = blocks.floorEntry(charId);
+        if (entry == null || entry.getValue().offsetOf(charId) < 0) return null;
+        return entry.getValue();
+    }
+
+    private Position positionOf(UUID charId) {
+        CharacterBlock block = blockOf(charId);
+        return block != null ? block.positionAt(block.offsetOf(charId)) : null;
+    }
+
+    // number of characters of the block ordered before the position, -1 if one of them sits exactly on it
+    private int firstAfter(CharacterBlock block, Position position) {
+        int lo = 0;
+        int hi = block.getLength();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = block.compareAt(mid, position);
+            if (cmp == 0) return -1;
+            if (cmp < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void add(CharacterBlock block) {
+        blocks.put(block.getId(), block);
+        index.insert(block);
+    }
+
+    private CharacterBlock split(CharacterBlock block, int k) {
+        CharacterBlock right = block.splitAt(k);
+        index.refresh(block.getPosition());
+        add(right);
+        return right;
+    }
+
+    private void absorb(CharacterBlock block, CharacterBlock next) {
+        blocks.remove(next.getId());
+        index.remove(next.getPosition());
+        block.absorb(next);
+        index.refresh(block.getPosition());
+    }
 }
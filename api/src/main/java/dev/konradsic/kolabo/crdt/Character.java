@@ -1,5 +1,8 @@
 package dev.konradsic.kolabo.crdt;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import java.util.UUID;
 
 public class Character {
@@ -15,6 +18,19 @@ public class Character {
         this.metadata = new CharacterMetadata();
     }
 
+    @JsonCreator
+    public Character(
+        @JsonProperty("id") UUID id,
+        @JsonProperty("value") String value,
+        @JsonProperty("position") Position position,
+        @JsonProperty("metadata") CharacterMetadata metadata
+    ) {
+        this.id = id;
+        this.value = value;
+        this.position = position;
+        this.metadata = metadata != null ? metadata : new CharacterMetadata();
+    }
+
     public UUID getId() { return id; }
     public String getValue() { return value; }
     public Position getPosition() { return position; }
@@ -0,0 +1,178 @@
+package dev.konradsic.kolabo.crdt;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.UUID;
+
+// A run of consecutive characters from one site. Character k of the block has id (msb, lsb + k) and
+// the block's position with k units added to its last digit and k added to its clock, so nothing
+// per character has to be stored besides the text itself.
+public class CharacterBlock {
+
+    // rough heap cost of a block besides its text and digits: the block, its UUID, Position,
+    // StringBuilder and array headers plus the id map entry and index node
+    private static final int OVERHEAD_BYTES = 240;
+
+    private final UUID id;
+    private final Position position;
+    private final StringBuilder text;
+    private int length;
+    private boolean deleted;
+    // clock of the deleting site (the document's own site) when this run became a tombstone
+    private int deletedAt;
+
+    CharacterBlock(UUID id, String value, Position position, boolean deleted) {
+        this.id = id;
+        this.position = position;
+        this.text = new StringBuilder(value);
+        this.length = 1;
+        this.deleted = deleted;
+    }
+
+    private CharacterBlock(UUID id, StringBuilder text, Position position, int length, boolean deleted, int deletedAt) {
+        this.id = id;
+        this.position = position;
+        this.text = text;
+        this.length = length;
+        this.deleted = deleted;
+        this.deletedAt = deletedAt;
+    }
+
+    // a visible run with one character per UTF-16 unit of `text`, which it takes over without copying
+    static CharacterBlock run(UUID id, StringBuilder text, Position position) {
+        return new CharacterBlock(id, text, position, text.length(), false, 0);
+    }
+
+    @JsonCreator
+    public CharacterBlock(
+        @JsonProperty("id") UUID id,
+        @JsonProperty("text") String text,
+        @JsonProperty("position") Position position,
+        @JsonProperty("length") Integer length,
+        @JsonProperty("deleted") boolean deleted,
+        @JsonProperty("deletedAt") int deletedAt
+    ) {
+        this.id = id;
+        this.position = position;
+        this.text = new StringBuilder(text);
+        this.length = length != null ? length : text.length();
+        this.deleted = deleted;
+        this.deletedAt = deletedAt;
+    }
+
+    public UUID getId() { return id; }
+    public Position getPosition() { return position; }
+    public String getText() { return text.toString(); }
+    public int getLength() { return length; }
+    public boolean isDeleted() { return deleted; }
+    public int getDeletedAt() { return deletedAt; }
+
+    void markDeleted(int clock) {
+        this.deleted = true;
+        this.deletedAt = clock;
+    }
+
+    long estimatedBytes() {
+        return OVERHEAD_BYTES + 8L * position.depth() + text.length();
+    }
+
+    int visibleLength() {
+        return deleted ? 0 : length;
+    }
+
+    // single-unit characters only, a lone multi-unit value (e.g. a surrogate pair) stays its own block
+    private boolean isRunnable() {
+        return length > 1 || text.length() == 1;
+    }
+
+    UUID idAt(int k) {
+        return k == 0 ? id : new UUID(id.getMostSignificantBits(), id.getLeastSignificantBits() + k);
+    }
+
+    Position positionAt(int k) {
+        if (k == 0) return position;
+        long[] digits = position.digits().clone();
+        digits[digits.length - 1] += k * Position.UNIT;
+        return new Position(digits, position.site(), position.getClock() + k);
+    }
+
+    String valueAt(int k) {
+        return length == 1 ? text.toString() : String.valueOf(text.charAt(k));
+    }
+
+    // appends characters [from, to) of this block
+    void appendTo(StringBuilder sb, int from, int to) {
+        if (length == 1) sb.append(text);
+        else sb.append(text, from, to);
+    }
+
+    Character characterAt(int k) {
+        CharacterMetadata metadata = new CharacterMetadata();
+        metadata.setDeleted(deleted);
+        return new Character(idAt(k), valueAt(k), positionAt(k), metadata);
+    }
+
+    // offset of a character id inside this block, -1 if it does not belong here
+    int offsetOf(UUID charId) {
+        if (charId.getMostSignificantBits() != id.getMostSignificantBits()) return -1;
+        long offset = charId.getLeastSignificantBits() - id.getLeastSignificantBits();
+        return offset >= 0 && offset < length ? (int) offset : -1;
+    }
+
+    // compares the derived position of character k with p without materializing it
+    int compareAt(int k, Position p) {
+        int cmp = compareDigitsAt(k, p);
+        if (cmp != 0) return cmp;
+        if (position.site() != p.site()) return position.site().compareTo(p.site());
+        return Integer.compare(position.getClock() + k, p.getClock());
+    }
+
+    // same as compareAt, but only the digits; 0 means the two identifiers differ by site or clock alone
+    int compareDigitsAt(int k, Position p) {
+        long[] a = position.digits();
+        long[] b = p.digits();
+        int last = a.length - 1;
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            long digit = i == last ? a[i] + k * Position.UNIT : a[i];
+            if (digit != b[i]) return digit < b[i] ? -1 : 1;
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    // whether a character is the exact continuation of this run
+    boolean continuesWith(UUID charId, String value, Position p) {
+        if (value.length() != 1 || !isRunnable()) return false;
+        if (charId.getMostSignificantBits() != id.getMostSignificantBits()) return false;
+        long lsb = id.getLeastSignificantBits();
+        if (lsb + length < lsb || charId.getLeastSignificantBits() != lsb + length) return false;
+        return compareAt(length, p) == 0;
+    }
+
+    boolean canAbsorb(CharacterBlock next) {
+        return deleted == next.deleted
+            && next.isRunnable()
+            && continuesWith(next.id, next.text.substring(0, 1), next.position)
+            && id.getLeastSignificantBits() + length + next.length > id.getLeastSignificantBits();
+    }
+
+    void append(String value) {
+        text.append(value);
+        length++;
+    }
+
+    void absorb(CharacterBlock next) {
+        text.append(next.text);
+        length += next.length;
+        deletedAt = Math.max(deletedAt, next.deletedAt);
+    }
+
+    // keeps characters [0, k) and returns a new block holding [k, length)
+    CharacterBlock splitAt(int k) {
+        CharacterBlock right = new CharacterBlock(idAt(k), text.substring(k), positionAt(k), length - k, deleted, deletedAt);
+        text.setLength(k);
+        length = k;
+        return right;
+    }
+}
@@ -0,0 +1,307 @@
+package dev.konradsic.kolabo.crdt;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Versioned binary snapshot of a CRDTInstance.
+//
+// header:  'K' 'S' version flags        (flags bit 0: body is deflated)
+// body:    base, boundary               (raw doubles)
+//          clock, strategy              (varints)
+//          purgedThrough                (varint, since version 2)
+//          site dictionary              (count, then strings; the document site is entry 0)
+//          vector                       (count, then site index + clock)
+//          blocks in document order     (count, then per block: 16 raw uuid bytes, flags, length,
+//                                        deletedAt, position site + clock + depth + digits, text)
+//
+// Varints are unsigned LEB128, digits are zigzag encoded and stored in whole units when they have
+// no fractional part, which covers almost every digit the server allocates.
+public final class CrdtSnapshotCodec {
+
+    public static final int VERSION = 2;
+
+    private static final byte MAGIC_0 = 'K';
+    private static final byte MAGIC_1 = 'S';
+    private static final int FLAG_DEFLATE = 1;
+    private static final int BLOCK_DELETED = 1;
+
+    private CrdtSnapshotCodec() {}
+
+    public static byte[] encode(CRDTInstance crdt, boolean compress) {
+        Map<String, Integer> sites = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        List<CharacterBlock> blocks = crdt.getBlocks();
+        Map<String, Integer> vector = crdt.getVector().toMap();
+
+        siteIndex(crdt.getSiteId(), sites, dictionary);
+        vector.keySet().forEach(site -> siteIndex(site, sites, dictionary));
+        blocks.forEach(block -> siteIndex(block.getPosition().getSiteId(), sites, dictionary));
+
+        Writer out = new Writer(64 + blocks.size() * 32);
+        out.writeDouble(crdt.getBase());
+        out.writeDouble(crdt.getBoundary());
+        out.writeVarint(crdt.getClock());
+        out.writeVarint(crdt.getStrategy().ordinal());
+        out.writeVarint(crdt.getPurgedThrough());
+
+        out.writeVarint(dictionary.size());
+        dictionary.forEach(out::writeString);
+
+        out.writeVarint(vector.size());
+        vector.forEach((site, clock) -> {
+            out.writeVarint(sites.get(site));
+            out.writeVarint(clock);
+        });
+
+        out.writeVarint(blocks.size());
+        for (CharacterBlock block : blocks) {
+            Position position = block.getPosition();
+            out.writeLong(block.getId().getMostSignificantBits());
+            out.writeLong(block.getId().getLeastSignificantBits());
+            out.writeByte(block.isDeleted() ? BLOCK_DELETED : 0);
+            out.writeVarint(block.getLength());
+            out.writeVarint(block.getDeletedAt());
+            out.writeVarint(sites.get(position.getSiteId()));
+            out.writeVarint(position.getClock());
+            out.writeVarint(position.depth());
+            for (long digit : position.digits()) out.writeDigit(digit);
+            out.writeString(block.getText());
+        }
+
+        byte[] body = out.toByteArray();
+        if (compress) body = deflate(body);
+
+        byte[] snapshot = new byte[body.length + 4];
+        snapshot[0] = MAGIC_0;
+        snapshot[1] = MAGIC_1;
+        snapshot[2] = VERSION;
+        snapshot[3] = (byte) (compress ? FLAG_DEFLATE : 0);
+        System.arraycopy(body, 0, snapshot, 4, body.length);
+        return snapshot;
+    }
+
+    public static CRDTInstance decode(byte[] snapshot) {
+        if (!isBinary(snapshot)) throw new IllegalArgumentException("Not a binary CRDT snapshot");
+        int version = snapshot[2];
+        if (version < 1 || version > VERSION) throw new IllegalArgumentException("Unsupported snapshot version " + version);
+
+        byte[] body = Arrays.copyOfRange(snapshot, 4, snapshot.length);
+        if ((snapshot[3] & FLAG_DEFLATE) != 0) body = inflate(body);
+
+        try {
+            Reader in = new Reader(body);
+            double base = in.readDouble();
+            double boundary = in.readDouble();
+            int clock = in.readVarint();
+            AllocationStrategy strategy = AllocationStrategy.values()[in.readVarint()];
+            Integer purgedThrough = version >= 2 ? in.readVarint() : null;
+
+            SiteId[] dictionary = new SiteId[in.readVarint()];
+            for (int i = 0; i < dictionary.length; i++) dictionary[i] = SiteId.of(in.readString());
+
+            VersionVector vector = new VersionVector();
+            int vectorSize = in.readVarint();
+            for (int i = 0; i < vectorSize; i++) vector.observe(dictionary[in.readVarint()].name(), in.readVarint());
+
+            int blockCount = in.readVarint();
+            List<CharacterBlock> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                boolean deleted = (in.readByte() & BLOCK_DELETED) != 0;
+                int length = in.readVarint();
+                int deletedAt = in.readVarint();
+                SiteId site = dictionary[in.readVarint()];
+                int positionClock = in.readVarint();
+                long[] digits = new long[in.readVarint()];
+                for (int d = 0; d < digits.length; d++) digits[d] = in.readDigit();
+                String text = in.readString();
+                blocks.add(new CharacterBlock(id, text, new Position(digits, site, positionClock), length, deleted, deletedAt));
+            }
+
+            return CRDTInstance.fromSnapshot(base, dictionary[0].name(), clock, boundary, blocks, null, vector, strategy, purgedThrough);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated or corrupt CRDT snapshot", e);
+        }
+    }
+
+    public static boolean isBinary(byte[] snapshot) {
+        return snapshot != null && snapshot.length >= 4 && snapshot[0] == MAGIC_0 && snapshot[1] == MAGIC_1;
+    }
+
+    private static void siteIndex(String site, Map<String, Integer> sites, List<String> dictionary) {
+        sites.computeIfAbsent(site, s -> {
+            dictionary.add(s);
+            return dictionary.size() - 1;
+        });
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed CRDT snapshot");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed CRDT snapshot", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // --- primitive encoding ---
+
+    private static final class Writer {
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) buf[pos++] = (byte) (v >>> shift);
+        }
+
+        void writeDouble(double v) {
+            writeLong(Double.doubleToLongBits(v));
+        }
+
+        void writeVarint(int v) {
+            writeVarlong(v & 0xFFFFFFFFL);
+        }
+
+        void writeVarlong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        // lowest bit tells whether the digit is stored in whole units or as raw fixed point
+        void writeDigit(long digit) {
+            if ((digit & (Position.UNIT - 1)) == 0) {
+                writeVarlong(zigzag(digit >> 16) << 1);
+            } else {
+                writeVarlong(zigzag(digit) << 1 | 1);
+            }
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) v = (v << 8) | (buf[pos++] & 0xFF);
+            return v;
+        }
+
+        double readDouble() {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        int readVarint() {
+            long v = readVarlong();
+            if (v > 0xFFFFFFFFL) throw new IllegalArgumentException("Varint out of range");
+            return (int) v;
+        }
+
+        long readVarlong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long readDigit() {
+            long v = readVarlong();
+            long digit = unzigzag(v >>> 1);
+            return (v & 1) == 0 ? digit << 16 : digit;
+        }
+
+        String readString() {
+            int length = readVarint();
+            if (length < 0 || length > buf.length - pos) throw new IllegalArgumentException("String out of range");
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        private static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
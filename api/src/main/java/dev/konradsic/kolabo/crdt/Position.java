@@ -3,12 +3,29 @@ package dev.konradsic.kolabo.crdt;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.ArrayList;
 import java.util.List;
 
-public class Position {
-    List<Double> index;
-    String siteId;
-    int clock;
+// Digits are kept packed as fixed-point longs and the site as an interned id, so ordering two
+// positions never touches boxed values. The JSON shape ({index, siteId, clock}) is unchanged.
+public class Position implements Comparable<Position> {
+
+    // fixed-point scale of a digit, whole digits compare and serialize exactly
+    public static final long UNIT = 1L << 16;
+
+    private final long[] digits;
+    private final SiteId site;
+    private final int clock;
+
+    Position(long[] digits, SiteId site, int clock) {
+        this.digits = digits;
+        this.site = site;
+        this.clock = clock;
+    }
+
+    Position(long[] digits, String siteId, int clock) {
+        this(digits, SiteId.of(siteId), clock);
+    }
 
     @JsonCreator
     public Position(
@@ -16,16 +33,56 @@ public class Position {
         @JsonProperty("siteId") String siteId,
         @JsonProperty("clock") int clock
     ) {
-        this.index = index;
-        this.siteId = siteId;
-        this.clock = clock;
+        this(encode(index), SiteId.of(siteId), clock);
+    }
+
+    // from raw fixed-point digits (see UNIT), for binary codecs outside this package; takes over the array
+    public static Position of(long[] digits, String siteId, int clock) {
+        return new Position(digits, siteId, clock);
+    }
+
+    public List<Double> getIndex() {
+        List<Double> index = new ArrayList<>(digits.length);
+        for (long digit : digits) index.add(toDouble(digit));
+        return index;
     }
 
-    public List<Double> getIndex() { return index; }
-    public String getSiteId() { return siteId; }
+    public String getSiteId() { return site.name(); }
     public int getClock() { return clock; }
 
-    public void setIndex(List<Double> index) { this.index = index; }
-    public void setSiteId(String siteId) { this.siteId = siteId; }
-    public void setClock(int clock) { this.clock = clock; }
+    public int depth() { return digits.length; }
+    public long digit(int i) { return digits[i]; }
+
+    long[] digits() { return digits; }
+    SiteId site() { return site; }
+
+    @Override
+    public int compareTo(Position o) {
+        long[] a = digits;
+        long[] b = o.digits;
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) return a[i] < b[i] ? -1 : 1;
+        }
+        if (a.length != b.length) return a.length < b.length ? -1 : 1;
+
+        // interned sites are only equal for equal names, their order is the name order on every replica
+        if (site != o.site) return site.compareTo(o.site);
+        return Integer.compare(clock, o.clock);
+    }
+
+    static long toFixed(double digit) {
+        return Math.round(digit * UNIT);
+    }
+
+    static double toDouble(long digit) {
+        return (double) digit / UNIT;
+    }
+
+    private static long[] encode(List<Double> index) {
+        if (index == null) return new long[0];
+        long[] digits = new long[index.size()];
+        for (int i = 0; i < digits.length; i++) digits[i] = toFixed(index.get(i));
+        return digits;
+    }
 }
@@ -0,0 +1,307 @@
+package dev.konradsic.kolabo.crdt;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Order-statistic tree (treap) of character blocks keyed by their starting position. Every node keeps
+// the number of characters and of visible (non-deleted) characters in its subtree, so index lookups
+// and in-order traversal never need a full sort of the document.
+class PositionIndex implements Iterable<CharacterBlock> {
+
+    // a character inside a block, as found by a visible index lookup
+    record Slot(CharacterBlock block, int offset) {}
+
+    private static final class Node {
+        final CharacterBlock block;
+        final int priority;
+        Node left;
+        Node right;
+        int size;
+        int visible;
+
+        Node(CharacterBlock block, int priority) {
+            this.block = block;
+            this.priority = priority;
+            this.size = block.getLength();
+            this.visible = block.visibleLength();
+        }
+    }
+
+    private Node root;
+    private int blocks;
+    private int seed = 0x2545F491;
+
+    int size() {
+        return size(root);
+    }
+
+    int visibleSize() {
+        return visible(root);
+    }
+
+    int blockCount() {
+        return blocks;
+    }
+
+    void insert(CharacterBlock block) {
+        root = insert(root, new Node(block, nextPriority()));
+        blocks++;
+    }
+
+    void remove(Position start) {
+        root = remove(root, start);
+    }
+
+    // recomputes subtree counters on the path to a block after its length or deleted flag changed
+    void refresh(Position start) {
+        root = refresh(root, start);
+    }
+
+    // block with the greatest start that is not after the given position
+    CharacterBlock floor(Position position) {
+        Node n = root;
+        CharacterBlock best = null;
+        while (n != null) {
+            int cmp = position.compareTo(n.block.getPosition());
+            if (cmp == 0) return n.block;
+            if (cmp < 0) {
+                n = n.left;
+            } else {
+                best = n.block;
+                n = n.right;
+            }
+        }
+        return best;
+    }
+
+    CharacterBlock lower(Position position) {
+        Node n = root;
+        CharacterBlock best = null;
+        while (n != null) {
+            if (position.compareTo(n.block.getPosition()) <= 0) {
+                n = n.left;
+            } else {
+                best = n.block;
+                n = n.right;
+            }
+        }
+        return best;
+    }
+
+    CharacterBlock higher(Position position) {
+        Node n = root;
+        CharacterBlock best = null;
+        while (n != null) {
+            if (position.compareTo(n.block.getPosition()) >= 0) {
+                n = n.right;
+            } else {
+                best = n.block;
+                n = n.left;
+            }
+        }
+        return best;
+    }
+
+    // number of visible characters ordered before the block starting at the given position, -1 if not indexed
+    int visibleIndexOf(Position start) {
+        Node n = root;
+        int index = 0;
+        while (n != null) {
+            int cmp = start.compareTo(n.block.getPosition());
+            if (cmp == 0) return index + visible(n.left);
+            if (cmp < 0) {
+                n = n.left;
+            } else {
+                index += visible(n.left) + n.block.visibleLength();
+                n = n.right;
+            }
+        }
+        return -1;
+    }
+
+    Slot visibleAt(int index) {
+        if (index < 0 || index >= visibleSize()) {
+            throw new IndexOutOfBoundsException("Visible index " + index + " out of bounds for length " + visibleSize());
+        }
+        Node n = root;
+        while (true) {
+            int leftVisible = visible(n.left);
+            if (index < leftVisible) {
+                n = n.left;
+                continue;
+            }
+            index -= leftVisible;
+            int own = n.block.visibleLength();
+            if (index < own) return new Slot(n.block, index);
+            index -= own;
+            n = n.right;
+        }
+    }
+
+    // appends visible text in order, skipping subtrees that only hold tombstones
+    void appendVisible(StringBuilder sb) {
+        appendSubtree(root, sb);
+    }
+
+    // appends visible characters [from, to); only the O(log n) paths to both ends are descended
+    void appendVisible(StringBuilder sb, int from, int to) {
+        appendRange(root, sb, from, to);
+    }
+
+    private void appendRange(Node n, StringBuilder sb, int from, int to) {
+        if (n == null || from >= to || to <= 0 || from >= n.visible) return;
+        if (from <= 0 && to >= n.visible) {
+            appendSubtree(n, sb);
+            return;
+        }
+
+        int leftVisible = visible(n.left);
+        appendRange(n.left, sb, from, to);
+        int own = n.block.visibleLength();
+        int start = Math.max(from - leftVisible, 0);
+        int end = Math.min(to - leftVisible, own);
+        if (start < end) n.block.appendTo(sb, start, end);
+        appendRange(n.right, sb, from - leftVisible - own, to - leftVisible - own);
+    }
+
+    private void appendSubtree(Node subtree, StringBuilder sb) {
+        Deque<Node> stack = new ArrayDeque<>();
+        Node n = subtree;
+        while (n != null || !stack.isEmpty()) {
+            while (n != null && n.visible > 0) {
+                stack.push(n);
+                n = n.left;
+            }
+            if (stack.isEmpty()) break;
+            n = stack.pop();
+            if (!n.block.isDeleted()) n.block.appendTo(sb, 0, n.block.getLength());
+            n = n.right;
+        }
+    }
+
+    @Override
+    public Iterator<CharacterBlock> iterator() {
+        return new Iterator<>() {
+            private final Deque<Node> stack = new ArrayDeque<>();
+
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(Node n) {
+                while (n != null) {
+                    stack.push(n);
+                    n = n.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public CharacterBlock next() {
+                if (stack.isEmpty()) throw new NoSuchElementException();
+                Node n = stack.pop();
+                pushLeft(n.right);
+                return n.block;
+            }
+        };
+    }
+
+    // --- treap internals ---
+
+    private Node insert(Node n, Node node) {
+        if (n == null) return node;
+
+        if (node.block.getPosition().compareTo(n.block.getPosition()) < 0) {
+            n.left = insert(n.left, node);
+            if (n.left.priority > n.priority) return rotateRight(n);
+        } else {
+            n.right = insert(n.right, node);
+            if (n.right.priority > n.priority) return rotateLeft(n);
+        }
+        pull(n);
+        return n;
+    }
+
+    private Node remove(Node n, Position start) {
+        if (n == null) return null;
+
+        int cmp = start.compareTo(n.block.getPosition());
+        if (cmp == 0) {
+            blocks--;
+            return merge(n.left, n.right);
+        }
+        if (cmp < 0) n.left = remove(n.left, start);
+        else n.right = remove(n.right, start);
+        pull(n);
+        return n;
+    }
+
+    private Node refresh(Node n, Position start) {
+        if (n == null) return null;
+
+        int cmp = start.compareTo(n.block.getPosition());
+        if (cmp < 0) n.left = refresh(n.left, start);
+        else if (cmp > 0) n.right = refresh(n.right, start);
+        pull(n);
+        return n;
+    }
+
+    // merges two treaps where every key of `a` is ordered before every key of `b`
+    private Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            pull(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        pull(b);
+        return b;
+    }
+
+    private Node rotateRight(Node n) {
+        Node l = n.left;
+        n.left = l.right;
+        l.right = n;
+        pull(n);
+        pull(l);
+        return l;
+    }
+
+    private Node rotateLeft(Node n) {
+        Node r = n.right;
+        n.right = r.left;
+        r.left = n;
+        pull(n);
+        pull(r);
+        return r;
+    }
+
+    private void pull(Node n) {
+        n.size = n.block.getLength() + size(n.left) + size(n.right);
+        n.visible = n.block.visibleLength() + visible(n.left) + visible(n.right);
+    }
+
+    private int nextPriority() {
+        // xorshift, deterministic and allocation-free
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static int visible(Node n) {
+        return n == null ? 0 : n.visible;
+    }
+}
@@ -0,0 +1,53 @@
+package dev.konradsic.kolabo.crdt;
+
+import com.github.benmanes.caffeine.cache.Interner;
+
+// Process-wide interned site id. Positions share one instance per site instead of holding their own
+// String, and equal sites can be detected by reference. Interning is weak, so sites of documents that
+// left memory are collected with them.
+public final class SiteId implements Comparable<SiteId> {
+
+    private static final Interner<SiteId> interned = Interner.newWeakInterner();
+
+    // the first four UTF-16 units of the name, so most sites are ordered without reading the names
+    private static final int KEY_CHARS = 4;
+
+    private final String name;
+    private final long key;
+
+    private SiteId(String name) {
+        this.name = name;
+        long key = 0;
+        for (int i = 0; i < KEY_CHARS; i++) {
+            key = key << 16 | (i < name.length() ? name.charAt(i) : 0);
+        }
+        this.key = key;
+    }
+
+    public static SiteId of(String name) {
+        return interned.intern(new SiteId(name != null ? name : ""));
+    }
+
+    public String name() { return name; }
+
+    // same order as the names, which every replica agrees on
+    @Override
+    public int compareTo(SiteId o) {
+        if (this == o) return 0;
+        if (key != o.key) return Long.compareUnsigned(key, o.key);
+        return name.compareTo(o.name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SiteId other && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() { return name; }
+}
@@ -0,0 +1,14 @@
+package dev.konradsic.kolabo.crdt;
+
+// A splice of the visible text: at `index`, `deleted` characters were removed and `inserted` was
+// inserted. A list of changes applies in order, each against the text left by the previous one.
+public record TextChange(int index, int deleted, String inserted) {
+
+    static TextChange insert(int index, String text) {
+        return new TextChange(index, 0, text);
+    }
+
+    static TextChange delete(int index, int count) {
+        return new TextChange(index, count, "");
+    }
+}
@@ -0,0 +1,7 @@
+package dev.konradsic.kolabo.crdt;
+
+// characters and estimated heap bytes removed by a tombstone purge
+public record TombstoneStats(int characters, long bytes) {
+
+    public static final TombstoneStats NONE = new TombstoneStats(0, 0);
+}
@@ -0,0 +1,52 @@
+package dev.konradsic.kolabo.crdt;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Highest clock seen per site. Serialized as a plain {siteId: clock} object.
+public class VersionVector {
+
+    private final Map<String, Integer> clocks = new ConcurrentHashMap<>();
+
+    public VersionVector() {}
+
+    @JsonCreator
+    public VersionVector(Map<String, Integer> clocks) {
+        if (clocks != null) clocks.forEach(this::observe);
+    }
+
+    @JsonValue
+    public Map<String, Integer> toMap() {
+        return Collections.unmodifiableMap(clocks);
+    }
+
+    public int get(String siteId) {
+        return clocks.getOrDefault(siteId, 0);
+    }
+
+    public void observe(String siteId, int clock) {
+        if (siteId == null) return;
+        clocks.merge(siteId, clock, Math::max);
+    }
+
+    public boolean includes(String siteId, int clock) {
+        return get(siteId) >= clock;
+    }
+
+    public void merge(VersionVector other) {
+        other.clocks.forEach(this::observe);
+    }
+
+    public VersionVector copy() {
+        return new VersionVector(clocks);
+    }
+
+    @Override
+    public String toString() {
+        return clocks.toString();
+    }
+}
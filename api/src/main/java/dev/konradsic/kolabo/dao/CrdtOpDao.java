@@ -12,4 +12,6 @@ import java.util.UUID;
 public interface CrdtOpDao extends JpaRepository<CrdtOpEntity, UUID> {
 
     List<CrdtOpEntity> findAllByDocumentIdOrderByCreatedAtAsc(UUID docId);
+
+    List<CrdtOpEntity> findAllByDocumentIdAndSeqGreaterThanOrderBySeqAsc(UUID docId, long seq);
 }
@@ -0,0 +1,9 @@
+package dev.konradsic.kolabo.dto.ws;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import dev.konradsic.kolabo.crdt.VersionVector;
+
+@JsonTypeName("ack")
+public record AckMessage(
+    VersionVector vector
+) implements WsMessage {}
@@ -10,7 +10,9 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 )
 @JsonSubTypes({
     @JsonSubTypes.Type(value = InsertOp.class, name = "insert"),
-    @JsonSubTypes.Type(value = DeleteOp.class, name = "delete")
+    @JsonSubTypes.Type(value = DeleteOp.class, name = "delete"),
+    @JsonSubTypes.Type(value = InsertRunOp.class, name = "insertRun"),
+    @JsonSubTypes.Type(value = DeleteRangeOp.class, name = "deleteRange")
 })
-public sealed interface CrdtOp extends WsMessage permits InsertOp, DeleteOp {}
+public sealed interface CrdtOp extends WsMessage permits InsertOp, DeleteOp, InsertRunOp, DeleteRangeOp {}
 
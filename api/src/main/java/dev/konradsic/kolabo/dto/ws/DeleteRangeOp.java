@@ -0,0 +1,13 @@
+package dev.konradsic.kolabo.dto.ws;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+
+import java.util.UUID;
+
+// Deletes the characters with ids from `startId` to `endId` inclusive, both from the same run (equal
+// most significant bits). Naming ids rather than visible indexes keeps it convergent under concurrency.
+@JsonTypeName("deleteRange")
+public record DeleteRangeOp(
+    UUID startId,
+    UUID endId
+) implements CrdtOp {}
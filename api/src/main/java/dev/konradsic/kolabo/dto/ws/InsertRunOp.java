@@ -0,0 +1,16 @@
+package dev.konradsic.kolabo.dto.ws;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import dev.konradsic.kolabo.crdt.Position;
+
+import java.util.UUID;
+
+// A run of characters typed or pasted in one go, one character per UTF-16 unit of `text`. Character k
+// has id (msb, lsb + k) of `charId` and `position` with k units added to its last digit and k added
+// to its clock, so a paste travels as one op instead of one per character.
+@JsonTypeName("insertRun")
+public record InsertRunOp(
+    UUID charId,
+    String text,
+    Position position
+) implements CrdtOp {}
@@ -0,0 +1,9 @@
+package dev.konradsic.kolabo.dto.ws;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+
+// the presence version of the last user list or userEvent a client applied
+@JsonTypeName("presenceAck")
+public record PresenceAck(
+    long version
+) implements WsMessage {}
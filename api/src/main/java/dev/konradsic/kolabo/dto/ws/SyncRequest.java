@@ -0,0 +1,10 @@
+package dev.konradsic.kolabo.dto.ws;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import dev.konradsic.kolabo.crdt.VersionVector;
+
+// sent by a (re)connecting client with the highest clock it has applied per site
+@JsonTypeName("sync")
+public record SyncRequest(
+    VersionVector vector
+) implements WsMessage {}
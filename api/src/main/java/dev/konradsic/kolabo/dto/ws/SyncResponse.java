@@ -0,0 +1,25 @@
+package dev.konradsic.kolabo.dto.ws;
+
+import dev.konradsic.kolabo.crdt.AllocationStrategy;
+import dev.konradsic.kolabo.crdt.VersionVector;
+
+import java.util.List;
+
+// server reply to a SyncRequest. "delta" ops apply on top of the client's state, "snapshot" ops
+// replace it. The vector is the server's, to be sent back in the next sync. Clients allocate the
+// positions of what they type with the document's strategy.
+public record SyncResponse(
+    String type,
+    String mode,
+    VersionVector vector,
+    List<CrdtOp> ops,
+    AllocationStrategy strategy
+) {
+    public static SyncResponse delta(VersionVector vector, List<CrdtOp> ops, AllocationStrategy strategy) {
+        return new SyncResponse("sync", "delta", vector, ops, strategy);
+    }
+
+    public static SyncResponse snapshot(VersionVector vector, List<CrdtOp> ops, AllocationStrategy strategy) {
+        return new SyncResponse("sync", "snapshot", vector, ops, strategy);
+    }
+}
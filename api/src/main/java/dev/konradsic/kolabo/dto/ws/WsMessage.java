@@ -10,6 +10,9 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 )
 @JsonSubTypes({
     @JsonSubTypes.Type(value = CrdtOp.class),
-    @JsonSubTypes.Type(value = CaretUpdate.class, name = "caretUpdate")
+    @JsonSubTypes.Type(value = CaretUpdate.class, name = "caretUpdate"),
+    @JsonSubTypes.Type(value = AckMessage.class, name = "ack"),
+    @JsonSubTypes.Type(value = SyncRequest.class, name = "sync"),
+    @JsonSubTypes.Type(value = PresenceAck.class, name = "presenceAck")
 })
-public sealed interface WsMessage permits CaretUpdate, CrdtOp {}
+public sealed interface WsMessage permits AckMessage, CaretUpdate, CrdtOp, PresenceAck, SyncRequest {}
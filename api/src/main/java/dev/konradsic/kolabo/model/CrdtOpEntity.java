@@ -24,12 +24,18 @@ public class CrdtOpEntity {
     @Column(nullable = false)
     private LocalDateTime createdAt;
 
+    // position in the document's log, see CrdtOpService
+    @Column(nullable = false)
+    private long seq;
+
     public UUID getId() { return id; }
     public Document getDocument() { return document; }
     public String getOpJson() { return opJson; }
     public LocalDateTime getCreatedAt() { return createdAt; }
+    public long getSeq() { return seq; }
 
     public void setDocument(Document document) { this.document = document; }
     public void setOpJson(String opJson) { this.opJson = opJson; }
     public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+    public void setSeq(long seq) { this.seq = seq; }
 }
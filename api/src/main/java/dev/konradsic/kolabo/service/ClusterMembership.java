@@ -0,0 +1,119 @@
+package dev.konradsic.kolabo.service;
+
+import dev.konradsic.kolabo.config.ClusterProperties;
+import dev.konradsic.kolabo.util.HashRing;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Which node owns which document. Nodes renew their entry in a redis sorted set (scored by the time
+// of their last heartbeat) and every node builds the same consistent-hash ring from the live entries;
+// a document's owner keeps its in-memory state and op log queue, other nodes send its clients there.
+// Without cluster relay the ring is this node alone and it owns everything.
+@Service
+public class ClusterMembership {
+
+    private static final String NODES_KEY = "kolabo:cluster:nodes";
+    private static final String URLS_KEY = "kolabo:cluster:urls";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ClusterProperties properties;
+    private final StringRedisTemplate redis;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final Logger logger = LoggerFactory.getLogger(ClusterMembership.class);
+    private volatile HashRing ring;
+    // advertised urls by node, read with the membership on every heartbeat
+    private volatile Map<String, String> urls = Map.of();
+
+    public ClusterMembership(ClusterProperties properties, StringRedisTemplate redis) {
+        this.properties = properties;
+        this.redis = redis;
+        this.ring = new HashRing(Set.of(nodeId), properties.getRingReplicas());
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isOwner(UUID docId) {
+        return nodeId.equals(ring.owner(docId));
+    }
+
+    // where clients of a document owned by another node should connect, null when this node owns it or
+    // the owner's url isn't known yet (see isOwner)
+    public String ownerUrl(UUID docId) {
+        String owner = ring.owner(docId);
+        if (nodeId.equals(owner)) return null;
+        return urls.get(owner);
+    }
+
+    // how long a former owner keeps relaying a document after its clients were sent away
+    public Duration getHandoffGrace() {
+        return properties.getHandoffGrace();
+    }
+
+    // how long a node that took a document up waits for the other nodes' state before answering joins
+    public Duration getCatchUpWait() {
+        return properties.getCatchUpWait();
+    }
+
+    // runs on the heartbeat thread after the ring changed
+    public void onChange(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Scheduled(fixedDelayString = "${kolabo.cluster.heartbeat-interval:2s}")
+    public void heartbeat() {
+        if (!properties.isEnabled()) return;
+        long now = System.currentTimeMillis();
+        try {
+            // the url first, so no node sees this one in the ring without knowing where to send its clients
+            if (StringUtils.hasText(properties.getAdvertisedUrl())) redis.opsForHash().put(URLS_KEY, nodeId, properties.getAdvertisedUrl());
+            redis.opsForZSet().add(NODES_KEY, nodeId, now);
+            redis.opsForZSet().removeRangeByScore(NODES_KEY, 0, now - properties.getNodeTimeout().toMillis());
+            Set<String> live = redis.opsForZSet().rangeByScore(NODES_KEY, now - properties.getNodeTimeout().toMillis(), Double.POSITIVE_INFINITY);
+            Map<String, String> advertised = new HashMap<>();
+            redis.opsForHash().entries(URLS_KEY).forEach((node, url) -> advertised.put(node.toString(), url.toString()));
+            urls = advertised;
+            if (live == null || live.equals(ring.getNodes())) return;
+
+            logger.info("Cluster membership changed: {} nodes", live.size());
+            ring = new HashRing(live, properties.getRingReplicas());
+        } catch (RuntimeException e) {
+            // keep the last known ring; a node that can't reach redis stops renewing and others take over
+            logger.warn("Cluster heartbeat failed", e);
+            return;
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.error("Cluster membership listener failed", e);
+            }
+        }
+    }
+
+    // leaving cleanly hands documents over now instead of after node-timeout
+    @PreDestroy
+    public void leave() {
+        if (!properties.isEnabled()) return;
+        try {
+            redis.opsForZSet().remove(NODES_KEY, nodeId);
+            redis.opsForHash().delete(URLS_KEY, nodeId);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to leave the cluster", e);
+        }
+    }
+}
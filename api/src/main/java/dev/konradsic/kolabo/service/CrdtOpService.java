@@ -1,57 +1,420 @@
 package dev.konradsic.kolabo.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import dev.konradsic.kolabo.config.CrdtProperties;
+import dev.konradsic.kolabo.crdt.AllocationStrategy;
 import dev.konradsic.kolabo.crdt.CRDTInstance;
-import dev.konradsic.kolabo.crdt.Character;
+import dev.konradsic.kolabo.crdt.CrdtSnapshotCodec;
+import dev.konradsic.kolabo.crdt.TextChange;
+import dev.konradsic.kolabo.crdt.TombstoneStats;
+import dev.konradsic.kolabo.crdt.VersionVector;
 import dev.konradsic.kolabo.dto.ws.CrdtOp;
-import dev.konradsic.kolabo.dto.ws.DeleteOp;
 import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import dev.konradsic.kolabo.dto.ws.SyncResponse;
+import dev.konradsic.kolabo.model.CrdtOpEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 
 @Service
 public class CrdtOpService {
 
-    private final Map<UUID, CRDTInstance> docCache = new ConcurrentHashMap<>();
-    private final RedisTemplate<String, String> redis;
+    // weighted by estimated heap size, W-TinyLFU admission; documents with connected replicas weigh 0
+    // and are never evicted
+    private final AsyncCache<UUID, DocumentState> docCache;
+    // evicted documents whose snapshot is still being written back, reloading one picks it up again
+    private final Map<UUID, DocumentState> evicting = new ConcurrentHashMap<>();
+    private final RedisTemplate<String, byte[]> redis;
     private final CrdtPersistenceService persistenceService;
+    private final CrdtProperties properties;
+    private final Executor executor;
+    private final MeterRegistry meterRegistry;
+    private final Counter purgedCharacters;
+    private final Counter reclaimedBytes;
+    private final DistributionSummary identifierDepth;
+    private final Counter deltaSyncs;
+    private final Counter snapshotSyncs;
+    private final Logger logger = LoggerFactory.getLogger(CrdtOpService.class);
 
-    public CrdtOpService(RedisTemplate<String, String> redis, CrdtPersistenceService persistenceService) {
+    // a document as stored: its snapshot plus what the op log has beyond it, and the last log sequence
+    private record Stored(CRDTInstance crdt, long logSequence) {}
+
+    public CrdtOpService(RedisTemplate<String, byte[]> redis, CrdtPersistenceService persistenceService, CrdtProperties properties, @Qualifier("crdtExecutor") Executor executor, @Qualifier("crdtLoadExecutor") Executor loadExecutor, MeterRegistry meterRegistry) {
         this.redis = redis;
         this.persistenceService = persistenceService;
+        this.properties = properties;
+        this.executor = executor;
+        this.meterRegistry = meterRegistry;
+        this.docCache = Caffeine.newBuilder()
+            .maximumWeight(properties.getCacheMaxBytes())
+            .weigher((UUID id, DocumentState state) -> weigh(state))
+            .removalListener((UUID id, DocumentState state, RemovalCause cause) -> {
+                if (state != null && cause.wasEvicted()) writeBack(state);
+            })
+            .recordStats()
+            // loads block on redis and the op log, keep them off the common pool
+            .executor(loadExecutor)
+            .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, docCache, "crdtDocuments");
+        this.purgedCharacters = meterRegistry.counter("kolabo.crdt.tombstones.purged");
+        this.reclaimedBytes = meterRegistry.counter("kolabo.crdt.tombstones.reclaimed.bytes");
+        Gauge.builder("kolabo.crdt.tombstones.ratio", this, CrdtOpService::tombstoneRatio)
+            .description("Share of cached characters that are tombstones")
+            .register(meterRegistry);
+        this.identifierDepth = DistributionSummary.builder("kolabo.crdt.identifier.depth")
+            .description("Number of digits in the position of each inserted character")
+            .serviceLevelObjectives(1, 2, 3, 4, 6, 8, 12, 16, 24, 32)
+            .register(meterRegistry);
+        this.deltaSyncs = meterRegistry.counter("kolabo.crdt.sync", "mode", "delta");
+        this.snapshotSyncs = meterRegistry.counter("kolabo.crdt.sync", "mode", "snapshot");
+    }
+
+    // Every touch of a document's CRDT goes through its actor. Ops and replies to replicas complete
+    // asynchronously; reads wait for their turn in the queue.
+
+    public CompletableFuture<List<TextChange>> process(UUID docId, CrdtOp op) {
+        return processBatch(docId, List.of(op));
+    }
+
+    // applies a whole batch (paste, reconnect replay) with one structural update and one snapshot
+    public CompletableFuture<List<TextChange>> processBatch(UUID docId, List<CrdtOp> ops) {
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> {
+            CRDTInstance crdt = state.getCrdt();
+            List<TextChange> changes = crdt.applyBatch(ops);
+            for (CrdtOp op : ops) {
+                if (op instanceof InsertOp insert) identifierDepth.record(insert.position().depth());
+                if (op instanceof InsertRunOp run) recordRunDepth(run);
+            }
+            if (!ops.isEmpty()) persistenceService.saveOps(docId, state.reserveLogSequence(ops.size()), ops);
+            afterChange(state);
+            return changes;
+        });
+    }
+
+    // ops another node already applied and logged, only this node's copy of the state needs them
+    public CompletableFuture<List<TextChange>> applyRemote(UUID docId, List<CrdtOp> ops) {
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> {
+            List<TextChange> changes = state.getCrdt().applyBatch(ops);
+            afterChange(state);
+            return changes;
+        });
+    }
+
+    // This node's whole state, tombstones included, for a node catching up on the document; null when
+    // this node doesn't hold the document itself. A delta against the other node's vector would miss
+    // deletes: every node stamps them with its own clock under the document's site.
+    public CompletableFuture<byte[]> peerState(UUID docId) {
+        DocumentState state = docCache.synchronous().getIfPresent(docId);
+        if (state == null) return CompletableFuture.completedFuture(null);
+        return state.getActor().submit(() -> CrdtSnapshotCodec.encode(state.getCrdt(), true));
+    }
+
+    // Another node's whole state reconciled into this node's copy; returns the resulting ops for the
+    // local replicas. Nothing is logged, the other node did that when it applied them.
+    public CompletableFuture<List<CrdtOp>> applyPeerState(UUID docId, byte[] snapshot) {
+        CRDTInstance other = CrdtSnapshotCodec.decode(snapshot);
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> {
+            List<CrdtOp> ops = state.getCrdt().reconcile(other);
+            if (!ops.isEmpty()) afterChange(state);
+            return ops;
+        });
+    }
+
+    // only affects identifiers allocated from now on, existing positions stay valid under either strategy
+    public void setAllocationStrategy(UUID docId, AllocationStrategy strategy) {
+        DocumentState state = getState(docId);
+        state.getActor().execute(() -> {
+            state.getCrdt().setStrategy(strategy);
+            afterChange(state);
+        }).join();
+    }
+
+    // characters per identifier depth, index 0 is unused
+    public int[] getDepthHistogram(UUID docId) {
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> state.getCrdt().depthHistogram()).join();
+    }
+
+    // what a (re)connecting replica is missing: the ops since its vector, or the compacted document when
+    // tombstones it may still hold were purged or the delta would be larger than the document itself
+    public CompletableFuture<SyncResponse> sync(UUID docId, String replicaId, VersionVector seen) {
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> {
+            CRDTInstance crdt = state.getCrdt();
+            List<CrdtOp> delta = crdt.opsSince(seen);
+            VersionVector vector = crdt.getVector().copy();
+            SyncResponse response;
+            if (delta == null || delta.size() > crdt.visibleLength()) {
+                snapshotSyncs.increment();
+                response = SyncResponse.snapshot(vector, crdt.visibleOps(), crdt.getStrategy());
+            } else {
+                deltaSyncs.increment();
+                response = SyncResponse.delta(vector, delta, crdt.getStrategy());
+            }
+
+            // whatever the replica already had counts as acknowledged
+            state.acknowledge(replicaId, seen);
+            collectGarbage(state);
+            return response;
+        });
+    }
+
+    // the whole current state for a replica that just joined, as runs of visible text with their ids and
+    // positions; replaces replaying the op log on the client
+    public CompletableFuture<SyncResponse> joinSnapshot(UUID docId) {
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> {
+            snapshotSyncs.increment();
+            CRDTInstance crdt = state.getCrdt();
+            return SyncResponse.snapshot(crdt.getVector().copy(), crdt.visibleOps(), crdt.getStrategy());
+        });
+    }
+
+    // --- replicas and tombstone collection ---
+
+    public void registerReplica(UUID docId, String replicaId) {
+        DocumentState state = getState(docId);
+        state.registerReplica(replicaId, new VersionVector());
+        reweigh(state);
+    }
+
+    public void acknowledge(UUID docId, String replicaId, VersionVector vector) {
+        DocumentState state = docCache.synchronous().getIfPresent(docId);
+        if (state == null) return;
+        state.getActor().execute(() -> {
+            state.acknowledge(replicaId, vector);
+            collectGarbage(state);
+        });
+    }
+
+    public void removeReplica(UUID docId, String replicaId) {
+        DocumentState state = docCache.synchronous().getIfPresent(docId);
+        if (state == null) return;
+        state.getActor().execute(() -> {
+            state.removeReplica(replicaId);
+            collectGarbage(state);
+            reweigh(state);
+        });
     }
 
-    public void process(UUID docId, CrdtOp op) {
-        CRDTInstance crdt = docCache.computeIfAbsent(docId, id -> loadOrCreate(id));
+    private void collectGarbage(DocumentState state) {
+        CRDTInstance crdt = state.getCrdt();
+        TombstoneStats stats = crdt.purgeTombstones(state.stableClock());
+        if (stats.characters() == 0) return;
+
+        purgedCharacters.increment(stats.characters());
+        reclaimedBytes.increment(stats.bytes());
+        logger.debug("Purged {} tombstones (~{} bytes) from doc {}", stats.characters(), stats.bytes(), state.getDocId());
+        afterChange(state);
+    }
+
+    // every character of a run shares the depth of its first position
+    private void recordRunDepth(InsertRunOp run) {
+        if (run.position() == null || run.text() == null) return;
+        int depth = run.position().depth();
+        for (int k = 0; k < run.text().length(); k++) identifierDepth.record(depth);
+    }
 
-        if (op instanceof InsertOp insertOp) {
-            crdt.insert(insertOp.value(), null, null);
-        } else if (op instanceof DeleteOp deleteOp) {
-            Character c = crdt.getCharacters().get(deleteOp.charId());
-            if (c != null) c.getMetadata().setDeleted(true);
+    private double tombstoneRatio() {
+        long total = 0;
+        long tombstones = 0;
+        for (DocumentState state : docCache.synchronous().asMap().values()) {
+            total += state.getCrdt().size();
+            tombstones += state.getCrdt().tombstoneCount();
         }
-        persistenceService.saveOp(docId, op);
-        saveSnapshotToRedis(docId, crdt);
+        return total == 0 ? 0 : (double) tombstones / total;
     }
 
-    private CRDTInstance loadOrCreate(UUID docId) {
-        String snapshotJson = redis.opsForValue().get("doc:" + docId + ":snapshot");
-        if (snapshotJson != null) {
-            return persistenceService.deserialize(snapshotJson);
+    // --- caching, loading and snapshots ---
+
+    // the load runs on the cache's executor, concurrent callers for the same document share its future
+    private DocumentState getState(UUID docId) {
+        return docCache.get(docId, this::loadState).join();
+    }
+
+    private DocumentState loadState(UUID docId) {
+        DocumentState previous = evicting.remove(docId);
+        if (previous != null) {
+            previous.setEvicted(false);
+            return previous;
         }
-        return new CRDTInstance(32.0, docId.toString());
+
+        Stored stored = loadOrCreate(docId);
+        DocumentActor actor = new DocumentActor(executor);
+        Gauge gauge = Gauge.builder("kolabo.crdt.actor.queue.depth", actor, DocumentActor::queueDepth)
+            .description("Tasks waiting in a document's actor queue")
+            .tag("document", docId.toString())
+            .register(meterRegistry);
+        return new DocumentState(docId, stored.crdt(), actor, gauge, stored.logSequence());
     }
 
-    private void saveSnapshotToRedis(UUID docId, CRDTInstance crdt) {
-        String json = persistenceService.serialize(crdt);
-        redis.opsForValue().set("doc:" + docId + ":snapshot", json);
+    private int weigh(DocumentState state) {
+        if (state.replicaCount() > 0) return 0;
+        return (int) Math.min(Integer.MAX_VALUE, state.getEstimatedBytes());
     }
 
+    // makes the cache pick up a changed weight
+    private void reweigh(DocumentState state) {
+        docCache.synchronous().asMap().replace(state.getDocId(), state, state);
+    }
+
+    // runs on the actor after every change
+    private void afterChange(DocumentState state) {
+        state.markDirty();
+        if (state.isEvicted()) {
+            flush(state);
+        } else if (state.refreshEstimate()) {
+            reweigh(state);
+        }
+    }
+
+    private void writeBack(DocumentState state) {
+        UUID docId = state.getDocId();
+        state.setEvicted(true);
+        evicting.put(docId, state);
+        state.getActor().execute(() -> {
+            flush(state);
+            if (evicting.remove(docId, state)) meterRegistry.remove(state.getQueueDepthGauge());
+        });
+    }
+
+    // must run on the document's actor
+    private void flush(DocumentState state) {
+        if (!state.isDirty()) return;
+        state.markClean();
+        try {
+            saveSnapshotToRedis(state.getDocId(), state.getCrdt(), state.getLogSequence());
+        } catch (RuntimeException e) {
+            state.markDirty();
+            throw e;
+        }
+    }
+
+    // Another node took the document over: its snapshot is written now, so the new owner loads
+    // everything applied here, and the state is dropped without another write-back.
+    public void release(UUID docId) {
+        DocumentState state = docCache.synchronous().getIfPresent(docId);
+        if (state == null) return;
+        state.getActor().execute(() -> flush(state)).join();
+        docCache.synchronous().asMap().remove(docId, state);
+        meterRegistry.remove(state.getQueueDepthGauge());
+    }
+
+    // Nobody is connected any more: the state leaves the cache now and is written back like an evicted
+    // one, so reconnecting before that finished picks the same state up again.
+    public void hibernate(UUID docId) {
+        DocumentState state = docCache.synchronous().asMap().get(docId);
+        if (state != null && docCache.synchronous().asMap().remove(docId, state)) writeBack(state);
+    }
+
+    // snapshots are written behind: dirty documents are saved periodically and when evicted
+    @Scheduled(fixedDelayString = "${kolabo.crdt.snapshot-flush-interval:5s}")
+    public void flushDirty() {
+        for (DocumentState state : docCache.synchronous().asMap().values()) {
+            if (state.isDirty()) state.getActor().execute(() -> flush(state));
+        }
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        for (DocumentState state : docCache.synchronous().asMap().values()) {
+            try {
+                state.getActor().execute(() -> flush(state)).join();
+            } catch (RuntimeException e) {
+                logger.error("Failed to write back snapshot of doc {}", state.getDocId(), e);
+            }
+        }
+    }
+
+    // Snapshots are written behind, so ops applied after the last one are only in the op log: they are
+    // replayed on top of it. Documents from before server-side state have no snapshot and are rebuilt
+    // from the whole log once; snapshots from before the watermark cover the ops logged without a sequence.
+    private Stored loadOrCreate(UUID docId) {
+        List<byte[]> values = redis.opsForValue().multiGet(List.of(snapshotKey(docId), watermarkKey(docId)));
+        byte[] snapshot = values != null ? values.get(0) : null;
+        CRDTInstance crdt;
+        long watermark;
+        if (snapshot != null) {
+            crdt = persistenceService.deserializeSnapshot(snapshot);
+            watermark = values.get(1) != null ? Long.parseLong(new String(values.get(1), StandardCharsets.US_ASCII)) : 0;
+        } else {
+            crdt = new CRDTInstance(32.0, docId.toString());
+            crdt.setStrategy(properties.getAllocationStrategy());
+            watermark = -1;
+        }
+
+        long sequence = Math.max(watermark, 0);
+        List<CrdtOpEntity> log = persistenceService.getOpsAfter(docId, watermark);
+        if (!log.isEmpty()) {
+            crdt.applyBatch(log.stream().map(persistenceService::deserialize).toList());
+            sequence = Math.max(sequence, log.get(log.size() - 1).getSeq());
+            saveSnapshotToRedis(docId, crdt, sequence);
+            logger.debug("Replayed {} logged ops of doc {} past sequence {}", log.size(), docId, watermark);
+        }
+        return new Stored(crdt, sequence);
+    }
+
+    // the snapshot with the sequence of the last logged op it includes, written in one MSET
+    private void saveSnapshotToRedis(UUID docId, CRDTInstance crdt, long logSequence) {
+        redis.opsForValue().multiSet(Map.of(
+            snapshotKey(docId), persistenceService.serializeSnapshot(crdt),
+            watermarkKey(docId), Long.toString(logSequence).getBytes(StandardCharsets.US_ASCII)
+        ));
+    }
+
+    private static String snapshotKey(UUID docId) {
+        return "doc:" + docId + ":snapshot";
+    }
+
+    private static String watermarkKey(UUID docId) {
+        return "doc:" + docId + ":snapshot:seq";
+    }
+
+    // Builds a new, never opened document from plain text and stores its snapshot directly; the op log
+    // stays empty. Returns the number of characters imported.
+    public int importDocument(UUID docId, Reader reader) throws IOException {
+        CRDTInstance crdt = CRDTInstance.fromText(32.0, docId.toString(), properties.getAllocationStrategy(), reader);
+        saveSnapshotToRedis(docId, crdt, 0);
+        logger.debug("Imported {} characters into doc {}", crdt.visibleLength(), docId);
+        return crdt.visibleLength();
+    }
+
+    // detached copy, the cached instance itself must not leave its actor
     public CRDTInstance getSnapshot(UUID docId) {
-        return docCache.computeIfAbsent(docId, this::loadOrCreate);
+        DocumentState state = getState(docId);
+        byte[] snapshot = state.getActor().submit(() -> CrdtSnapshotCodec.encode(state.getCrdt(), false)).join();
+        return CrdtSnapshotCodec.decode(snapshot);
+    }
+
+    // visible text served from the in-memory document, `to` is clamped to its length
+    public String getText(UUID docId, int from, int to) {
+        DocumentState state = getState(docId);
+        return state.getActor().submit(() -> state.getCrdt().extractText(from, to)).join();
     }
 }
@@ -2,15 +2,21 @@ package dev.konradsic.kolabo.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.konradsic.kolabo.config.CrdtProperties;
 import dev.konradsic.kolabo.crdt.CRDTInstance;
+import dev.konradsic.kolabo.crdt.CrdtSnapshotCodec;
 import dev.konradsic.kolabo.dto.ws.CrdtOp;
 import dev.konradsic.kolabo.dao.CrdtOpDao;
+import dev.konradsic.kolabo.dao.DocumentDao;
 import dev.konradsic.kolabo.model.CrdtOpEntity;
 import dev.konradsic.kolabo.model.Document;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -18,12 +24,32 @@ import java.util.UUID;
 public class CrdtPersistenceService {
 
     private final CrdtOpDao crdtOpDao;
-    private final DocumentService documentService;
+    private final DocumentDao documentDao;
+    private final CrdtProperties crdtProperties;
+    private final TaskExecutor persistExecutor;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    public CrdtPersistenceService(CrdtOpDao crdtOpDao, DocumentService documentService) {
+    public CrdtPersistenceService(CrdtOpDao crdtOpDao, DocumentDao documentDao, CrdtProperties crdtProperties, @Qualifier("crdtPersistExecutor") TaskExecutor persistExecutor) {
         this.crdtOpDao = crdtOpDao;
-        this.documentService = documentService;
+        this.documentDao = documentDao;
+        this.crdtProperties = crdtProperties;
+        this.persistExecutor = persistExecutor;
+    }
+
+    public byte[] serializeSnapshot(CRDTInstance crdt) {
+        return CrdtSnapshotCodec.encode(crdt, crdtProperties.isSnapshotCompression());
+    }
+
+    // binary snapshots, or the JSON ones written before the binary format existed
+    public CRDTInstance deserializeSnapshot(byte[] snapshot) {
+        if (CrdtSnapshotCodec.isBinary(snapshot)) {
+            return CrdtSnapshotCodec.decode(snapshot);
+        }
+        try {
+            return objectMapper.readValue(snapshot, CRDTInstance.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to deserialize CRDT", e);
+        }
     }
 
     public String serialize(CRDTInstance crdt) {
@@ -58,14 +84,24 @@ public class CrdtPersistenceService {
         }
     }
 
-    @Async
-    public void saveOp(UUID docId, CrdtOp crdtOp) {
-        CrdtOpEntity entity = new CrdtOpEntity();
-        Document doc = documentService.getDocumentById(docId);
-        entity.setDocument(doc);
-        entity.setOpJson(serialize(crdtOp));
-        entity.setCreatedAt(LocalDateTime.now());
-        crdtOpDao.save(entity);
+    // Off the document's actor, one insert batch per op batch; the log is only replayed as one batch, so
+    // write order does not matter. The ops take the log places from `firstSeq` on, assigned on the actor.
+    public void saveOps(UUID docId, long firstSeq, List<CrdtOp> ops) {
+        persistExecutor.execute(() -> {
+            // the document exists while it has a live actor, no need to load it for the foreign key
+            Document doc = documentDao.getReferenceById(docId);
+            LocalDateTime now = LocalDateTime.now();
+            List<CrdtOpEntity> entities = new ArrayList<>(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                CrdtOpEntity entity = new CrdtOpEntity();
+                entity.setDocument(doc);
+                entity.setOpJson(serialize(ops.get(i)));
+                entity.setCreatedAt(now);
+                entity.setSeq(firstSeq + i);
+                entities.add(entity);
+            }
+            crdtOpDao.saveAll(entities);
+        });
     }
 
     public List<CrdtOp> getOpsForDocument(UUID docId) {
@@ -74,4 +110,9 @@ public class CrdtPersistenceService {
                 .map(this::deserialize)
                 .toList();
     }
+
+    // the log entries past a snapshot's watermark, in sequence order
+    public List<CrdtOpEntity> getOpsAfter(UUID docId, long seq) {
+        return crdtOpDao.findAllByDocumentIdAndSeqGreaterThanOrderBySeqAsc(docId, seq);
+    }
 }
@@ -0,0 +1,76 @@
+package dev.konradsic.kolabo.service;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Runs the tasks of one document strictly one after another on a shared executor, so its CRDT is only
+// ever touched by one thread at a time. Producers never block: they enqueue on a lock-free queue and
+// at most one drain of the queue is scheduled at any time. Different documents drain in parallel.
+public class DocumentActor {
+
+    // tasks run per drain before the worker is handed back, so one busy document can't starve others
+    private static final int MAX_BATCH = 64;
+
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor executor;
+
+    public DocumentActor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        depth.incrementAndGet();
+        mailbox.add(() -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        schedule();
+        return result;
+    }
+
+    public CompletableFuture<Void> execute(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public int queueDepth() {
+        return depth.get();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void drain() {
+        Runnable task;
+        int ran = 0;
+        while (ran < MAX_BATCH && (task = mailbox.poll()) != null) {
+            depth.decrementAndGet();
+            task.run();
+            ran++;
+        }
+        scheduled.set(false);
+        // a task may have been enqueued after the last poll but before the flag was cleared
+        if (!mailbox.isEmpty()) schedule();
+    }
+}
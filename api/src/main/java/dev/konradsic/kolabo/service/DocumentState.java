@@ -0,0 +1,98 @@
+package dev.konradsic.kolabo.service;
+
+import dev.konradsic.kolabo.crdt.CRDTInstance;
+import dev.konradsic.kolabo.crdt.VersionVector;
+import io.micrometer.core.instrument.Meter;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Server-side state of one open document: the authoritative CRDT plus what every connected
+// replica has acknowledged so far. The CRDT must only be touched from tasks run by the actor.
+public class DocumentState {
+
+    private final UUID docId;
+    private final CRDTInstance crdt;
+    private final DocumentActor actor;
+    private final Meter queueDepthGauge;
+    private final Map<String, VersionVector> replicas = new ConcurrentHashMap<>();
+
+    // changed since the last snapshot write
+    private volatile boolean dirty;
+    // dropped from the cache, changes must be written through until it is picked up again
+    private volatile boolean evicted;
+    // cache weight, refreshed from the actor when the document grew or shrank noticeably
+    private volatile long estimatedBytes;
+    private int weighedSize;
+    // sequence of the last op written to the log, only touched on the actor
+    private long logSequence;
+
+    public DocumentState(UUID docId, CRDTInstance crdt, DocumentActor actor, Meter queueDepthGauge, long logSequence) {
+        this.docId = docId;
+        this.crdt = crdt;
+        this.actor = actor;
+        this.queueDepthGauge = queueDepthGauge;
+        this.logSequence = logSequence;
+        this.estimatedBytes = crdt.estimatedBytes();
+        this.weighedSize = crdt.size();
+    }
+
+    public UUID getDocId() { return docId; }
+    public CRDTInstance getCrdt() { return crdt; }
+    public DocumentActor getActor() { return actor; }
+    public Meter getQueueDepthGauge() { return queueDepthGauge; }
+
+    public long getLogSequence() { return logSequence; }
+    // the first of `count` consecutive log places
+    public long reserveLogSequence(int count) {
+        long first = logSequence + 1;
+        logSequence += count;
+        return first;
+    }
+
+    public boolean isDirty() { return dirty; }
+    public void markDirty() { dirty = true; }
+    public void markClean() { dirty = false; }
+
+    public boolean isEvicted() { return evicted; }
+    public void setEvicted(boolean evicted) { this.evicted = evicted; }
+
+    public long getEstimatedBytes() { return estimatedBytes; }
+
+    // re-estimates the footprint once the size moved by an eighth (at least 1k characters), true if it did
+    public boolean refreshEstimate() {
+        int size = crdt.size();
+        if (Math.abs(size - weighedSize) < Math.max(1024, weighedSize / 8)) return false;
+        weighedSize = size;
+        estimatedBytes = crdt.estimatedBytes();
+        return true;
+    }
+
+    public void registerReplica(String replicaId, VersionVector acknowledged) {
+        replicas.put(replicaId, acknowledged.copy());
+    }
+
+    public void acknowledge(String replicaId, VersionVector vector) {
+        VersionVector acked = replicas.get(replicaId);
+        if (acked != null) acked.merge(vector);
+    }
+
+    public void removeReplica(String replicaId) {
+        replicas.remove(replicaId);
+    }
+
+    public int replicaCount() {
+        return replicas.size();
+    }
+
+    // highest delete stamp of this document that every known replica has seen
+    public int stableClock() {
+        String site = crdt.getSiteId();
+        int stable = crdt.getVector().get(site);
+        for (VersionVector acked : replicas.values()) {
+            stable = Math.min(stable, acked.get(site));
+        }
+        return stable;
+    }
+}
@@ -0,0 +1,59 @@
+package dev.konradsic.kolabo.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+// Consistent hashing of ids onto nodes. Every node is placed on the ring `replicas` times, so when a
+// node joins or leaves only the ids next to its points move, about 1/n of them, and load stays even.
+// Immutable; membership changes build a new ring.
+public final class HashRing {
+
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+    private final Set<String> nodes;
+
+    public HashRing(Collection<String> nodes, int replicas) {
+        this.nodes = Set.copyOf(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < replicas; i++) {
+                // on the (unlikely) collision every node must pick the same owner
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    // null when the ring is empty
+    public String owner(UUID id) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Long, String> point = points.ceilingEntry(mix(id.getMostSignificantBits() ^ Long.rotateLeft(id.getLeastSignificantBits(), 32)));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    // 64-bit FNV-1a, then mixed so neighbouring replica names land far apart
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
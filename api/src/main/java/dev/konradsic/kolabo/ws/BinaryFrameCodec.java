@@ -0,0 +1,270 @@
+package dev.konradsic.kolabo.ws;
+
+import dev.konradsic.kolabo.crdt.Position;
+import dev.konradsic.kolabo.dto.ws.CaretUpdate;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.DeleteRangeOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import dev.konradsic.kolabo.dto.ws.WsMessage;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+// Binary frames of the "kolabo.binary.v1" subprotocol; only ops and carets, everything else stays JSON.
+//
+// frame:  type byte, then
+//   0x01 insert        charId, value, position
+//   0x02 delete        charId
+//   0x03 insertRun     charId, text, position
+//   0x04 deleteRange   startId, endId
+//   0x10 caret         offset                     (client to server)
+//   0x11 caret         userId, offset             (server to client)
+//   0x20 op batch      op frames until the end of the frame
+//
+// Ids are 16 raw bytes, strings a varint byte length plus UTF-8, positions the site string, clock,
+// depth and digits. Varints are unsigned LEB128; digits are zigzag encoded and stored in whole units
+// (low bit 0) when they have no fractional part, as in the snapshot codec.
+final class BinaryFrameCodec {
+
+    static final String PROTOCOL = "kolabo.binary.v1";
+
+    private static final byte INSERT = 0x01;
+    private static final byte DELETE = 0x02;
+    private static final byte INSERT_RUN = 0x03;
+    private static final byte DELETE_RANGE = 0x04;
+    private static final byte CARET = 0x10;
+    private static final byte CARET_FROM = 0x11;
+    private static final byte BATCH = 0x20;
+
+    private BinaryFrameCodec() {}
+
+    // one op as a plain op frame, several as a batch; the result is read-only and meant to be shared
+    static ByteBuffer encodeOps(List<CrdtOp> ops) {
+        Writer out = new Writer(32 * ops.size() + 1);
+        if (ops.size() != 1) out.writeByte(BATCH);
+        for (CrdtOp op : ops) writeOp(out, op);
+        return out.toBuffer();
+    }
+
+    static ByteBuffer encodeCaret(UUID userId, int offset) {
+        Writer out = new Writer(24);
+        out.writeByte(CARET_FROM);
+        out.writeUuid(userId);
+        out.writeVarint(offset);
+        return out.toBuffer();
+    }
+
+    // several op frames as one batch frame
+    static ByteBuffer merge(List<ByteBuffer> frames) {
+        int size = 1;
+        for (ByteBuffer frame : frames) size += frame.remaining();
+        ByteBuffer merged = ByteBuffer.allocate(size);
+        merged.put(BATCH);
+        for (ByteBuffer frame : frames) {
+            ByteBuffer body = frame.duplicate();
+            if (isBatch(body)) body.position(body.position() + 1);
+            merged.put(body);
+        }
+        return merged.flip().asReadOnlyBuffer();
+    }
+
+    static boolean isBatch(ByteBuffer frame) {
+        return frame.hasRemaining() && frame.get(frame.position()) == BATCH;
+    }
+
+    // the op or caret of a single-message client frame; IllegalArgumentException when it is malformed
+    static WsMessage decode(ByteBuffer frame) {
+        try {
+            Reader in = new Reader(frame.duplicate());
+            byte type = in.readByte();
+            WsMessage message = type == CARET ? new CaretUpdate(in.readVarint()) : readOp(in, type);
+            if (in.hasRemaining()) throw new IllegalArgumentException("Trailing bytes in binary frame");
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary frame", e);
+        }
+    }
+
+    // the ops of a batch frame
+    static List<CrdtOp> decodeBatch(ByteBuffer frame) {
+        try {
+            Reader in = new Reader(frame.duplicate());
+            if (in.readByte() != BATCH) throw new IllegalArgumentException("Not a batch frame");
+            List<CrdtOp> ops = new ArrayList<>();
+            while (in.hasRemaining()) ops.add(readOp(in, in.readByte()));
+            return ops;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary frame", e);
+        }
+    }
+
+    private static void writeOp(Writer out, CrdtOp op) {
+        if (op instanceof InsertOp insert) {
+            out.writeByte(INSERT);
+            out.writeUuid(insert.charId());
+            out.writeString(insert.value());
+            out.writePosition(insert.position());
+        } else if (op instanceof DeleteOp delete) {
+            out.writeByte(DELETE);
+            out.writeUuid(delete.charId());
+        } else if (op instanceof InsertRunOp run) {
+            out.writeByte(INSERT_RUN);
+            out.writeUuid(run.charId());
+            out.writeString(run.text());
+            out.writePosition(run.position());
+        } else if (op instanceof DeleteRangeOp range) {
+            out.writeByte(DELETE_RANGE);
+            out.writeUuid(range.startId());
+            out.writeUuid(range.endId());
+        }
+    }
+
+    private static CrdtOp readOp(Reader in, byte type) {
+        return switch (type) {
+            case INSERT -> new InsertOp(in.readUuid(), in.readString(), in.readPosition());
+            case DELETE -> new DeleteOp(in.readUuid());
+            case INSERT_RUN -> new InsertRunOp(in.readUuid(), in.readString(), in.readPosition());
+            case DELETE_RANGE -> new DeleteRangeOp(in.readUuid(), in.readUuid());
+            default -> throw new IllegalArgumentException("Unknown binary frame type " + type);
+        };
+    }
+
+    // --- primitive encoding ---
+
+    private static final class Writer {
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeUuid(UUID id) {
+            writeLong(id.getMostSignificantBits());
+            writeLong(id.getLeastSignificantBits());
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) buf[pos++] = (byte) (v >>> shift);
+        }
+
+        void writeVarint(int v) {
+            writeVarlong(v & 0xFFFFFFFFL);
+        }
+
+        void writeVarlong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writePosition(Position position) {
+            writeString(position.getSiteId());
+            writeVarint(position.getClock());
+            writeVarint(position.depth());
+            for (int i = 0; i < position.depth(); i++) {
+                long digit = position.digit(i);
+                if ((digit & (Position.UNIT - 1)) == 0) writeVarlong(zigzag(digit >> 16) << 1);
+                else writeVarlong(zigzag(digit) << 1 | 1);
+            }
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(buf, 0, pos).slice().asReadOnlyBuffer();
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buf;
+
+        Reader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        boolean hasRemaining() {
+            return buf.hasRemaining();
+        }
+
+        byte readByte() {
+            return buf.get();
+        }
+
+        UUID readUuid() {
+            return new UUID(buf.getLong(), buf.getLong());
+        }
+
+        int readVarint() {
+            long v = readVarlong();
+            if (v > 0xFFFFFFFFL) throw new IllegalArgumentException("Varint out of range");
+            return (int) v;
+        }
+
+        long readVarlong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf.get();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        String readString() {
+            int length = readVarint();
+            if (length < 0 || length > buf.remaining()) throw new IllegalArgumentException("String out of range");
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Position readPosition() {
+            String site = readString();
+            int clock = readVarint();
+            int depth = readVarint();
+            if (depth > buf.remaining()) throw new IllegalArgumentException("Position out of range");
+            long[] digits = new long[depth];
+            for (int i = 0; i < depth; i++) {
+                long v = readVarlong();
+                long digit = unzigzag(v >>> 1);
+                digits[i] = (v & 1) == 0 ? digit << 16 : digit;
+            }
+            return Position.of(digits, site, clock);
+        }
+
+        private static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
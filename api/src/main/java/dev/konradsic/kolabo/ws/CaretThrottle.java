@@ -0,0 +1,65 @@
+package dev.konradsic.kolabo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Latest-wins caret updates: a user's caret is remembered until the next tick and only the newest
+// offset is relayed, so a user moving their cursor sends at most one update per `interval`. Each tick
+// hands over the carets of a document together. A zero interval relays every update right away.
+class CaretThrottle {
+
+    // sender is null for carets relayed from another node
+    record Caret(WebSocketSession sender, UUID userId, int offset) {}
+
+    private final BiConsumer<UUID, Collection<Caret>> deliver;
+    private final boolean immediate;
+    // by document, then by user; a document's map is only written inside compute so a tick can take it whole
+    private final Map<UUID, Map<UUID, Caret>> pending = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(CaretThrottle.class);
+
+    CaretThrottle(ScheduledExecutorService scheduler, Duration interval, BiConsumer<UUID, Collection<Caret>> deliver) {
+        this.deliver = deliver;
+        this.immediate = interval.isZero() || interval.isNegative();
+        if (!immediate) {
+            long nanos = interval.toNanos();
+            scheduler.scheduleAtFixedRate(this::tick, nanos, nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void update(UUID docId, WebSocketSession sender, UUID userId, int offset) {
+        Caret caret = new Caret(sender, userId, offset);
+        if (immediate) {
+            deliver.accept(docId, List.of(caret));
+            return;
+        }
+        pending.compute(docId, (k, carets) -> {
+            if (carets == null) carets = new ConcurrentHashMap<>();
+            carets.put(userId, caret);
+            return carets;
+        });
+    }
+
+    private void tick() {
+        for (UUID docId : pending.keySet()) {
+            Map<UUID, Caret> carets = pending.remove(docId);
+            if (carets == null) continue;
+            try {
+                deliver.accept(docId, carets.values());
+            } catch (Exception e) {
+                // a failing tick would cancel every later one
+                logger.error("Failed to relay carets of doc {}", docId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dev.konradsic.kolabo.ws;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.konradsic.kolabo.config.ClusterProperties;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.service.ClusterMembership;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Relays what happens to a document between nodes over one redis channel per document. A node
+// subscribes while it has local sessions of the document and hands what other nodes publish to
+// them; its own messages come back from redis too and are dropped by node id. Publishes are queued
+// and written as one pipelined batch per turn of the publish thread.
+@Component
+public class ClusterBus {
+
+    // one published message; exactly one of the fields besides node is set
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Message(
+        String node,
+        List<CrdtOp> ops,
+        List<RemoteCaret> carets,
+        RemoteUserEvent userEvent,
+        // a node that just subscribed asks the others for their state
+        Boolean catchUp,
+        PeerState state
+    ) {}
+
+    // a node's whole document state (see CrdtSnapshotCodec) for the node that asked for it
+    public record PeerState(String requester, byte[] snapshot) {}
+
+    public record RemoteCaret(UUID userId, int offset) {}
+
+    // a user's first session on the publishing node opened, or its last one closed
+    public record RemoteUserEvent(UUID userId, boolean joined) {}
+
+    private record Pending(byte[] channel, Message message) {}
+
+    private final String nodeId;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ClusterProperties properties;
+    private final RedisTemplate<String, byte[]> redis;
+    private final RedisMessageListenerContainer container;
+    private final Executor publishExecutor;
+    private final Map<UUID, MessageListener> listeners = new ConcurrentHashMap<>();
+    private final Queue<Pending> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean publishing = new AtomicBoolean();
+    private final Logger logger = LoggerFactory.getLogger(ClusterBus.class);
+
+    public ClusterBus(ClusterProperties properties, ClusterMembership membership, RedisTemplate<String, byte[]> redis, RedisMessageListenerContainer container, @Qualifier("clusterPublishExecutor") Executor publishExecutor) {
+        this.properties = properties;
+        this.nodeId = membership.getNodeId();
+        this.redis = redis;
+        this.container = container;
+        this.publishExecutor = publishExecutor;
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    // true when this call subscribed, false when the node already was or relay is off
+    public boolean subscribe(UUID docId, Consumer<Message> handler) {
+        if (!isEnabled()) return false;
+        boolean[] added = {false};
+        listeners.computeIfAbsent(docId, k -> {
+            MessageListener listener = (message, pattern) -> receive(docId, message.getBody(), handler);
+            container.addMessageListener(listener, new ChannelTopic(channel(docId)));
+            added[0] = true;
+            return listener;
+        });
+        return added[0];
+    }
+
+    public void unsubscribe(UUID docId) {
+        MessageListener listener = listeners.remove(docId);
+        if (listener != null) container.removeMessageListener(listener, new ChannelTopic(channel(docId)));
+    }
+
+    public void publishOps(UUID docId, List<CrdtOp> ops) {
+        publish(docId, new Message(nodeId, ops, null, null, null, null));
+    }
+
+    public void publishCarets(UUID docId, List<RemoteCaret> carets) {
+        publish(docId, new Message(nodeId, null, carets, null, null, null));
+    }
+
+    public void publishUserEvent(UUID docId, UUID userId, boolean joined) {
+        publish(docId, new Message(nodeId, null, null, new RemoteUserEvent(userId, joined), null, null));
+    }
+
+    public void publishCatchUp(UUID docId) {
+        publish(docId, new Message(nodeId, null, null, null, true, null));
+    }
+
+    public void publishState(UUID docId, String requester, byte[] snapshot) {
+        publish(docId, new Message(nodeId, null, null, null, null, new PeerState(requester, snapshot)));
+    }
+
+    private void publish(UUID docId, Message message) {
+        if (!isEnabled()) return;
+        outgoing.add(new Pending(channel(docId).getBytes(StandardCharsets.UTF_8), message));
+        if (publishing.compareAndSet(false, true)) publishExecutor.execute(this::drain);
+    }
+
+    // everything queued so far in one round trip; encoding happens here, off the callers' threads
+    private void drain() {
+        List<Pending> batch = new ArrayList<>();
+        Pending pending;
+        while ((pending = outgoing.poll()) != null) batch.add(pending);
+        try {
+            if (!batch.isEmpty()) {
+                redis.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Pending p : batch) {
+                        try {
+                            connection.publish(p.channel(), objectMapper.writeValueAsBytes(p.message()));
+                        } catch (IOException e) {
+                            logger.error("Failed to encode cluster message", e);
+                        }
+                    }
+                    return null;
+                });
+            }
+        } catch (Exception e) {
+            logger.error("Failed to publish {} cluster messages", batch.size(), e);
+        } finally {
+            publishing.set(false);
+            if (!outgoing.isEmpty() && publishing.compareAndSet(false, true)) publishExecutor.execute(this::drain);
+        }
+    }
+
+    private void receive(UUID docId, byte[] body, Consumer<Message> handler) {
+        try {
+            Message message = objectMapper.readValue(body, Message.class);
+            if (nodeId.equals(message.node())) return;
+            // states are answers to one node's catch-up
+            if (message.state() != null && !nodeId.equals(message.state().requester())) return;
+            handler.accept(message);
+        } catch (Exception e) {
+            logger.error("Failed to relay cluster message for doc {}", docId, e);
+        }
+    }
+
+    private String channel(UUID docId) {
+        return properties.getChannelPrefix() + docId;
+    }
+}
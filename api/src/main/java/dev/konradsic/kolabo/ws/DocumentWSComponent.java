@@ -1,41 +1,139 @@
 package dev.konradsic.kolabo.ws;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import dev.konradsic.kolabo.config.WsProperties;
+import dev.konradsic.kolabo.dto.ws.AckMessage;
 import dev.konradsic.kolabo.dto.ws.CaretUpdate;
+import dev.konradsic.kolabo.crdt.VersionVector;
 import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.PresenceAck;
+import dev.konradsic.kolabo.dto.ws.SyncRequest;
+import dev.konradsic.kolabo.dto.ws.SyncResponse;
 import dev.konradsic.kolabo.dto.ws.WsMessage;
-import dev.konradsic.kolabo.service.CrdtPersistenceService;
+import dev.konradsic.kolabo.service.ClusterMembership;
+import dev.konradsic.kolabo.service.CrdtOpService;
 import dev.konradsic.kolabo.service.DocumentService;
-import dev.konradsic.kolabo.util.RandomNumberFromUUID;
+import dev.konradsic.kolabo.ws.SessionOutbox.Kind;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.servlet.http.HttpSession;
-import org.antlr.v4.runtime.misc.Pair;
 import org.jspecify.annotations.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
+// Speaks JSON text by default; a client that offers the "kolabo.binary.v1" subprotocol gets ops and carets
+// as compact binary frames (see BinaryFrameCodec) and may send them that way, control messages stay JSON.
 @Component
-public class DocumentWSComponent extends TextWebSocketHandler {
+public class DocumentWSComponent extends AbstractWebSocketHandler implements SubProtocolCapable {
 
-    private final Map<UUID, Set<WebSocketSession>> docSessions = new ConcurrentHashMap<>();
-    private final Map<UUID, Map<UUID, WebSocketSession>> docUsers = new ConcurrentHashMap<>();
-    private final CrdtPersistenceService crdtPersistenceService;
+    private final SessionRegistry registry = new SessionRegistry(this::hibernate);
+    // by session id, every send to a session goes through its outbox
+    private final Map<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
     private final Logger logger = LoggerFactory.getLogger(DocumentWSComponent.class);
 
+    private static final String INGEST_PARSER = "ingestParser";
+    private static final String INGEST_INFLIGHT = "ingestInflight";
+    private static final String BINARY_FRAGMENTS = "binaryFragments";
+    // set until the session's first frame (or the wait for it) decided how it catches up
+    private static final String JOIN_PENDING = "joinPending";
+    // the document is owned by another node, a redirect message with its url precedes this
+    private static final CloseStatus MOVED = new CloseStatus(4301, "moved");
+    // another node owns the document but hasn't advertised where yet; clients reconnect and ask again
+    private static final CloseStatus OWNER_UNKNOWN = CloseStatus.SERVICE_OVERLOAD.withReason("Document owner not reachable yet");
+
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectWriter opListWriter = objectMapper.writerFor(new TypeReference<List<CrdtOp>>() {});
     private final DocumentService documentService;
+    private final CrdtOpService crdtOpService;
+    private final WsProperties wsProperties;
+    private final Executor sendExecutor;
+    private final SessionOutbox.Meters outboxMeters;
+    private final OpBatcher opBatcher;
+    private final CaretThrottle caretThrottle;
+    private final PresenceTracker presence;
+    private final DistributionSummary batchSize;
+    private final ClusterBus clusterBus;
+    private final ClusterMembership membership;
+    private final ScheduledExecutorService batchScheduler;
+    // documents whose clients were just sent to a new owner; kept subscribed to answer its catch-up
+    private final Set<UUID> handingOff = ConcurrentHashMap.newKeySet();
+    // documents this node just took up, until the other nodes' state arrived or the wait for it ran out
+    private final Map<UUID, CompletableFuture<Void>> catchingUp = new ConcurrentHashMap<>();
 
-    public DocumentWSComponent(CrdtPersistenceService crdtPersistenceService, DocumentService documentService) {
-        this.crdtPersistenceService = crdtPersistenceService;
+    public DocumentWSComponent(DocumentService documentService, CrdtOpService crdtOpService, WsProperties wsProperties, @Qualifier("wsSendExecutor") Executor sendExecutor, @Qualifier("wsBatchScheduler") ScheduledExecutorService batchScheduler, ClusterBus clusterBus, ClusterMembership membership, MeterRegistry meterRegistry) {
         this.documentService = documentService;
+        this.crdtOpService = crdtOpService;
+        this.wsProperties = wsProperties;
+        this.sendExecutor = sendExecutor;
+        this.clusterBus = clusterBus;
+        this.membership = membership;
+        this.batchScheduler = batchScheduler;
+        this.outboxMeters = new SessionOutbox.Meters(
+            Timer.builder("kolabo.ws.outbound.send.latency")
+                .description("Time from queueing a frame for a session until it was written")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry),
+            meterRegistry.counter("kolabo.ws.outbound.dropped", "kind", "caret"),
+            meterRegistry.counter("kolabo.ws.outbound.coalesced", "kind", "op"),
+            meterRegistry.counter("kolabo.ws.outbound.overflow.disconnects")
+        );
+        this.batchSize = DistributionSummary.builder("kolabo.ws.op.batch.size")
+            .description("Ops relayed per closed batching window")
+            .register(meterRegistry);
+        this.opBatcher = new OpBatcher(batchScheduler, wsProperties.getOpBatchWindow(), wsProperties.getOpBatchMaxOps(), this::deliver);
+        this.caretThrottle = new CaretThrottle(batchScheduler, wsProperties.getCaretInterval(), this::deliverCarets);
+        this.presence = new PresenceTracker(registry, batchScheduler, wsProperties.getPresenceResyncInterval(),
+            (s, json) -> send(s, Kind.CONTROL, new TextMessage(json)));
+        Gauge.builder("kolabo.ws.outbound.queue.depth", this, DocumentWSComponent::totalQueueDepth)
+            .description("Frames waiting in the outbound queues of all sessions")
+            .register(meterRegistry);
+        Gauge.builder("kolabo.ws.outbound.queue.depth.max", this, DocumentWSComponent::maxQueueDepth)
+            .description("Frames waiting in the fullest outbound queue")
+            .register(meterRegistry);
+        Gauge.builder("kolabo.ws.documents.active", registry, SessionRegistry::documentCount)
+            .description("Documents with at least one connected session")
+            .register(meterRegistry);
+        Gauge.builder("kolabo.ws.sessions.active", registry, SessionRegistry::sessionCount)
+            .description("Sessions connected to a document")
+            .register(meterRegistry);
+        membership.onChange(this::rebalance);
+    }
+
+    // big messages (pastes) arrive in fragments and are parsed as they come instead of being buffered whole
+    @Override
+    public boolean supportsPartialMessages() {
+        return true;
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(BinaryFrameCodec.PROTOCOL);
     }
 
     @Override
@@ -61,103 +159,423 @@ public class DocumentWSComponent extends TextWebSocketHandler {
             return;
         }
 
-        int color = RandomNumberFromUUID.generateInt(userId, 1, 10);
-        docUsers.computeIfAbsent(docId, k -> new ConcurrentHashMap<>()).put(userId, session);
-        List<UUID> currentUsers = new ArrayList<>(docUsers.get(docId).keySet());
-        // map currentUsers with their colors
-        List<Pair<UUID, Map<String, String>>> userData = new ArrayList<>();
-        for (UUID uId : currentUsers) {
-            int userColor = RandomNumberFromUUID.generateInt(uId, 1, 10);
-            userData.add(new Pair<>(uId, Map.of("color", String.valueOf(userColor))));
+        // documents owned by another node are edited there, nothing of them is loaded here
+        if (!membership.isOwner(docId)) {
+            String ownerUrl = membership.ownerUrl(docId);
+            if (ownerUrl == null) {
+                session.close(OWNER_UNKNOWN);
+                return;
+            }
+            session.sendMessage(new TextMessage(redirectMessage(ownerUrl, docId)));
+            session.close(MOVED);
+            return;
         }
-        Map<String, Object> payload = Map.of(
-            "type", "currentUsers",
-            "users", userData
-        );
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(payload)));
-        broadcastUserEvent(docId, userId, "join", Map.of("color", color));
 
-        docSessions.computeIfAbsent(docId, k -> ConcurrentHashMap.newKeySet()).add(session);
+        outboxes.put(session.getId(), new SessionOutbox(session, sendExecutor, wsProperties.getOutboundQueueCapacity(), outboxMeters));
+        limitBlockingSends(session);
+
+        boolean first = registry.join(docId, session);
+        // the user list for this session, a join delta for the others if the user is new to the document
+        if (presence.join(docId, userId, session)) clusterBus.publishUserEvent(docId, userId, true);
+
+        crdtOpService.registerReplica(docId, session.getId());
+        // first local session of the document: other nodes send their state for this node's copy to catch up with
+        if (first && clusterBus.subscribe(docId, m -> onRemote(docId, m))) {
+            awaitCatchUp(docId);
+            clusterBus.publishCatchUp(docId);
+        }
+        // A reconnecting client sends a sync with its version vector as its first frame and only gets what
+        // it lacks. Any other first frame, or none within join-sync-wait, gets the current state instead.
+        session.getAttributes().put(JOIN_PENDING, new AtomicBoolean(true));
+        batchScheduler.schedule(() -> settleJoin(session, docId, null), wsProperties.getJoinSyncWait().toMillis(), TimeUnit.MILLISECONDS);
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-        UUID userId = (UUID) session.getAttributes().get("userId");
         UUID docId = getDocId(session);
 
-        WsMessage msg = objectMapper.readValue(message.getPayload(), WsMessage.class);
+        OpStreamParser parser = (OpStreamParser) session.getAttributes()
+            .computeIfAbsent(INGEST_PARSER, k -> new OpStreamParser(objectMapper, wsProperties.getIngestChunkOps()));
+        // an array of ops is applied chunk by chunk while it streams in, nothing else to do for it here
+        WsMessage msg = parser.feed(message.getPayload(), message.isLast(), chunk -> ingest(session, docId, chunk));
+        if (msg != null) handle(session, docId, msg);
+    }
+
+    // binary fragments are collected until the message is complete; a batch is ingested like an op array
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        ByteBuffer frame = reassemble(session, message);
+        if (frame == null) return;
+
+        UUID docId = getDocId(session);
+        if (!BinaryFrameCodec.isBatch(frame)) {
+            handle(session, docId, BinaryFrameCodec.decode(frame));
+            return;
+        }
+        List<CrdtOp> ops = BinaryFrameCodec.decodeBatch(frame);
+        int chunkOps = wsProperties.getIngestChunkOps();
+        for (int from = 0; from < ops.size(); from += chunkOps) {
+            ingest(session, docId, new ArrayList<>(ops.subList(from, Math.min(ops.size(), from + chunkOps))));
+        }
+    }
+
+    private void handle(WebSocketSession session, UUID docId, WsMessage msg) throws Exception {
+        UUID userId = (UUID) session.getAttributes().get("userId");
+        settleJoin(session, docId, msg);
 
         // Crdt ops
-        if (msg instanceof CrdtOp) {
-            crdtPersistenceService.saveOp(docId, (CrdtOp) msg);
-            logger.trace("Saved CrdtOp for doc {} by user {}", docId, userId);
-            broadcast(docId, session, message);
+        if (msg instanceof CrdtOp op) {
+            // applied and logged on the document's actor, relayed with the next batch
+            crdtOpService.process(docId, op).whenComplete((changes, e) -> {
+                if (e != null) logger.error("Failed to apply CrdtOp for doc {} by user {}", docId, userId, e);
+            });
+            logger.trace("Queued CrdtOp for doc {} by user {}", docId, userId);
+            opBatcher.add(docId, session, List.of(op));
         }
 
-        // Caret update
-        if (msg instanceof CaretUpdate) {
-            Map<String,String> caretData = new HashMap<>();
-            caretData.put("userId", userId.toString());
-            caretData.put("offset", String.valueOf(((CaretUpdate) msg).offset()));
-            broadcast(docId, session, new TextMessage(objectMapper.writeValueAsString(Map.of(
-                "type", "caretUpdate",
-                "data", caretData
-            ))));
+        // Caret update, relayed on the next caret tick unless a newer one replaces it
+        if (msg instanceof CaretUpdate caret) {
+            caretThrottle.update(docId, session, userId, caret.offset());
+        }
+
+        // Replica acknowledged everything up to its version vector
+        if (msg instanceof AckMessage ack && ack.vector() != null) {
+            crdtOpService.acknowledge(docId, session.getId(), ack.vector());
+        }
+
+        // Client's presence version, a resync tick sends the user list again if it stays behind
+        if (msg instanceof PresenceAck presenceAck) {
+            presence.acknowledge(docId, session, presenceAck.version());
+        }
+
+        // (Re)connecting client catching up from its version vector
+        if (msg instanceof SyncRequest sync) {
+            VersionVector seen = sync.vector() != null ? sync.vector() : new VersionVector();
+            reply(session, docId, () -> crdtOpService.sync(docId, session.getId(), seen));
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, @NonNull CloseStatus status) {
-        docSessions.values().forEach(s -> s.remove(session));
-        UUID userId = (UUID) session.getAttributes().get("userId");
         UUID docId = getDocId(session);
-        Map<UUID, WebSocketSession> users = docUsers.get(docId);
-        if (users != null) {
-            users.remove(userId);
-            broadcastUserEvent(docId, userId, "leave", null);
-        }
+        // before leaving, so a hibernating document doesn't keep the replica pinning its tombstones
+        crdtOpService.removeReplica(docId, session.getId());
+        UUID userId = (UUID) session.getAttributes().get("userId");
+        // while the session is still registered, so the document isn't forgotten before the others hear of it
+        if (userId != null && presence.leave(docId, userId, session)) clusterBus.publishUserEvent(docId, userId, false);
+        registry.leave(session);
+        SessionOutbox outbox = outboxes.remove(session.getId());
+        if (outbox != null) outbox.close(status);
     }
 
     // --- helpers ---
 
-    private void broadcast(UUID docId, WebSocketSession sender, TextMessage msg) {
-        docSessions.getOrDefault(docId, Set.of()).forEach(s -> {
-            if (s.isOpen() && s != sender) {
-                try {
-                    s.sendMessage(msg);
-                } catch (Exception ignored) {
-                    logger.error("Failed to send message to session {}", s.getId(), ignored);
-                }
+    // The last local session of a document left; the registry calls this before a later join can
+    // recreate the document. Its pending ops and relay go away and its state is written back and dropped from memory; while
+    // handing it over the grace period does that instead.
+    private void hibernate(UUID docId) {
+        opBatcher.forget(docId);
+        presence.forget(docId);
+        if (handingOff.contains(docId)) return;
+        clusterBus.unsubscribe(docId);
+        crdtOpService.hibernate(docId);
+    }
+
+    // Applies one chunk of a streamed op array on the document's actor, so other documents keep their
+    // turns, and acks the sender with the number of ops applied. The chunk is relayed right away like a
+    // single op, so everything a session sends reaches the others in the order it was sent. Once too
+    // many chunks are in flight this socket is not read further until the oldest one lands.
+    @SuppressWarnings("unchecked")
+    private void ingest(WebSocketSession session, UUID docId, List<CrdtOp> chunk) {
+        settleJoin(session, docId, null);
+        Deque<CompletableFuture<Void>> inflight = (Deque<CompletableFuture<Void>>) session.getAttributes()
+            .computeIfAbsent(INGEST_INFLIGHT, k -> new ArrayDeque<>());
+        inflight.removeIf(CompletableFuture::isDone);
+        while (inflight.size() >= wsProperties.getIngestMaxInflightChunks()) inflight.poll().join();
+
+        inflight.add(crdtOpService.processBatch(docId, chunk).thenRun(() -> {
+            try {
+                send(session, Kind.CONTROL, new TextMessage(objectMapper.writeValueAsString(Map.of(
+                    "type", "ingestAck",
+                    "ops", chunk.size()
+                ))));
+            } catch (Exception e) {
+                logger.error("Failed to ack ingested chunk for doc {}", docId, e);
             }
+        }));
+        opBatcher.add(docId, session, chunk);
+    }
+
+    // Called with a new session's first frame, or null for a streamed op array or once the wait for a
+    // sync ran out; only the first call counts. A sync is answered as usual, anything else means the
+    // client holds nothing it could offer and gets the whole document first.
+    private void settleJoin(WebSocketSession session, UUID docId, WsMessage first) {
+        AtomicBoolean pending = (AtomicBoolean) session.getAttributes().get(JOIN_PENDING);
+        if (pending == null || !pending.compareAndSet(true, false)) return;
+        if (!(first instanceof SyncRequest)) reply(session, docId, () -> crdtOpService.joinSnapshot(docId));
+    }
+
+    // A sync reply or join snapshot, queued once the document's actor produced it. While this node is
+    // catching up on a document it just took up, the reply waits for that, so a client handed over
+    // from the former owner isn't told the document is older than what it already has. Ops relayed in
+    // the meantime may reach the client first and are applied again on top of a snapshot.
+    private void reply(WebSocketSession session, UUID docId, Supplier<CompletableFuture<SyncResponse>> response) {
+        CompletableFuture<Void> caughtUp = catchingUp.getOrDefault(docId, CompletableFuture.completedFuture(null));
+        caughtUp.thenCompose(v -> response.get()).whenComplete((r, e) -> {
+            if (e != null) logger.error("Failed to catch up session {} of doc {}", session.getId(), docId, e);
+            else send(session, Kind.CONTROL, new TextMessage(toJson(r)));
         });
     }
 
-    private void broadcastUserEvent(UUID docId, UUID userId, String action, Map<String, Object> additionalData) {
-        Map<UUID, WebSocketSession> users = docUsers.get(docId);
-        if (users == null) return;
+    // Queues the message for every other session of the document under the given outbox key. Each
+    // encoding is built at most once, when the first session speaking it is reached, and the same
+    // payload (for binary a read-only buffer) is then shared by every recipient's queue.
+    private void broadcast(UUID docId, WebSocketSession sender, Kind kind, String key, Supplier<String> json, Supplier<ByteBuffer> binary) {
+        TextMessage text = null;
+        BinaryMessage bytes = null;
+        for (WebSocketSession s : registry.sessions(docId)) {
+            SessionOutbox outbox = outboxes.get(s.getId());
+            if (outbox == null || !s.isOpen() || s == sender) continue;
+            if (isBinary(s)) {
+                if (bytes == null) bytes = new BinaryMessage(binary.get());
+                outbox.send(kind, key, bytes);
+            } else {
+                if (text == null) text = new TextMessage(json.get());
+                outbox.send(kind, key, text);
+            }
+        }
+    }
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("type", "userEvent");
-        payload.put("action", action);
-        payload.put("userId", userId);
-        if (additionalData != null) {
-            payload.put("data", additionalData);
+    // Sends one closed batching window: every recipient gets one frame with all of the window's ops
+    // except its own. Entries are encoded once per protocol, and recipients that sent nothing in the
+    // window share a single frame; only the senders of the window get frames built for them.
+    // Ops relayed from other nodes come as an entry without a sender; only local ones are published.
+    private void deliver(UUID docId, List<OpBatcher.Entry> entries) {
+        Set<WebSocketSession> senders = new HashSet<>();
+        List<CrdtOp> local = new ArrayList<>();
+        for (OpBatcher.Entry entry : entries) {
+            senders.add(entry.sender());
+            if (entry.sender() != null) local.addAll(entry.ops());
         }
+        if (!local.isEmpty()) {
+            batchSize.record(local.size());
+            clusterBus.publishOps(docId, local);
+        }
+
+        String[] json = new String[entries.size()];
+        ByteBuffer[] binary = new ByteBuffer[entries.size()];
+        WebSocketMessage<?> sharedText = null;
+        WebSocketMessage<?> sharedBinary = null;
+        for (WebSocketSession s : registry.sessions(docId)) {
+            SessionOutbox outbox = outboxes.get(s.getId());
+            if (outbox == null || !s.isOpen()) continue;
+            boolean binaryProtocol = isBinary(s);
+            WebSocketMessage<?> frame;
+            if (senders.contains(s)) {
+                frame = opFrame(entries, s, binaryProtocol, json, binary);
+            } else if (binaryProtocol) {
+                frame = sharedBinary != null ? sharedBinary : (sharedBinary = opFrame(entries, null, true, json, binary));
+            } else {
+                frame = sharedText != null ? sharedText : (sharedText = opFrame(entries, null, false, json, binary));
+            }
+            if (frame != null) outbox.send(Kind.OP, null, frame);
+        }
+    }
 
-        String msg;
+    // the ops of every entry not sent by `excluded`, null when that leaves nothing; fills the encoding caches
+    private WebSocketMessage<?> opFrame(List<OpBatcher.Entry> entries, WebSocketSession excluded, boolean binaryProtocol, String[] json, ByteBuffer[] binary) {
+        List<Integer> included = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).sender() != excluded) included.add(i);
+        }
+        if (included.isEmpty()) return null;
+
+        if (binaryProtocol) {
+            List<ByteBuffer> parts = new ArrayList<>(included.size());
+            for (int i : included) {
+                if (binary[i] == null) binary[i] = BinaryFrameCodec.encodeOps(entries.get(i).ops());
+                parts.add(binary[i]);
+            }
+            return new BinaryMessage(parts.size() == 1 ? parts.get(0) : BinaryFrameCodec.merge(parts));
+        }
+        List<String> parts = new ArrayList<>(included.size());
+        for (int i : included) {
+            if (json[i] == null) {
+                List<CrdtOp> ops = entries.get(i).ops();
+                json[i] = ops.size() == 1 ? toJson(ops.get(0)) : toJson(opListWriter, ops);
+            }
+            parts.add(json[i]);
+        }
+        if (parts.size() == 1) return new TextMessage(parts.get(0));
+        StringJoiner merged = new StringJoiner(",", "[", "]");
+        for (String part : parts) {
+            String elements = SessionOutbox.elements(part);
+            if (!elements.isEmpty()) merged.add(elements);
+        }
+        return new TextMessage(merged.toString());
+    }
+
+    // One tick's carets of a document, keyed by user in the outboxes. The JSON has the shape clients
+    // always got ({"type":"caretUpdate","data":{"userId":..,"offset":".."}}) but is written by hand,
+    // since it is by far the most frequent message. Local carets go to other nodes in one publish.
+    private void deliverCarets(UUID docId, Collection<CaretThrottle.Caret> carets) {
+        List<ClusterBus.RemoteCaret> local = new ArrayList<>();
+        for (CaretThrottle.Caret caret : carets) {
+            broadcast(docId, caret.sender(), Kind.CARET, caret.userId().toString(),
+                () -> "{\"type\":\"caretUpdate\",\"data\":{\"userId\":\"" + caret.userId()
+                    + "\",\"offset\":\"" + caret.offset() + "\"}}",
+                () -> BinaryFrameCodec.encodeCaret(caret.userId(), caret.offset()));
+            if (caret.sender() != null) local.add(new ClusterBus.RemoteCaret(caret.userId(), caret.offset()));
+        }
+        if (!local.isEmpty()) clusterBus.publishCarets(docId, local);
+    }
+
+    // what another node published for a document this node has sessions of; nothing here is published again
+    private void onRemote(UUID docId, ClusterBus.Message message) {
+        if (message.ops() != null) {
+            crdtOpService.applyRemote(docId, message.ops()).whenComplete((changes, e) -> {
+                if (e != null) logger.error("Failed to apply relayed ops for doc {}", docId, e);
+            });
+            deliver(docId, List.of(new OpBatcher.Entry(null, message.ops())));
+        }
+        if (message.carets() != null) {
+            List<CaretThrottle.Caret> carets = new ArrayList<>(message.carets().size());
+            for (ClusterBus.RemoteCaret caret : message.carets()) {
+                carets.add(new CaretThrottle.Caret(null, caret.userId(), caret.offset()));
+            }
+            deliverCarets(docId, carets);
+        }
+        if (message.userEvent() != null) {
+            presence.applyRemote(docId, message.userEvent().userId(), message.userEvent().joined());
+        }
+        if (message.catchUp() != null) {
+            crdtOpService.peerState(docId).thenAccept(state -> {
+                if (state != null) clusterBus.publishState(docId, message.node(), state);
+            });
+        }
+        if (message.state() != null) {
+            crdtOpService.applyPeerState(docId, message.state().snapshot()).whenComplete((ops, e) -> {
+                if (e != null) logger.error("Failed to catch up doc {} with node {}", docId, message.node(), e);
+                else if (!ops.isEmpty()) deliver(docId, List.of(new OpBatcher.Entry(null, ops)));
+                // the first answer is the one that matters: after a handoff only the former owner has more
+                CompletableFuture<Void> caughtUp = catchingUp.remove(docId);
+                if (caughtUp != null) caughtUp.complete(null);
+            });
+        }
+    }
+
+    // holds join replies of the document until the first peer state was applied, or catch-up-wait
+    // passed without one (no other node had the document open)
+    private void awaitCatchUp(UUID docId) {
+        CompletableFuture<Void> caughtUp = new CompletableFuture<>();
+        CompletableFuture<Void> previous = catchingUp.put(docId, caughtUp);
+        if (previous != null) previous.complete(null);
+        batchScheduler.schedule(() -> {
+            if (catchingUp.remove(docId, caughtUp)) caughtUp.complete(null);
+        }, membership.getCatchUpWait().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Runs after the ownership ring changed. Clients of documents another node owns now are told
+    // where to reconnect once their queued frames are out. This node stays subscribed for a grace
+    // period to answer the new owner's catch-up, then writes its snapshot and drops the state.
+    private void rebalance() {
+        for (UUID docId : registry.documents()) {
+            if (membership.isOwner(docId) || !handingOff.add(docId)) continue;
+            // an owner that hasn't advertised its url yet gets the clients once they reconnect and it has
+            String ownerUrl = membership.ownerUrl(docId);
+
+            logger.info("Handing doc {} over to {}", docId, ownerUrl != null ? ownerUrl : "a node without a known url");
+            TextMessage redirect = ownerUrl != null ? new TextMessage(redirectMessage(ownerUrl, docId)) : null;
+            for (WebSocketSession s : registry.sessions(docId)) {
+                SessionOutbox outbox = outboxes.get(s.getId());
+                if (outbox == null) continue;
+                if (redirect != null) outbox.send(Kind.CONTROL, null, redirect);
+                outbox.closeAfter(redirect != null ? MOVED : OWNER_UNKNOWN);
+            }
+            batchScheduler.schedule(() -> finishHandoff(docId), membership.getHandoffGrace().toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void finishHandoff(UUID docId) {
+        handingOff.remove(docId);
+        if (!registry.sessions(docId).isEmpty()) return;
         try {
-            msg = objectMapper.writeValueAsString(payload);
+            clusterBus.unsubscribe(docId);
+            crdtOpService.release(docId);
+        } catch (Exception e) {
+            logger.error("Failed to release doc {} after handing it over", docId, e);
+        }
+    }
+
+    private static String redirectMessage(String ownerUrl, UUID docId) {
+        return "{\"type\":\"redirect\",\"url\":\"" + ownerUrl + "/ws/document/" + docId + "\"}";
+    }
+
+    private void send(WebSocketSession session, Kind kind, TextMessage msg) {
+        SessionOutbox outbox = outboxes.get(session.getId());
+        if (outbox != null) outbox.send(kind, null, msg);
+    }
+
+    private static boolean isBinary(WebSocketSession session) {
+        return BinaryFrameCodec.PROTOCOL.equals(session.getAcceptedProtocol());
+    }
+
+    // the whole binary message once its last fragment arrived, null before that
+    private ByteBuffer reassemble(WebSocketSession session, BinaryMessage message) throws Exception {
+        ByteArrayOutputStream fragments = (ByteArrayOutputStream) session.getAttributes().get(BINARY_FRAGMENTS);
+        if (fragments == null && message.isLast()) return message.getPayload();
+
+        if (fragments == null) {
+            fragments = new ByteArrayOutputStream();
+            session.getAttributes().put(BINARY_FRAGMENTS, fragments);
+        }
+        ByteBuffer payload = message.getPayload();
+        if (fragments.size() + payload.remaining() > wsProperties.getBinaryMessageLimit()) {
+            session.getAttributes().remove(BINARY_FRAGMENTS);
+            session.close(CloseStatus.TOO_BIG_TO_PROCESS);
+            return null;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        fragments.write(bytes);
+        if (!message.isLast()) return null;
+
+        session.getAttributes().remove(BINARY_FRAGMENTS);
+        return ByteBuffer.wrap(fragments.toByteArray());
+    }
+
+    private String toJson(Object value) {
+        return toJson(objectMapper.writer(), value);
+    }
+
+    private static String toJson(ObjectWriter writer, Object value) {
+        try {
+            return writer.writeValueAsString(value);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    // a drain thread must not hang on a client that stopped reading; Tomcat honours this per session
+    private void limitBlockingSends(WebSocketSession session) {
+        if (!(session instanceof NativeWebSocketSession nativeSession)) return;
+        jakarta.websocket.Session ws = nativeSession.getNativeSession(jakarta.websocket.Session.class);
+        if (ws != null) {
+            ws.getUserProperties().put("org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT", wsProperties.getSendTimeout().toMillis());
+        }
+    }
 
-        users.values().forEach(session -> {
-            try {
-                if (session.isOpen() && session.getAttributes().get("userId") != userId) session.sendMessage(new TextMessage(msg));
-            } catch (Exception ignored) {}
-        });
+    private double totalQueueDepth() {
+        long depth = 0;
+        for (SessionOutbox outbox : outboxes.values()) depth += outbox.depth();
+        return depth;
     }
 
+    private double maxQueueDepth() {
+        int max = 0;
+        for (SessionOutbox outbox : outboxes.values()) max = Math.max(max, outbox.depth());
+        return max;
+    }
 
     private UUID getDocId(WebSocketSession session) {
         String path = Objects.requireNonNull(session.getUri()).getPath();
@@ -0,0 +1,97 @@
+package dev.konradsic.kolabo.ws;
+
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Collects the ops relayed to a document for a short window and hands them over together, so a
+// document with many typists sends one frame per recipient per window instead of one per keystroke.
+// A window closes when it is `window` old or holds `maxOps` ops, whichever comes first; a zero window
+// hands every op over right away. Windows of one document are delivered one at a time and in order.
+class OpBatcher {
+
+    // ops relayed for one sender, in arrival order
+    record Entry(WebSocketSession sender, List<CrdtOp> ops) {}
+
+    private static final class Window {
+        // guarded by this
+        private List<Entry> entries = new ArrayList<>();
+        private int ops;
+        private ScheduledFuture<?> timer;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long windowNanos;
+    private final int maxOps;
+    private final BiConsumer<UUID, List<Entry>> deliver;
+    private final Map<UUID, Window> windows = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(OpBatcher.class);
+
+    OpBatcher(ScheduledExecutorService scheduler, Duration window, int maxOps, BiConsumer<UUID, List<Entry>> deliver) {
+        this.scheduler = scheduler;
+        this.windowNanos = window.toNanos();
+        this.maxOps = maxOps;
+        this.deliver = deliver;
+    }
+
+    void add(UUID docId, WebSocketSession sender, List<CrdtOp> ops) {
+        if (windowNanos <= 0) {
+            deliver.accept(docId, List.of(new Entry(sender, ops)));
+            return;
+        }
+        Window w = windows.computeIfAbsent(docId, k -> new Window());
+        synchronized (w) {
+            w.entries.add(new Entry(sender, ops));
+            w.ops += ops.size();
+            if (w.ops >= maxOps) {
+                flush(docId, w);
+            } else if (w.timer == null) {
+                w.timer = scheduler.schedule(() -> expire(docId, w), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    // the document has no sessions left; whatever is pending goes out now
+    void forget(UUID docId) {
+        Window w = windows.remove(docId);
+        if (w == null) return;
+        synchronized (w) {
+            flush(docId, w);
+        }
+    }
+
+    private void expire(UUID docId, Window w) {
+        try {
+            synchronized (w) {
+                flush(docId, w);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to deliver batched ops for doc {}", docId, e);
+        }
+    }
+
+    // caller holds the window's lock
+    private void flush(UUID docId, Window w) {
+        if (w.timer != null) {
+            w.timer.cancel(false);
+            w.timer = null;
+        }
+        if (w.entries.isEmpty()) return;
+        List<Entry> entries = w.entries;
+        w.entries = new ArrayList<>();
+        w.ops = 0;
+        deliver.accept(docId, entries);
+    }
+}
@@ -0,0 +1,158 @@
+package dev.konradsic.kolabo.ws;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.DeleteRangeOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import dev.konradsic.kolabo.dto.ws.WsMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Parses one socket's incoming text as it arrives in fragments. A message that is a JSON array of ops
+// is decoded op by op and handed out in chunks of at most `chunkOps`, so a huge paste never exists as
+// one string or one list; any other message is collected as tokens and decoded once it is complete.
+class OpStreamParser {
+
+    private final ObjectMapper objectMapper;
+    private final int chunkOps;
+
+    // state of the message currently arriving, reset after its last fragment
+    private JsonParser parser;
+    private ByteArrayFeeder feeder;
+    private TokenBuffer element;
+    private boolean array;
+    private int depth;
+    private List<CrdtOp> chunk;
+    // high surrogate at the end of a fragment, held back until its pair arrives
+    private char pendingHigh;
+
+    OpStreamParser(ObjectMapper objectMapper, int chunkOps) {
+        this.objectMapper = objectMapper;
+        this.chunkOps = chunkOps;
+    }
+
+    // feeds the next fragment; full chunks of an op array go to onChunk, a complete non-array message is returned
+    WsMessage feed(String fragment, boolean last, Consumer<List<CrdtOp>> onChunk) throws IOException {
+        if (parser == null && last && !startsArray(fragment)) {
+            return checked(objectMapper.readValue(fragment, WsMessage.class));
+        }
+        try {
+            if (parser == null) start();
+            byte[] bytes = encode(fragment, last);
+            feeder.feedInput(bytes, 0, bytes.length);
+            if (last) feeder.endOfInput();
+            WsMessage message = drain(onChunk);
+            if (last) {
+                if (depth != 0) throw new IOException("Incomplete JSON message");
+                if (chunk != null && !chunk.isEmpty()) onChunk.accept(chunk);
+                reset();
+            }
+            return message;
+        } catch (IOException | RuntimeException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    private WsMessage drain(Consumer<List<CrdtOp>> onChunk) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            if (depth == 0) {
+                if (token == JsonToken.START_ARRAY) {
+                    array = true;
+                    chunk = new ArrayList<>(chunkOps);
+                    depth++;
+                    continue;
+                }
+                element = new TokenBuffer(objectMapper, false);
+            }
+            if (token.isStructStart()) depth++;
+            if (token.isStructEnd()) depth--;
+
+            if (array && depth == 0) continue; // end of the op array
+            if (array && depth == 1 && !token.isStructEnd()) throw new IOException("Expected an op object, got " + token);
+            if (array && depth == 2 && token.isStructStart()) element = new TokenBuffer(objectMapper, false);
+            element.copyCurrentEvent(parser);
+
+            if (array && depth == 1) {
+                chunk.add(checked(objectMapper.readValue(element.asParser(objectMapper), CrdtOp.class)));
+                element = null;
+                if (chunk.size() >= chunkOps) {
+                    onChunk.accept(chunk);
+                    chunk = new ArrayList<>(chunkOps);
+                }
+            } else if (!array && depth == 0) {
+                WsMessage message = checked(objectMapper.readValue(element.asParser(objectMapper), WsMessage.class));
+                element = null;
+                return message;
+            }
+        }
+        return null;
+    }
+
+    // ops missing a field they can't be applied without are rejected like malformed JSON, before they
+    // reach the document's actor and fail its whole batch
+    private static <T extends WsMessage> T checked(T message) throws IOException {
+        boolean valid = true;
+        if (message instanceof InsertOp insert) {
+            valid = insert.charId() != null && insert.position() != null && insert.value() != null && !insert.value().isEmpty();
+        } else if (message instanceof InsertRunOp run) {
+            valid = run.charId() != null && run.position() != null && run.text() != null && !run.text().isEmpty();
+        } else if (message instanceof DeleteOp delete) {
+            valid = delete.charId() != null;
+        } else if (message instanceof DeleteRangeOp range) {
+            valid = range.startId() != null && range.endId() != null;
+        }
+        if (!valid) throw new IOException("Incomplete op: " + message);
+        return message;
+    }
+
+    private void start() throws IOException {
+        parser = objectMapper.getFactory().createNonBlockingByteArrayParser();
+        feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    private void reset() {
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException ignored) {}
+        }
+        parser = null;
+        feeder = null;
+        element = null;
+        array = false;
+        depth = 0;
+        chunk = null;
+        pendingHigh = 0;
+    }
+
+    // utf-8 bytes of a fragment, never splitting a surrogate pair between two fragments
+    private byte[] encode(String fragment, boolean last) {
+        String text = pendingHigh != 0 ? pendingHigh + fragment : fragment;
+        pendingHigh = 0;
+        if (!last && !text.isEmpty() && Character.isHighSurrogate(text.charAt(text.length() - 1))) {
+            pendingHigh = text.charAt(text.length() - 1);
+            text = text.substring(0, text.length() - 1);
+        }
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean startsArray(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (!Character.isWhitespace(c)) return c == '[';
+        }
+        return false;
+    }
+}
@@ -0,0 +1,202 @@
+package dev.konradsic.kolabo.ws;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import dev.konradsic.kolabo.util.RandomNumberFromUUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Who is in a document, as a versioned set of users. A joining session gets the whole list once;
+// after that every session only hears about users arriving and leaving (a user with several sessions,
+// here or on other nodes, arrives with the first and leaves with the last), each change bumping the
+// document's version. The messages are sent while holding the document, so every session sees the
+// versions in order.
+// Clients may report the version they are at (presenceAck); a session still behind a version that is
+// older than one resync interval gets the whole list again.
+class PresenceTracker {
+
+    private static final long NOT_REPORTED = -1;
+
+    // the JSON pieces of a user, built once: its entry in the user list (the {a, b} shape of the
+    // pair clients always got) and the userEvent messages up to their version
+    private record UserRecord(String entry, String join, String leave) {}
+
+    private static final class Member {
+        final UserRecord record;
+        int localSessions;
+        // other nodes the user is connected through
+        int remoteNodes;
+
+        Member(UserRecord record) {
+            this.record = record;
+        }
+
+        boolean isGone() {
+            return localSessions == 0 && remoteNodes == 0;
+        }
+    }
+
+    private static final class DocPresence {
+        final Map<UUID, Member> members = new LinkedHashMap<>();
+        // local sessions, with the version they last reported
+        final Map<WebSocketSession, Long> sessions = new HashMap<>();
+        long version;
+        // the version at the previous resync tick
+        long staleBefore;
+        // the user list at `version`, null once it changed
+        String snapshot;
+    }
+
+    private final SessionRegistry registry;
+    private final BiConsumer<WebSocketSession, String> send;
+    private final LoadingCache<UUID, UserRecord> records = Caffeine.newBuilder()
+        .maximumSize(10_000)
+        .build(PresenceTracker::record);
+    private final Map<UUID, DocPresence> docs = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(PresenceTracker.class);
+
+    PresenceTracker(SessionRegistry registry, ScheduledExecutorService scheduler, Duration resyncInterval, BiConsumer<WebSocketSession, String> send) {
+        this.registry = registry;
+        this.send = send;
+        if (!resyncInterval.isZero() && !resyncInterval.isNegative()) {
+            long nanos = resyncInterval.toNanos();
+            scheduler.scheduleAtFixedRate(this::resync, nanos, nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // The session (already in the registry) gets the current list. True when it is the user's first
+    // session on this node, which other nodes should hear about.
+    boolean join(UUID docId, UUID userId, WebSocketSession session) {
+        DocPresence doc = docs.computeIfAbsent(docId, k -> new DocPresence());
+        synchronized (doc) {
+            Member member = add(docId, doc, userId);
+            member.localSessions++;
+            doc.sessions.put(session, NOT_REPORTED);
+            send.accept(session, snapshot(doc));
+            return member.localSessions == 1;
+        }
+    }
+
+    // true when it was the user's last session on this node
+    boolean leave(UUID docId, UUID userId, WebSocketSession session) {
+        DocPresence doc = docs.get(docId);
+        if (doc == null) return false;
+        synchronized (doc) {
+            if (doc.sessions.remove(session) == null) return false;
+            Member member = doc.members.get(userId);
+            if (member == null) return false;
+            member.localSessions--;
+            removeIfGone(docId, doc, userId, member);
+            return member.localSessions == 0;
+        }
+    }
+
+    // a user arriving at or leaving a document through another node; nothing to do without local sessions
+    void applyRemote(UUID docId, UUID userId, boolean joined) {
+        DocPresence doc = docs.get(docId);
+        if (doc == null) return;
+        synchronized (doc) {
+            if (joined) {
+                add(docId, doc, userId).remoteNodes++;
+                return;
+            }
+            Member member = doc.members.get(userId);
+            if (member == null || member.remoteNodes == 0) return;
+            member.remoteNodes--;
+            removeIfGone(docId, doc, userId, member);
+        }
+    }
+
+    void acknowledge(UUID docId, WebSocketSession session, long version) {
+        DocPresence doc = docs.get(docId);
+        if (doc == null) return;
+        synchronized (doc) {
+            doc.sessions.computeIfPresent(session, (s, reported) -> Math.max(reported, version));
+        }
+    }
+
+    // the document has no local sessions any more
+    void forget(UUID docId) {
+        docs.remove(docId);
+    }
+
+    // the user's member entry, announced to the others when it's new
+    private Member add(UUID docId, DocPresence doc, UUID userId) {
+        Member member = doc.members.get(userId);
+        if (member != null) return member;
+        member = new Member(records.get(userId));
+        doc.members.put(userId, member);
+        changed(doc);
+        tellOthers(docId, userId, member.record.join() + doc.version + "}");
+        return member;
+    }
+
+    private void removeIfGone(UUID docId, DocPresence doc, UUID userId, Member member) {
+        if (!member.isGone()) return;
+        doc.members.remove(userId);
+        changed(doc);
+        tellOthers(docId, userId, member.record.leave() + doc.version + "}");
+    }
+
+    private static void changed(DocPresence doc) {
+        doc.version++;
+        doc.snapshot = null;
+    }
+
+    // every local session of the document except the user's own
+    private void tellOthers(UUID docId, UUID userId, String json) {
+        for (WebSocketSession s : registry.sessions(docId)) {
+            if (s.isOpen() && !userId.equals(s.getAttributes().get("userId"))) send.accept(s, json);
+        }
+    }
+
+    private static String snapshot(DocPresence doc) {
+        if (doc.snapshot == null) {
+            StringJoiner users = new StringJoiner(",", "[", "]");
+            for (Member member : doc.members.values()) users.add(member.record.entry());
+            doc.snapshot = "{\"type\":\"currentUsers\",\"version\":" + doc.version + ",\"users\":" + users + "}";
+        }
+        return doc.snapshot;
+    }
+
+    private void resync() {
+        for (Map.Entry<UUID, DocPresence> entry : docs.entrySet()) {
+            DocPresence doc = entry.getValue();
+            try {
+                synchronized (doc) {
+                    for (Map.Entry<WebSocketSession, Long> session : doc.sessions.entrySet()) {
+                        long reported = session.getValue();
+                        if (reported == NOT_REPORTED || reported >= doc.staleBefore) continue;
+                        send.accept(session.getKey(), snapshot(doc));
+                        session.setValue(doc.version);
+                    }
+                    doc.staleBefore = doc.version;
+                }
+            } catch (Exception e) {
+                // a failing tick would cancel every later one
+                logger.error("Failed to resync presence of doc {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    private static UserRecord record(UUID userId) {
+        int color = RandomNumberFromUUID.generateInt(userId, 1, 10);
+        return new UserRecord(
+            "{\"a\":\"" + userId + "\",\"b\":{\"color\":\"" + color + "\"}}",
+            "{\"type\":\"userEvent\",\"action\":\"join\",\"userId\":\"" + userId + "\",\"data\":{\"color\":" + color + "},\"version\":",
+            "{\"type\":\"userEvent\",\"action\":\"leave\",\"userId\":\"" + userId + "\",\"version\":"
+        );
+    }
+}
@@ -0,0 +1,239 @@
+package dev.konradsic.kolabo.ws;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Bounded outbound queue of one socket. Everything sent to the session goes through it and is written
+// by at most one drain at a time on the shared send executor, so broadcasters never block on a slow
+// client and the session never sees concurrent sends. Caret updates wait in a lane of their own that
+// is only drained while nothing else is queued, so cursor traffic never delays edits. Over capacity,
+// queued caret updates are dropped first, then every run of adjacent queued ops is merged into one
+// array (or binary batch) frame, so nothing moves past a control frame; if that is not enough the
+// session is closed with a resync hint and the client catches up through a sync request after
+// reconnecting.
+class SessionOutbox {
+
+    enum Kind {
+        // must arrive, in order (user events, snapshots, acks)
+        CONTROL,
+        // must arrive, may be merged into one array frame
+        OP,
+        // only the latest one per key matters, sent only when nothing else is waiting
+        CARET
+    }
+
+    // coalescedOps counts frames saved by merging
+    record Meters(Timer sendLatency, Counter droppedCarets, Counter coalescedOps, Counter disconnects) {}
+
+    static final CloseStatus RESYNC = CloseStatus.SERVICE_OVERLOAD.withReason("resync");
+
+    // frames written per drain before the thread is handed back, so one busy socket can't starve others
+    private static final int MAX_BATCH = 32;
+
+    // payload is a String for text sessions, a shared read-only ByteBuffer for binary ones
+    private record Frame(Kind kind, String key, Object payload, long enqueuedAt) {}
+
+    private final WebSocketSession session;
+    private final Executor executor;
+    private final int capacity;
+    private final Meters meters;
+    private final Logger logger = LoggerFactory.getLogger(SessionOutbox.class);
+
+    // guarded by this; ops and control frames, and the lower-priority caret lane
+    private final Deque<Frame> queue = new ArrayDeque<>();
+    private final Deque<Frame> carets = new ArrayDeque<>();
+    private boolean scheduled;
+    private boolean closed;
+    // set by closeAfter, the session is closed with it once the queue ran empty
+    private CloseStatus closing;
+
+    SessionOutbox(WebSocketSession session, Executor executor, int capacity, Meters meters) {
+        this.session = session;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.meters = meters;
+    }
+
+    void send(Kind kind, String key, WebSocketMessage<?> message) {
+        boolean overflow;
+        boolean schedule;
+        synchronized (this) {
+            if (closed || closing != null) return;
+            Frame frame = new Frame(kind, key, message.getPayload(), System.nanoTime());
+            if (kind == Kind.CARET) {
+                removeCaret(key);
+                carets.add(frame);
+            } else {
+                queue.add(frame);
+            }
+            overflow = depth() > capacity && !relieve();
+            schedule = !overflow && !scheduled;
+            if (schedule) scheduled = true;
+        }
+        if (overflow) {
+            meters.disconnects().increment();
+            logger.warn("Outbound queue of session {} overflowed, closing it for a resync", session.getId());
+            close(RESYNC);
+        } else if (schedule) {
+            executor.execute(this::drain);
+        }
+    }
+
+    synchronized int depth() {
+        return queue.size() + carets.size();
+    }
+
+    // drops everything still queued; closes the socket too unless it already is
+    void close(CloseStatus status) {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.clear();
+            carets.clear();
+        }
+        if (!session.isOpen()) return;
+        executor.execute(() -> {
+            try {
+                session.close(status);
+            } catch (Exception e) {
+                logger.debug("Failed to close session {}", session.getId(), e);
+            }
+        });
+    }
+
+    // closes the session once everything queued so far was written; later sends are ignored
+    void closeAfter(CloseStatus status) {
+        boolean schedule;
+        synchronized (this) {
+            if (closed || closing != null) return;
+            closing = status;
+            schedule = !scheduled;
+            if (schedule) scheduled = true;
+        }
+        if (schedule) executor.execute(this::drain);
+    }
+
+    private void drain() {
+        for (int sent = 0; sent < MAX_BATCH; sent++) {
+            Frame frame;
+            CloseStatus finish = null;
+            synchronized (this) {
+                frame = closed ? null : queue.isEmpty() ? carets.poll() : queue.poll();
+                if (frame == null) {
+                    scheduled = false;
+                    if (!closed) finish = closing;
+                }
+            }
+            if (frame == null) {
+                if (finish != null) close(finish);
+                return;
+            }
+            try {
+                session.sendMessage(frame.payload() instanceof ByteBuffer bytes
+                    ? new BinaryMessage(bytes.duplicate())
+                    : new TextMessage((String) frame.payload()));
+                meters.sendLatency().record(System.nanoTime() - frame.enqueuedAt(), TimeUnit.NANOSECONDS);
+            } catch (Exception e) {
+                logger.debug("Failed to send to session {}, closing it", session.getId(), e);
+                close(RESYNC);
+                synchronized (this) {
+                    scheduled = false;
+                }
+                return;
+            }
+        }
+        executor.execute(this::drain);
+    }
+
+    // an older caret of the same user is stale once a newer one is queued
+    private void removeCaret(String key) {
+        Iterator<Frame> it = carets.iterator();
+        while (it.hasNext()) {
+            Frame frame = it.next();
+            if (frame.key().equals(key)) {
+                it.remove();
+                meters.droppedCarets().increment();
+                return;
+            }
+        }
+    }
+
+    // sheds load in policy order, true once the queue is back within capacity
+    private boolean relieve() {
+        meters.droppedCarets().increment(carets.size());
+        carets.clear();
+        if (queue.size() <= capacity) return true;
+
+        // each run of adjacent op frames merged into one frame at its place
+        List<Frame> kept = new ArrayList<>(queue.size());
+        List<Frame> run = new ArrayList<>();
+        int saved = 0;
+        for (Frame frame : queue) {
+            if (frame.kind() == Kind.OP) {
+                run.add(frame);
+                continue;
+            }
+            saved += flushRun(run, kept);
+            kept.add(frame);
+        }
+        saved += flushRun(run, kept);
+        if (saved == 0) return false;
+
+        queue.clear();
+        queue.addAll(kept);
+        meters.coalescedOps().increment(saved);
+        return queue.size() <= capacity;
+    }
+
+    // appends the run of op frames as one frame and empties it, returns the number of frames saved
+    private static int flushRun(List<Frame> run, List<Frame> kept) {
+        if (run.isEmpty()) return 0;
+        Frame first = run.get(0);
+        if (run.size() == 1) {
+            kept.add(first);
+            run.clear();
+            return 0;
+        }
+        // a session speaks one protocol, so its op frames are either all text or all binary
+        Object payload;
+        if (first.payload() instanceof ByteBuffer) {
+            List<ByteBuffer> parts = new ArrayList<>(run.size());
+            for (Frame frame : run) parts.add((ByteBuffer) frame.payload());
+            payload = BinaryFrameCodec.merge(parts);
+        } else {
+            StringJoiner merged = new StringJoiner(",", "[", "]");
+            for (Frame frame : run) {
+                String elements = elements((String) frame.payload());
+                if (!elements.isEmpty()) merged.add(elements);
+            }
+            payload = merged.toString();
+        }
+        kept.add(new Frame(Kind.OP, null, payload, first.enqueuedAt()));
+        int saved = run.size() - 1;
+        run.clear();
+        return saved;
+    }
+
+    // an op frame is a single op object or an array of them
+    static String elements(String payload) {
+        String json = payload.strip();
+        return json.startsWith("[") ? json.substring(1, json.length() - 1).strip() : json;
+    }
+}
@@ -0,0 +1,99 @@
+package dev.konradsic.kolabo.ws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Who is connected to which document. Sessions are indexed by id too, so leaving touches only the
+// session's own document. A document's entry lives exactly as long as it has sessions: joins and
+// leaves of the same document are serialized by compute. The leave emptying it marks the document
+// as closing and runs `onEmpty` once compute returned; a join meanwhile waits for that to finish
+// before it recreates the entry, so `onEmpty` must not join the document it cleans up.
+class SessionRegistry {
+
+    private final Map<UUID, Set<WebSocketSession>> docs = new ConcurrentHashMap<>();
+    // document by session id
+    private final Map<String, UUID> sessionDocs = new ConcurrentHashMap<>();
+    // documents whose last session left, completed once `onEmpty` ran
+    private final Map<UUID, CompletableFuture<Void>> closing = new ConcurrentHashMap<>();
+    private final Consumer<UUID> onEmpty;
+    private final Logger logger = LoggerFactory.getLogger(SessionRegistry.class);
+
+    SessionRegistry(Consumer<UUID> onEmpty) {
+        this.onEmpty = onEmpty;
+    }
+
+    // true when the session is the document's first
+    boolean join(UUID docId, WebSocketSession session) {
+        sessionDocs.put(session.getId(), docId);
+        while (true) {
+            CompletableFuture<Void> pending = closing.get(docId);
+            if (pending != null) pending.join();
+
+            boolean[] first = {false};
+            boolean[] blocked = {false};
+            docs.compute(docId, (k, sessions) -> {
+                if (sessions == null) {
+                    if (closing.containsKey(k)) {
+                        blocked[0] = true;
+                        return null;
+                    }
+                    sessions = ConcurrentHashMap.newKeySet();
+                    first[0] = true;
+                }
+                sessions.add(session);
+                return sessions;
+            });
+            if (!blocked[0]) return first[0];
+        }
+    }
+
+    // nothing when the session never joined (or already left)
+    void leave(WebSocketSession session) {
+        UUID sessionDoc = sessionDocs.remove(session.getId());
+        if (sessionDoc == null) return;
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        boolean[] emptied = {false};
+        docs.computeIfPresent(sessionDoc, (docId, sessions) -> {
+            sessions.remove(session);
+            if (!sessions.isEmpty()) return sessions;
+            closing.put(docId, closed);
+            emptied[0] = true;
+            return null;
+        });
+        if (!emptied[0]) return;
+
+        try {
+            onEmpty.accept(sessionDoc);
+        } catch (RuntimeException e) {
+            logger.error("Failed to clean up doc {} after its last session left", sessionDoc, e);
+        } finally {
+            closing.remove(sessionDoc, closed);
+            closed.complete(null);
+        }
+    }
+
+    Set<WebSocketSession> sessions(UUID docId) {
+        return docs.getOrDefault(docId, Set.of());
+    }
+
+    // documents with at least one session
+    Set<UUID> documents() {
+        return docs.keySet();
+    }
+
+    int documentCount() {
+        return docs.size();
+    }
+
+    int sessionCount() {
+        return sessionDocs.size();
+    }
+}
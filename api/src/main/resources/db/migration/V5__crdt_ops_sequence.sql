@@ -0,0 +1,3 @@
+-- order of the ops per document as its owner applied them; snapshots record the last one they contain
+ALTER TABLE crdt_ops ADD COLUMN seq BIGINT NOT NULL DEFAULT 0;
+CREATE INDEX crdt_ops_document_seq ON crdt_ops (document_id, seq);
@@ -0,0 +1,246 @@
+package dev.konradsic.kolabo.crdt;
+
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.DeleteRangeOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// applyBatch, runs and ranges included, against the plain per-character path (integrate and delete
+// one op at a time)
+class CRDTBatchTest {
+
+    private static final int CLIENTS = 3;
+
+    @Test
+    void batchesConvergeWithPerCharacterApply() {
+        for (long seed = 1; seed <= 5; seed++) {
+            List<CrdtOp> log = history(seed, 400);
+            CRDTInstance expected = perCharacter(log);
+
+            CRDTInstance batched = new CRDTInstance(32.0, "server");
+            applyInChunks(batched, log, new Random(seed));
+
+            assertSameCharacters(expected, batched);
+        }
+    }
+
+    @Test
+    void convergesWhateverTheInsertOrder() {
+        for (long seed = 1; seed <= 5; seed++) {
+            List<CrdtOp> log = history(seed, 400);
+            CRDTInstance expected = perCharacter(log);
+
+            // inserts carry their own position, so only deletes have to wait for what they delete
+            List<CrdtOp> inserts = new ArrayList<>();
+            List<CrdtOp> deletes = new ArrayList<>();
+            for (CrdtOp op : log) (op instanceof InsertOp ? inserts : deletes).add(op);
+            Random random = new Random(seed);
+            Collections.shuffle(inserts, random);
+            Collections.shuffle(deletes, random);
+            CRDTInstance batched = new CRDTInstance(32.0, "server");
+            applyInChunks(batched, inserts, random);
+            applyInChunks(batched, deletes, random);
+
+            assertSameCharacters(expected, batched);
+        }
+    }
+
+    @Test
+    void runsAndRangesConvergeWithPerCharacterApply() {
+        for (long seed = 1; seed <= 5; seed++) {
+            List<CrdtOp> log = history(seed, 400);
+            CRDTInstance expected = perCharacter(log);
+            List<CrdtOp> compacted = compact(log);
+            assertTrue(compacted.stream().anyMatch(InsertRunOp.class::isInstance));
+            assertTrue(compacted.stream().anyMatch(DeleteRangeOp.class::isInstance));
+
+            CRDTInstance batched = new CRDTInstance(32.0, "server");
+            applyInChunks(batched, compacted, new Random(seed));
+
+            assertSameCharacters(expected, batched);
+        }
+    }
+
+    @Test
+    void rangeDeleteSkipsUnknownAndDeletedCharacters() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "server");
+        UUID id = new UUID(7, 100);
+        crdt.apply(new InsertRunOp(id, "abcdef", new Position(List.of(40.0), "client", 1)));
+        crdt.apply(new DeleteOp(new UUID(7, 102)));
+
+        List<TextChange> changes = crdt.apply(new DeleteRangeOp(new UUID(7, 98), new UUID(7, 103)));
+
+        assertEquals("ef", crdt.extractText());
+        // ab and d, reported as one splice
+        assertEquals(List.of(new TextChange(0, 3, "")), changes);
+        // ranges must stay inside one run
+        assertEquals(List.of(), crdt.apply(new DeleteRangeOp(id, new UUID(8, 105))));
+        assertEquals(List.of(), crdt.apply(new DeleteRangeOp(new UUID(7, 105), id)));
+        assertEquals("ef", crdt.extractText());
+    }
+
+    @Test
+    void reappliedOpsChangeNothing() {
+        List<CrdtOp> log = history(9, 300);
+        CRDTInstance batched = new CRDTInstance(32.0, "server");
+        applyInChunks(batched, log, new Random(9));
+        String text = batched.extractText();
+        int size = batched.size();
+
+        assertEquals(List.of(), batched.applyBatch(log));
+        assertEquals(text, batched.extractText());
+        assertEquals(size, batched.size());
+    }
+
+    // Clients typing runs and deleting spans in their own replicas and catching up on each other's
+    // ops from time to time, so inserts race at the same spots. Returns every op in an order where
+    // each one follows everything its client had seen.
+    static List<CrdtOp> history(long seed, int edits) {
+        Random random = new Random(seed);
+        List<CrdtOp> log = new ArrayList<>();
+        CRDTInstance[] clients = new CRDTInstance[CLIENTS];
+        int[] seen = new int[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            clients[c] = new CRDTInstance(32.0, "client-" + c);
+            clients[c].setStrategy(c == 0 ? AllocationStrategy.LSEQ : AllocationStrategy.MIDPOINT);
+        }
+
+        for (int e = 0; e < edits; e++) {
+            int c = random.nextInt(CLIENTS);
+            CRDTInstance client = clients[c];
+            if (random.nextInt(3) == 0) {
+                for (; seen[c] < log.size(); seen[c]++) applyOne(client, log.get(seen[c]));
+            }
+
+            int length = client.visibleLength();
+            if (length > 0 && random.nextInt(4) == 0) {
+                int at = random.nextInt(length);
+                int count = Math.min(length - at, 1 + random.nextInt(4));
+                List<UUID> ids = new ArrayList<>();
+                for (int k = 0; k < count; k++) ids.add(client.visibleCharacterAt(at + k).getId());
+                for (UUID id : ids) {
+                    client.delete(id);
+                    log.add(new DeleteOp(id));
+                }
+                continue;
+            }
+
+            int at = random.nextInt(length + 1);
+            UUID prev = at > 0 ? client.visibleCharacterAt(at - 1).getId() : null;
+            int count = 1 + random.nextInt(6);
+            for (int k = 0; k < count; k++, at++) {
+                UUID next = at < client.visibleLength() ? client.visibleCharacterAt(at).getId() : null;
+                Character character = client.insert(String.valueOf((char) ('a' + random.nextInt(26))), prev, next);
+                log.add(new InsertOp(character.getId(), character.getValue(), character.getPosition()));
+                prev = character.getId();
+            }
+        }
+        return log;
+    }
+
+    // the log as a client would send it batched: typed runs as insert runs, consecutive deletes of
+    // one run as ranges
+    private static List<CrdtOp> compact(List<CrdtOp> log) {
+        List<CrdtOp> compacted = new ArrayList<>();
+        CharacterBlock run = null;
+        DeleteOp rangeStart = null;
+        DeleteOp rangeEnd = null;
+        for (CrdtOp op : log) {
+            if (op instanceof InsertOp insert) {
+                CharacterBlock piece = new CharacterBlock(insert.charId(), insert.value(), insert.position(), false);
+                if (run != null && run.canAbsorb(piece)) {
+                    run.absorb(piece);
+                    continue;
+                }
+                if (run != null) compacted.add(runOp(run));
+                if (rangeStart != null) compacted.add(rangeOp(rangeStart, rangeEnd));
+                rangeStart = null;
+                rangeEnd = null;
+                run = piece;
+            } else if (op instanceof DeleteOp delete) {
+                UUID last = rangeEnd != null ? rangeEnd.charId() : null;
+                if (last != null && last.getMostSignificantBits() == delete.charId().getMostSignificantBits()
+                    && last.getLeastSignificantBits() + 1 == delete.charId().getLeastSignificantBits()) {
+                    rangeEnd = delete;
+                    continue;
+                }
+                if (run != null) compacted.add(runOp(run));
+                if (rangeStart != null) compacted.add(rangeOp(rangeStart, rangeEnd));
+                run = null;
+                rangeStart = delete;
+                rangeEnd = delete;
+            }
+        }
+        if (run != null) compacted.add(runOp(run));
+        if (rangeStart != null) compacted.add(rangeOp(rangeStart, rangeEnd));
+        return compacted;
+    }
+
+    private static CrdtOp runOp(CharacterBlock run) {
+        if (run.getLength() == 1) return new InsertOp(run.getId(), run.getText(), run.getPosition());
+        return new InsertRunOp(run.getId(), run.getText(), run.getPosition());
+    }
+
+    private static CrdtOp rangeOp(DeleteOp start, DeleteOp end) {
+        return start == end ? start : new DeleteRangeOp(start.charId(), end.charId());
+    }
+
+    static CRDTInstance perCharacter(List<CrdtOp> log) {
+        CRDTInstance crdt = new CRDTInstance(32.0, "server");
+        for (CrdtOp op : log) applyOne(crdt, op);
+        return crdt;
+    }
+
+    private static void applyOne(CRDTInstance crdt, CrdtOp op) {
+        if (op instanceof InsertOp insert) {
+            crdt.integrate(new Character(insert.charId(), insert.value(), insert.position(), null));
+        } else if (op instanceof DeleteOp delete) {
+            crdt.delete(delete.charId());
+        }
+    }
+
+    // applies the ops in batches of random size, checking the reported changes replay to the same text
+    static void applyInChunks(CRDTInstance crdt, List<CrdtOp> ops, Random random) {
+        StringBuilder mirror = new StringBuilder(crdt.extractText());
+        for (int i = 0; i < ops.size(); ) {
+            int end = Math.min(ops.size(), i + 1 + random.nextInt(40));
+            for (TextChange change : crdt.applyBatch(ops.subList(i, end))) {
+                mirror.replace(change.index(), change.index() + change.deleted(), change.inserted());
+            }
+            assertEquals(crdt.extractText(), mirror.toString());
+            i = end;
+        }
+    }
+
+    static void assertSameCharacters(CRDTInstance expected, CRDTInstance actual) {
+        assertEquals(expected.extractText(), actual.extractText());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.tombstoneCount(), actual.tombstoneCount());
+        for (int c = 0; c < CLIENTS; c++) {
+            assertEquals(expected.getVector().get("client-" + c), actual.getVector().get("client-" + c));
+        }
+
+        Iterator<Character> a = expected.orderedIterator();
+        Iterator<Character> b = actual.orderedIterator();
+        while (a.hasNext()) {
+            Character x = a.next();
+            Character y = b.next();
+            assertEquals(x.getId(), y.getId());
+            assertEquals(x.getValue(), y.getValue());
+            assertEquals(0, x.getPosition().compareTo(y.getPosition()));
+            assertEquals(x.getMetadata().isDeleted(), y.getMetadata().isDeleted());
+        }
+        assertFalse(b.hasNext());
+    }
+}
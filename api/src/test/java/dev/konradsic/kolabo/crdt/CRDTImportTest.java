@@ -0,0 +1,69 @@
+package dev.konradsic.kolabo.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CRDTImportTest {
+
+    @Test
+    void importsTextAsFewShallowRuns() throws Exception {
+        String text = "line of text\n".repeat(2000);
+
+        CRDTInstance crdt = CRDTInstance.fromText(32.0, "doc", AllocationStrategy.LSEQ, new StringReader(text));
+
+        assertEquals(text, crdt.extractText());
+        assertEquals(1, crdt.blockCount());
+        assertEquals(text.length(), crdt.getClock());
+        assertEquals(text.length(), crdt.getVector().get("doc"));
+        assertEquals(text.length(), crdt.depthHistogram()[1]);
+        assertEquals(AllocationStrategy.LSEQ, crdt.getStrategy());
+    }
+
+    @Test
+    void surrogatePairsGetBlocksOfTheirOwn() throws Exception {
+        // the pair straddles the reader's 8k buffer, a lone high surrogate ends the text
+        String text = "a".repeat(8191) + "\uD83D\uDE00" + "bc" + "\uD83D";
+
+        CRDTInstance crdt = CRDTInstance.fromText(32.0, "doc", AllocationStrategy.MIDPOINT, new StringReader(text));
+
+        assertEquals(text, crdt.extractText());
+        assertEquals(3, crdt.blockCount());
+        assertEquals(8195, crdt.size());
+        assertEquals("\uD83D\uDE00", crdt.visibleCharacterAt(8191).getValue());
+
+        Position previous = null;
+        for (Iterator<Character> it = crdt.orderedIterator(); it.hasNext(); ) {
+            Position position = it.next().getPosition();
+            if (previous != null) assertTrue(previous.compareTo(position) < 0);
+            previous = position;
+        }
+    }
+
+    @Test
+    void importedDocumentKeepsEditing() throws Exception {
+        CRDTInstance crdt = CRDTInstance.fromText(32.0, "doc", AllocationStrategy.LSEQ, new StringReader("hello world"));
+
+        UUID space = crdt.visibleCharacterAt(5).getId();
+        crdt.insert(",", crdt.visibleCharacterAt(4).getId(), space);
+        crdt.delete(crdt.visibleCharacterAt(0).getId());
+        Character end = crdt.insert("!", crdt.visibleCharacterAt(crdt.visibleLength() - 1).getId(), null);
+
+        assertEquals("ello, world!", crdt.extractText());
+        assertEquals(14, end.getPosition().getClock());
+        assertEquals("ello, world!", CrdtSnapshotCodec.decode(CrdtSnapshotCodec.encode(crdt, true)).extractText());
+    }
+
+    @Test
+    void importsNothingFromAnEmptyReader() throws Exception {
+        CRDTInstance crdt = CRDTInstance.fromText(32.0, "doc", AllocationStrategy.LSEQ, new StringReader(""));
+
+        assertEquals(0, crdt.size());
+        assertEquals(0, crdt.getClock());
+        assertEquals(0, crdt.getVector().get("doc"));
+    }
+}
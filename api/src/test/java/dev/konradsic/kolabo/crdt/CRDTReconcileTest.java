@@ -0,0 +1,144 @@
+package dev.konradsic.kolabo.crdt;
+
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// two nodes holding the same document, catching up with each other's whole state
+class CRDTReconcileTest {
+
+    @Test
+    void picksUpDeletesStampedIndependentlyOnBothNodes() throws Exception {
+        CRDTInstance[] nodes = loaded("hello world");
+        CRDTInstance a = nodes[0];
+        CRDTInstance b = nodes[1];
+
+        // both nodes stamp these under the document's site starting from the same clock
+        deleteAt(a, 0);
+        deleteAt(a, 0);
+        deleteAt(a, 0);
+        deleteAt(b, 10);
+
+        List<CrdtOp> ops = b.reconcile(a);
+
+        assertEquals("lo worl", b.extractText());
+        assertEquals(3, ops.size());
+        assertTrue(ops.stream().allMatch(op -> op instanceof DeleteOp));
+
+        a.reconcile(b);
+        assertEquals(a.extractText(), b.extractText());
+    }
+
+    @Test
+    void deletesCharactersWhoseTombstonesWerePurgedThere() throws Exception {
+        CRDTInstance[] nodes = loaded("hello world");
+        CRDTInstance a = nodes[0];
+        CRDTInstance b = nodes[1];
+        deleteAt(a, 5);
+        deleteAt(a, 5);
+        a.purgeTombstones(a.getClock());
+        assertEquals(0, a.tombstoneCount());
+
+        b.reconcile(a);
+
+        assertEquals("helloorld", b.extractText());
+    }
+
+    @Test
+    void addsUnknownCharactersAndTombstones() throws Exception {
+        CRDTInstance[] nodes = loaded("ab");
+        CRDTInstance a = nodes[0];
+        CRDTInstance b = nodes[1];
+        InsertOp typed = clientInsert(a, 1, "x", 1);
+        InsertOp typedAndDeleted = clientInsert(a, 2, "y", 2);
+        a.delete(typedAndDeleted.charId());
+
+        List<CrdtOp> ops = b.reconcile(a);
+
+        assertEquals("axb", b.extractText());
+        assertEquals(List.of(typed), ops);
+        // a relayed insert arriving late doesn't bring the deleted character back
+        b.apply(typedAndDeleted);
+        assertEquals("axb", b.extractText());
+    }
+
+    @Test
+    void keepsWhatTheOtherNodeNeverSaw() throws Exception {
+        CRDTInstance[] nodes = loaded("ab");
+        CRDTInstance a = nodes[0];
+        CRDTInstance b = nodes[1];
+        clientInsert(b, 1, "x", 1);
+
+        assertTrue(b.reconcile(a).isEmpty());
+        assertEquals("axb", b.extractText());
+    }
+
+    @Test
+    void ownDeleteStampsStayAboveTheMergedVector() throws Exception {
+        CRDTInstance[] nodes = loaded("abcdef");
+        CRDTInstance a = nodes[0];
+        CRDTInstance b = nodes[1];
+        for (int i = 0; i < 4; i++) deleteAt(a, 0);
+
+        b.reconcile(a);
+        deleteAt(b, 0);
+
+        assertTrue(b.getClock() > a.getVector().get("doc"));
+        assertEquals(b.getClock(), b.getVector().get("doc"));
+    }
+
+    @Test
+    void convergesAfterLostRelaysWithPurging() throws Exception {
+        CRDTInstance[] nodes = loaded("the quick brown fox");
+        CRDTInstance a = nodes[0];
+        CRDTInstance b = nodes[1];
+        int clock = 1;
+        for (int round = 0; round < 50; round++) {
+            CRDTInstance node = round % 3 == 0 ? b : a;
+            CRDTInstance other = node == a ? b : a;
+            if (round % 4 == 0 && node.visibleLength() > 0) {
+                UUID id = node.visibleCharacterAt((round * 7) % node.visibleLength()).getId();
+                node.delete(id);
+                // every other relayed delete is lost
+                if (round % 8 == 0) other.delete(id);
+            } else {
+                InsertOp op = clientInsert(node, (round * 5) % (node.visibleLength() + 1), String.valueOf((char) ('a' + round % 26)), clock++);
+                if (round % 5 != 0) other.apply(op);
+            }
+            if (round % 10 == 9) node.purgeTombstones(node.getClock());
+        }
+
+        b.reconcile(a);
+        a.reconcile(b);
+
+        assertEquals(a.extractText(), b.extractText());
+    }
+
+    // two nodes loading the snapshot the import wrote
+    private static CRDTInstance[] loaded(String text) throws Exception {
+        byte[] snapshot = CrdtSnapshotCodec.encode(CRDTInstance.fromText(32.0, "doc", AllocationStrategy.MIDPOINT, new StringReader(text)), false);
+        return new CRDTInstance[]{CrdtSnapshotCodec.decode(snapshot), CrdtSnapshotCodec.decode(snapshot)};
+    }
+
+    private static void deleteAt(CRDTInstance crdt, int index) {
+        crdt.delete(crdt.visibleCharacterAt(index).getId());
+    }
+
+    // a character a client typed at the visible index, applied on the node it is connected to
+    private static InsertOp clientInsert(CRDTInstance crdt, int index, String value, int clock) {
+        Position prev = index > 0 ? crdt.visibleCharacterAt(index - 1).getPosition() : null;
+        Position next = index < crdt.visibleLength() ? crdt.visibleCharacterAt(index).getPosition() : null;
+        CRDTInstance client = new CRDTInstance(32.0, "client");
+        Position generated = client.generatePositionBetween(prev, next);
+        InsertOp op = new InsertOp(UUID.randomUUID(), value, new Position(generated.digits(), "client", clock));
+        crdt.apply(op);
+        return op;
+    }
+}
@@ -0,0 +1,124 @@
+package dev.konradsic.kolabo.crdt;
+
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.DeleteRangeOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CRDTSyncTest {
+
+    @Test
+    void deltaCatchesUpFromAnyEarlierState() {
+        for (long seed = 1; seed <= 3; seed++) {
+            List<CrdtOp> log = CRDTBatchTest.history(seed, 400);
+            CRDTInstance server = new CRDTInstance(32.0, "server");
+            // what a replica held at some point: its state and the vector it had seen
+            List<byte[]> snapshots = new ArrayList<>();
+            List<VersionVector> seen = new ArrayList<>();
+
+            Random random = new Random(seed);
+            for (int i = 0; i < log.size(); ) {
+                int end = Math.min(log.size(), i + 1 + random.nextInt(60));
+                server.applyBatch(log.subList(i, end));
+                snapshots.add(CrdtSnapshotCodec.encode(server, false));
+                seen.add(server.getVector().copy());
+                i = end;
+            }
+
+            for (int i = 0; i < snapshots.size(); i++) {
+                CRDTInstance replica = CrdtSnapshotCodec.decode(snapshots.get(i));
+                List<CrdtOp> delta = server.opsSince(seen.get(i));
+                assertNotNull(delta);
+                replica.applyBatch(delta);
+                assertEquals(server.extractText(), replica.extractText());
+            }
+            assertEquals(List.of(), server.opsSince(server.getVector()));
+        }
+    }
+
+    @Test
+    void deltaSendsRunsAndRangesOnlyForWhatTheReplicaLacks() {
+        CRDTInstance server = new CRDTInstance(32.0, "doc");
+        List<Character> typed = CharacterBlockTest.type(server, null, "abcdef");
+        VersionVector seen = server.getVector().copy();
+
+        List<Character> more = CharacterBlockTest.type(server, typed.get(5).getId(), "ghij");
+        server.delete(typed.get(1).getId());
+        server.delete(typed.get(2).getId());
+        // typed and deleted after the replica's state, it never needs to hear of it
+        server.delete(more.get(3).getId());
+
+        List<CrdtOp> delta = server.opsSince(seen);
+
+        assertEquals(keys(List.of(
+            new InsertRunOp(more.get(0).getId(), "ghi", more.get(0).getPosition()),
+            new DeleteRangeOp(typed.get(1).getId(), typed.get(2).getId())
+        )), keys(delta));
+    }
+
+    @Test
+    void deltaIsRefusedOnceTombstonesTheReplicaMayHoldAreGone() {
+        CRDTInstance server = new CRDTInstance(32.0, "doc");
+        List<Character> typed = CharacterBlockTest.type(server, null, "abc");
+        VersionVector seen = server.getVector().copy();
+        server.delete(typed.get(1).getId());
+
+        server.purgeTombstones(server.getClock());
+
+        assertNull(server.opsSince(seen));
+        assertEquals(keys(List.of(
+            new InsertOp(typed.get(0).getId(), "a", typed.get(0).getPosition()),
+            new InsertOp(typed.get(2).getId(), "c", typed.get(2).getPosition())
+        )), keys(server.visibleOps()));
+        assertEquals(List.of(), server.opsSince(new VersionVector(Map.of("doc", server.getClock()))));
+    }
+
+    @Test
+    void deltaOfAnotherSitesCharacters() {
+        CRDTInstance server = new CRDTInstance(32.0, "doc");
+        CRDTInstance client = new CRDTInstance(32.0, "client");
+        List<Character> typed = CharacterBlockTest.type(client, null, "xyz");
+        for (Character character : typed) server.integrate(character);
+        server.delete(typed.get(0).getId());
+
+        VersionVector seen = new VersionVector(Map.of("client", 2));
+        List<UUID> ids = new ArrayList<>();
+        for (CrdtOp op : server.opsSince(seen)) {
+            if (op instanceof InsertOp insert) ids.add(insert.charId());
+            if (op instanceof DeleteOp delete) ids.add(delete.charId());
+        }
+
+        assertEquals(List.of(typed.get(2).getId(), typed.get(0).getId()), ids);
+    }
+
+    // positions have no equals, so ops are compared by what they carry
+    private static List<List<Object>> keys(List<CrdtOp> ops) {
+        List<List<Object>> keys = new ArrayList<>();
+        for (CrdtOp op : ops) {
+            if (op instanceof InsertOp insert) {
+                keys.add(List.of("insert", insert.charId(), insert.value(), key(insert.position())));
+            } else if (op instanceof InsertRunOp run) {
+                keys.add(List.of("insertRun", run.charId(), run.text(), key(run.position())));
+            } else if (op instanceof DeleteOp delete) {
+                keys.add(List.of("delete", delete.charId()));
+            } else if (op instanceof DeleteRangeOp range) {
+                keys.add(List.of("deleteRange", range.startId(), range.endId()));
+            }
+        }
+        return keys;
+    }
+
+    private static List<Object> key(Position position) {
+        return List.of(position.getIndex(), position.getSiteId(), position.getClock());
+    }
+}
@@ -0,0 +1,109 @@
+package dev.konradsic.kolabo.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CharacterBlockTest {
+
+    @Test
+    void typingExtendsOneRun() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, null, "hello");
+
+        assertEquals("hello", crdt.extractText());
+        assertEquals(1, crdt.blockCount());
+        for (int k = 0; k < typed.size(); k++) {
+            Character character = crdt.character(typed.get(k).getId());
+            assertEquals(String.valueOf("hello".charAt(k)), character.getValue());
+            assertEquals(0, character.getPosition().compareTo(typed.get(k).getPosition()));
+            assertEquals(k, crdt.visibleIndexOf(character.getId()));
+        }
+    }
+
+    @Test
+    void insertInsideRunSplitsIt() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, null, "abcde");
+
+        crdt.insert("x", typed.get(1).getId(), typed.get(2).getId());
+
+        assertEquals("abxcde", crdt.extractText());
+        assertEquals(3, crdt.blockCount());
+        assertEquals(3, crdt.visibleIndexOf(typed.get(2).getId()));
+        assertEquals("c", crdt.character(typed.get(2).getId()).getValue());
+    }
+
+    @Test
+    void deletesSplitRunsAndNeighbouringTombstonesJoin() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, null, "abcde");
+
+        assertTrue(crdt.delete(typed.get(2).getId()));
+        assertEquals("abde", crdt.extractText());
+        assertEquals(3, crdt.blockCount());
+
+        assertTrue(crdt.delete(typed.get(1).getId()));
+        assertFalse(crdt.delete(typed.get(1).getId()));
+        assertEquals("ade", crdt.extractText());
+        // a, the tombstone run bc, de
+        assertEquals(3, crdt.blockCount());
+        assertEquals(2, crdt.tombstoneCount());
+        assertEquals(1, crdt.visibleIndexOf(typed.get(2).getId()));
+        assertTrue(crdt.character(typed.get(2).getId()).getMetadata().isDeleted());
+    }
+
+    @Test
+    void remoteCharactersOfOneRunJoinIt() {
+        CRDTInstance local = new CRDTInstance(32.0, "doc");
+        CRDTInstance remote = new CRDTInstance(32.0, "client");
+        List<Character> typed = type(remote, null, "remote");
+
+        for (Character character : typed) assertTrue(local.integrate(character));
+        assertFalse(local.integrate(typed.get(3)));
+
+        assertEquals("remote", local.extractText());
+        assertEquals(1, local.blockCount());
+        assertEquals(remote.getVector().toMap(), local.getVector().toMap());
+    }
+
+    @Test
+    void iteratesEveryCharacterOfEveryBlock() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, null, "abcdef");
+        crdt.insert("x", typed.get(2).getId(), typed.get(3).getId());
+        crdt.delete(typed.get(4).getId());
+
+        List<String> values = new ArrayList<>();
+        List<UUID> ids = new ArrayList<>();
+        for (Iterator<Character> it = crdt.orderedIterator(); it.hasNext(); ) {
+            Character character = it.next();
+            values.add(character.getValue());
+            ids.add(character.getId());
+        }
+
+        assertEquals(List.of("a", "b", "c", "x", "d", "e", "f"), values);
+        assertEquals(typed.get(4).getId(), ids.get(5));
+        assertEquals("abcxdf", crdt.extractText());
+        assertEquals("cxd", crdt.extractText(2, 5));
+    }
+
+    // types text one character at a time after `prev`, the way an editor sends it
+    static List<Character> type(CRDTInstance crdt, UUID prev, String text) {
+        List<Character> typed = new ArrayList<>();
+        int at = prev != null ? crdt.visibleIndexOf(prev) + 1 : 0;
+        for (int i = 0; i < text.length(); i++) {
+            UUID next = at < crdt.visibleLength() ? crdt.visibleCharacterAt(at).getId() : null;
+            Character character = crdt.insert(String.valueOf(text.charAt(i)), prev, next);
+            typed.add(character);
+            prev = character.getId();
+            at++;
+        }
+        return typed;
+    }
+}
@@ -0,0 +1,159 @@
+package dev.konradsic.kolabo.crdt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrdtSnapshotCodecTest {
+
+    @Test
+    void roundTripsEmptyDocument() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+
+        CRDTInstance decoded = CrdtSnapshotCodec.decode(CrdtSnapshotCodec.encode(crdt, false));
+
+        assertEquals("doc", decoded.getSiteId());
+        assertEquals(0, decoded.size());
+        assertEquals("", decoded.extractText());
+    }
+
+    @Test
+    void roundTripsEditedDocument() {
+        CRDTInstance crdt = edited(2000);
+
+        for (boolean compress : new boolean[]{false, true}) {
+            CRDTInstance decoded = CrdtSnapshotCodec.decode(CrdtSnapshotCodec.encode(crdt, compress));
+            assertSameState(crdt, decoded);
+        }
+    }
+
+    @Test
+    void decodedDocumentKeepsEditing() {
+        CRDTInstance crdt = edited(500);
+        CRDTInstance decoded = CrdtSnapshotCodec.decode(CrdtSnapshotCodec.encode(crdt, true));
+
+        UUID prev = crdt.visibleCharacterAt(10).getId();
+        UUID next = crdt.visibleCharacterAt(11).getId();
+        Character original = crdt.insert("!", prev, next);
+        Character copy = decoded.insert("!", prev, next);
+
+        assertEquals(crdt.getClock(), decoded.getClock());
+        assertEquals(original.getPosition().getClock(), copy.getPosition().getClock());
+        assertEquals(crdt.extractText(), decoded.extractText());
+    }
+
+    @Test
+    void keepsFractionalAndNegativeDigitsAndSurrogatePairs() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        crdt.apply(new InsertOp(UUID.randomUUID(), "a", new Position(List.of(32.0, 16.5, -3.0), "client-1", 4)));
+        crdt.apply(new InsertOp(UUID.randomUUID(), "\uD83D\uDE00", new Position(List.of(-7.25), "client-2", 1)));
+        crdt.apply(new InsertOp(UUID.randomUUID(), "\u017C", new Position(List.of(1e9), "client-1", 9)));
+
+        CRDTInstance decoded = CrdtSnapshotCodec.decode(CrdtSnapshotCodec.encode(crdt, false));
+
+        assertSameState(crdt, decoded);
+        assertEquals("\uD83D\uDE00a\u017C", decoded.extractText());
+    }
+
+    @Test
+    void binarySnapshotIsSmallerThanJson() throws Exception {
+        CRDTInstance crdt = edited(5000);
+
+        byte[] json = new ObjectMapper().writeValueAsBytes(crdt);
+        byte[] binary = CrdtSnapshotCodec.encode(crdt, false);
+        byte[] compressed = CrdtSnapshotCodec.encode(crdt, true);
+
+        assertTrue(binary.length * 3 < json.length, binary.length + " vs " + json.length);
+        assertTrue(compressed.length < binary.length);
+    }
+
+    @Test
+    void recognisesOnlyBinarySnapshots() throws Exception {
+        CRDTInstance crdt = edited(50);
+        byte[] json = new ObjectMapper().writeValueAsString(crdt).getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(CrdtSnapshotCodec.isBinary(CrdtSnapshotCodec.encode(crdt, true)));
+        assertFalse(CrdtSnapshotCodec.isBinary(json));
+        assertThrows(IllegalArgumentException.class, () -> CrdtSnapshotCodec.decode(json));
+    }
+
+    @Test
+    void rejectsUnknownVersionAndTruncatedData() {
+        byte[] snapshot = CrdtSnapshotCodec.encode(edited(50), false);
+
+        byte[] future = snapshot.clone();
+        future[2] = CrdtSnapshotCodec.VERSION + 1;
+        assertThrows(IllegalArgumentException.class, () -> CrdtSnapshotCodec.decode(future));
+
+        byte[] truncated = Arrays.copyOf(snapshot, snapshot.length / 2);
+        assertThrows(IllegalArgumentException.class, () -> CrdtSnapshotCodec.decode(truncated));
+    }
+
+    // two sites typing and deleting at random spots, so the snapshot holds runs, splits and tombstones
+    private static CRDTInstance edited(int edits) {
+        Random random = new Random(42);
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        CRDTInstance remote = new CRDTInstance(32.0, "client");
+        crdt.setStrategy(AllocationStrategy.LSEQ);
+        int cursor = 0;
+
+        for (int i = 0; i < edits; i++) {
+            int length = crdt.visibleLength();
+            if (random.nextInt(20) == 0) cursor = random.nextInt(length + 1);
+            cursor = Math.min(cursor, length);
+
+            if (length > 0 && random.nextInt(5) == 0) {
+                int at = random.nextInt(length);
+                crdt.delete(crdt.visibleCharacterAt(at).getId());
+                if (at < cursor) cursor--;
+                continue;
+            }
+
+            CRDTInstance site = random.nextInt(4) == 0 ? remote : crdt;
+            UUID prev = cursor > 0 ? crdt.visibleCharacterAt(cursor - 1).getId() : null;
+            UUID next = cursor < length ? crdt.visibleCharacterAt(cursor).getId() : null;
+            if (site == remote) remote.merge(crdt);
+            Character character = site.insert(String.valueOf((char) ('a' + random.nextInt(26))), prev, next);
+            if (site == remote) crdt.integrate(character);
+            cursor++;
+        }
+        return crdt;
+    }
+
+    private static void assertSameState(CRDTInstance expected, CRDTInstance actual) {
+        assertEquals(expected.getSiteId(), actual.getSiteId());
+        assertEquals(expected.getBase(), actual.getBase());
+        assertEquals(expected.getBoundary(), actual.getBoundary());
+        assertEquals(expected.getClock(), actual.getClock());
+        assertEquals(expected.getStrategy(), actual.getStrategy());
+        assertEquals(expected.getPurgedThrough(), actual.getPurgedThrough());
+        assertEquals(expected.getVector().toMap(), actual.getVector().toMap());
+        assertEquals(expected.extractText(), actual.extractText());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.tombstoneCount(), actual.tombstoneCount());
+
+        List<CharacterBlock> expectedBlocks = expected.getBlocks();
+        List<CharacterBlock> actualBlocks = actual.getBlocks();
+        assertEquals(expectedBlocks.size(), actualBlocks.size());
+        for (int i = 0; i < expectedBlocks.size(); i++) {
+            CharacterBlock a = expectedBlocks.get(i);
+            CharacterBlock b = actualBlocks.get(i);
+            assertEquals(a.getId(), b.getId());
+            assertEquals(a.getText(), b.getText());
+            assertEquals(a.getLength(), b.getLength());
+            assertEquals(a.isDeleted(), b.isDeleted());
+            assertEquals(a.getDeletedAt(), b.getDeletedAt());
+            assertEquals(a.getPosition().getIndex(), b.getPosition().getIndex());
+            assertEquals(a.getPosition().getSiteId(), b.getPosition().getSiteId());
+            assertEquals(a.getPosition().getClock(), b.getPosition().getClock());
+        }
+    }
+}
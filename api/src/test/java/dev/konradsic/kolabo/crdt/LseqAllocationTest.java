@@ -0,0 +1,84 @@
+package dev.konradsic.kolabo.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LseqAllocationTest {
+
+    @Test
+    void allocatesStrictlyBetweenNeighbours() {
+        for (AllocationStrategy strategy : AllocationStrategy.values()) {
+            CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+            crdt.setStrategy(strategy);
+            Random random = new Random(3);
+            // positions in document order
+            List<Position> positions = new ArrayList<>();
+
+            for (int i = 0; i < 3000; i++) {
+                int at = random.nextInt(10) == 0 ? 0 : random.nextInt(positions.size() + 1);
+                Position prev = at > 0 ? positions.get(at - 1) : null;
+                Position next = at < positions.size() ? positions.get(at) : null;
+                Position position = crdt.generatePositionBetween(prev, next);
+
+                if (prev != null) assertTrue(prev.compareTo(position) < 0, strategy + " after " + prev.getIndex());
+                if (next != null) assertTrue(position.compareTo(next) < 0, strategy + " before " + next.getIndex());
+                positions.add(at, position);
+            }
+        }
+    }
+
+    @Test
+    void appendsStayAtDepthOne() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        crdt.setStrategy(AllocationStrategy.LSEQ);
+
+        Position prev = null;
+        for (int i = 0; i < 5000; i++) {
+            Position position = crdt.generatePositionBetween(prev, null);
+            assertEquals(1, position.depth());
+            prev = position;
+        }
+    }
+
+    @Test
+    void typingBeforeTextGrowsFarShallowerThanMidpoint() {
+        assertTrue(forwardTypingDepth(AllocationStrategy.MIDPOINT) > 100);
+        assertTrue(forwardTypingDepth(AllocationStrategy.LSEQ) < 20);
+    }
+
+    @Test
+    void depthHistogramCountsCharactersPerDepth() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        crdt.setStrategy(AllocationStrategy.LSEQ);
+        Character a = crdt.insert("a", null, null);
+        Character b = crdt.insert("b", a.getId(), null);
+        crdt.integrate(new Character("c", crdt.generatePositionBetween(a.getPosition(), b.getPosition())));
+
+        int[] histogram = crdt.depthHistogram();
+        int total = 0;
+        for (int depth = 1; depth < histogram.length; depth++) total += histogram[depth];
+        assertEquals(3, total);
+        assertEquals(0, histogram[0]);
+        assertTrue(histogram[1] >= 2);
+    }
+
+    // deepest identifier when typing a long line in front of existing text, one allocation per character
+    private static int forwardTypingDepth(AllocationStrategy strategy) {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        crdt.setStrategy(strategy);
+        Position prev = crdt.generatePositionBetween(null, null);
+        Position next = crdt.generatePositionBetween(prev, null);
+
+        int deepest = 0;
+        for (int i = 0; i < 2000; i++) {
+            prev = crdt.generatePositionBetween(prev, next);
+            deepest = Math.max(deepest, prev.depth());
+        }
+        return deepest;
+    }
+}
@@ -0,0 +1,111 @@
+package dev.konradsic.kolabo.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PositionIndexTest {
+
+    @Test
+    void matchesSortedListUnderRandomEdits() {
+        Random random = new Random(11);
+        PositionIndex index = new PositionIndex();
+        // the reference, kept in position order
+        List<CharacterBlock> expected = new ArrayList<>();
+
+        for (int step = 0; step < 3000; step++) {
+            int action = random.nextInt(10);
+            if (action < 6 || expected.isEmpty()) {
+                CharacterBlock block = block(random);
+                if (find(expected, block.getPosition()) >= 0) continue;
+                index.insert(block);
+                int at = 0;
+                while (at < expected.size() && expected.get(at).getPosition().compareTo(block.getPosition()) < 0) at++;
+                expected.add(at, block);
+            } else if (action < 8) {
+                CharacterBlock block = expected.get(random.nextInt(expected.size()));
+                block.markDeleted(step);
+                index.refresh(block.getPosition());
+            } else {
+                CharacterBlock block = expected.remove(random.nextInt(expected.size()));
+                index.remove(block.getPosition());
+            }
+            if (step % 100 == 0) assertSameContent(expected, index);
+        }
+        assertSameContent(expected, index);
+    }
+
+    @Test
+    void findsNeighboursOfAnyPosition() {
+        PositionIndex index = new PositionIndex();
+        CharacterBlock a = new CharacterBlock(UUID.randomUUID(), "a", new Position(new long[]{10 * Position.UNIT}, "s", 1), false);
+        CharacterBlock b = new CharacterBlock(UUID.randomUUID(), "b", new Position(new long[]{20 * Position.UNIT}, "s", 2), false);
+        index.insert(b);
+        index.insert(a);
+
+        Position between = new Position(new long[]{15 * Position.UNIT}, "s", 3);
+        assertSame(a, index.floor(between));
+        assertSame(a, index.lower(between));
+        assertSame(b, index.higher(between));
+        assertSame(b, index.floor(b.getPosition()));
+        assertSame(a, index.lower(b.getPosition()));
+        assertNull(index.lower(a.getPosition()));
+        assertNull(index.higher(b.getPosition()));
+        assertEquals(-1, index.visibleIndexOf(between));
+        assertThrows(IndexOutOfBoundsException.class, () -> index.visibleAt(2));
+    }
+
+    // a block of 1 to 4 characters at a random spot, far enough from others that runs never overlap
+    private static CharacterBlock block(Random random) {
+        long[] digits = {random.nextInt(100_000) * 8 * Position.UNIT};
+        int length = 1 + random.nextInt(4);
+        StringBuilder text = new StringBuilder();
+        for (int k = 0; k < length; k++) text.append((char) ('a' + random.nextInt(26)));
+        Position position = new Position(digits, "site-" + random.nextInt(3), random.nextInt(1000));
+        return new CharacterBlock(UUID.randomUUID(), text.toString(), position, length, false, 0);
+    }
+
+    private static int find(List<CharacterBlock> blocks, Position position) {
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i).getPosition().compareTo(position) == 0) return i;
+        }
+        return -1;
+    }
+
+    private static void assertSameContent(List<CharacterBlock> expected, PositionIndex index) {
+        List<CharacterBlock> ordered = new ArrayList<>();
+        index.forEach(ordered::add);
+        assertEquals(expected, ordered);
+        assertEquals(expected.size(), index.blockCount());
+
+        StringBuilder text = new StringBuilder();
+        int size = 0;
+        for (CharacterBlock block : expected) {
+            assertEquals(text.length(), index.visibleIndexOf(block.getPosition()));
+            if (!block.isDeleted()) text.append(block.getText());
+            size += block.getLength();
+        }
+        assertEquals(size, index.size());
+        assertEquals(text.length(), index.visibleSize());
+
+        StringBuilder all = new StringBuilder();
+        index.appendVisible(all);
+        assertEquals(text.toString(), all.toString());
+
+        for (int i = 0; i < text.length(); i++) {
+            PositionIndex.Slot slot = index.visibleAt(i);
+            assertEquals(text.charAt(i), slot.block().getText().charAt(slot.offset()));
+        }
+        for (int from = 0; from < text.length(); from += 7) {
+            int to = Math.min(text.length(), from + 13);
+            StringBuilder range = new StringBuilder();
+            index.appendVisible(range, from, to);
+            assertEquals(text.substring(from, to), range.toString());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package dev.konradsic.kolabo.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SiteIdTest {
+
+    @Test
+    void internsEqualNames() {
+        String name = UUID.randomUUID().toString();
+
+        assertSame(SiteId.of(name), SiteId.of(new String(name)));
+        assertNotSame(SiteId.of(name), SiteId.of(name + "x"));
+        assertSame(SiteId.of(null), SiteId.of(""));
+    }
+
+    @Test
+    void ordersLikeTheNames() {
+        List<String> names = new ArrayList<>(List.of("", "a", "a\u0000", "ab", "abc", "abcd", "abcde", "abce", "b", "\uFFFF", "été"));
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(7);
+            // a small alphabet so many names share their first characters
+            for (int k = 0; k < length; k++) sb.append("ab\u0000\uFFFF".charAt(random.nextInt(4)));
+            names.add(sb.toString());
+        }
+        for (int i = 0; i < 20; i++) names.add(UUID.randomUUID().toString());
+
+        for (String a : names) {
+            for (String b : names) {
+                assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(SiteId.of(a).compareTo(SiteId.of(b))), a + " vs " + b);
+            }
+        }
+    }
+
+    @Test
+    void positionsTieBreakBySiteThenClock() {
+        long[] digits = {Position.UNIT};
+        Position a = new Position(digits, "site-a", 5);
+        Position b = new Position(digits.clone(), "site-b", 1);
+
+        assertTrue(a.compareTo(b) < 0);
+        assertTrue(b.compareTo(a) > 0);
+        assertTrue(new Position(digits, "site-a", 4).compareTo(a) < 0);
+        assertEquals(0, new Position(digits.clone(), "site-a", 5).compareTo(a));
+    }
+}
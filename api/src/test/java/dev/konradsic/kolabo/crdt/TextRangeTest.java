@@ -0,0 +1,75 @@
+package dev.konradsic.kolabo.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static dev.konradsic.kolabo.crdt.CharacterBlockTest.type;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TextRangeTest {
+
+    @Test
+    void emptyRangesAreEmpty() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        assertEquals("", crdt.extractText(0, 5));
+
+        type(crdt, null, "hello");
+        assertEquals("", crdt.extractText(2, 2));
+        assertEquals("", crdt.extractText(4, 1));
+        assertEquals("", crdt.extractText(5, 5));
+    }
+
+    @Test
+    void rangeCanStartAndEndInsideOneBlock() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        type(crdt, null, "hello world");
+        assertEquals(1, crdt.blockCount());
+
+        assertEquals("llo w", crdt.extractText(2, 7));
+        assertEquals("o", crdt.extractText(4, 5));
+        // the same ranges once the whole text is cached
+        assertEquals("hello world", crdt.extractText());
+        assertEquals("llo w", crdt.extractText(2, 7));
+        assertEquals("o", crdt.extractText(4, 5));
+    }
+
+    @Test
+    void rangeSkipsTombstones() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, null, "abcdefgh");
+        crdt.delete(typed.get(2).getId());
+        crdt.delete(typed.get(3).getId());
+        crdt.delete(typed.get(5).getId());
+        crdt.insert("x", typed.get(6).getId(), typed.get(7).getId());
+
+        // a b [c d] e [f] g x h
+        assertEquals("beg", crdt.extractText(1, 4));
+        assertEquals("gxh", crdt.extractText(3, 6));
+
+        // every range read through the blocks matches the flattened text
+        List<String> ranges = new ArrayList<>();
+        for (int from = 0; from <= 6; from++) {
+            for (int to = from; to <= 6; to++) ranges.add(crdt.extractText(from, to));
+        }
+        String text = crdt.extractText();
+        assertEquals("abegxh", text);
+        int i = 0;
+        for (int from = 0; from <= 6; from++) {
+            for (int to = from; to <= 6; to++) assertEquals(text.substring(from, to), ranges.get(i++));
+        }
+    }
+
+    @Test
+    void outOfBoundsRangeIsClampedToTheDocument() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        type(crdt, null, "hello");
+
+        assertEquals("he", crdt.extractText(-3, 2));
+        assertEquals("llo", crdt.extractText(2, 100));
+        assertEquals("hello", crdt.extractText(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals("", crdt.extractText(5, 9));
+        assertEquals("", crdt.extractText(-9, 0));
+    }
+}
@@ -0,0 +1,52 @@
+package dev.konradsic.kolabo.service;
+
+import dev.konradsic.kolabo.config.ClusterProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class ClusterMembershipTest {
+
+    @Test
+    void ownerUrlsComeFromTheLastHeartbeat() {
+        ClusterProperties properties = new ClusterProperties();
+        properties.setEnabled(true);
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        @SuppressWarnings("unchecked")
+        ZSetOperations<String, String> nodes = mock(ZSetOperations.class);
+        @SuppressWarnings("unchecked")
+        HashOperations<String, Object, Object> urls = mock(HashOperations.class);
+        when(redis.opsForZSet()).thenReturn(nodes);
+        doReturn(urls).when(redis).opsForHash();
+        ClusterMembership membership = new ClusterMembership(properties, redis);
+        when(nodes.rangeByScore(anyString(), anyDouble(), anyDouble())).thenReturn(Set.of(membership.getNodeId(), "other"));
+        Map<Object, Object> advertised = new HashMap<>();
+        when(urls.entries(anyString())).thenReturn(advertised);
+
+        UUID docId = UUID.randomUUID();
+        membership.heartbeat();
+        while (membership.isOwner(docId)) docId = UUID.randomUUID();
+
+        // in the ring but not advertised yet: not this node's, and nowhere to send its clients
+        assertFalse(membership.isOwner(docId));
+        assertNull(membership.ownerUrl(docId));
+
+        advertised.put("other", "wss://other.example.com");
+        membership.heartbeat();
+        for (int i = 0; i < 100; i++) assertEquals("wss://other.example.com", membership.ownerUrl(docId));
+        verify(urls, times(2)).entries(anyString());
+        verify(urls, never()).get(any(), any());
+    }
+}
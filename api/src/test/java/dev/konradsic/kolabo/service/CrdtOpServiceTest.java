@@ -0,0 +1,271 @@
+package dev.konradsic.kolabo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.konradsic.kolabo.config.CrdtProperties;
+import dev.konradsic.kolabo.crdt.AllocationStrategy;
+import dev.konradsic.kolabo.crdt.CRDTInstance;
+import dev.konradsic.kolabo.crdt.CrdtSnapshotCodec;
+import dev.konradsic.kolabo.crdt.Position;
+import dev.konradsic.kolabo.crdt.VersionVector;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import dev.konradsic.kolabo.dto.ws.SyncResponse;
+import dev.konradsic.kolabo.model.CrdtOpEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class CrdtOpServiceTest {
+
+    // redis values by key
+    private final Map<String, byte[]> store = new ConcurrentHashMap<>();
+    // the op log, shared by every service a test creates
+    private final List<CrdtOpEntity> log = new CopyOnWriteArrayList<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CrdtProperties properties = new CrdtProperties();
+    private final UUID docId = UUID.randomUUID();
+    // actor drains run only when the test says so
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    @Test
+    void syncSendsOnlyWhatTheReplicaLacks() {
+        CrdtOpService service = service();
+        service.processBatch(docId, List.of(run("client", 1, "hello world"))).join();
+        VersionVector seen = new VersionVector(Map.of("client", 11));
+        service.processBatch(docId, List.of(run("client", 12, "!"))).join();
+
+        SyncResponse delta = service.sync(docId, "r1", seen).join();
+        assertEquals("delta", delta.mode());
+        assertEquals(1, delta.ops().size());
+        assertEquals(12, delta.vector().get("client"));
+
+        SyncResponse fresh = service.sync(docId, "r2", new VersionVector()).join();
+        assertEquals("delta", fresh.mode());
+        assertEquals("hello world!", text(fresh.ops()));
+        assertEquals(2.0, registry.counter("kolabo.crdt.sync", "mode", "delta").count());
+    }
+
+    @Test
+    void syncAfterPurgeSendsTheWholeDocument() {
+        CrdtOpService service = service();
+        InsertRunOp typed = run("client", 1, "hello world");
+        service.processBatch(docId, List.of(typed)).join();
+        service.registerReplica(docId, "r1");
+        VersionVector seen = new VersionVector(Map.of("client", 11));
+        service.sync(docId, "r1", seen).join();
+
+        service.processBatch(docId, List.of(new DeleteOp(typed.charId()))).join();
+        // the only replica acknowledges the delete, so its tombstone goes
+        service.sync(docId, "r1", service.sync(docId, "r1", seen).join().vector()).join();
+
+        SyncResponse stale = service.sync(docId, "r2", seen).join();
+        assertEquals("snapshot", stale.mode());
+        assertEquals("ello world", text(stale.ops()));
+        assertEquals(1.0, registry.counter("kolabo.crdt.sync", "mode", "snapshot").count());
+        assertEquals("ello world", service.getText(docId, 0, 100));
+    }
+
+    @Test
+    void connectedReplicasAckingADeletePurgeItsTombstone() {
+        CrdtOpService service = service();
+        InsertRunOp typed = run("client", 1, "hello");
+        service.processBatch(docId, List.of(typed)).join();
+        service.registerReplica(docId, "r1");
+        service.registerReplica(docId, "r2");
+        VersionVector joined = service.sync(docId, "r1", new VersionVector()).join().vector();
+        service.sync(docId, "r2", new VersionVector()).join();
+
+        service.processBatch(docId, List.of(new DeleteOp(typed.charId()))).join();
+        // the periodic sync brings r1 the delete, its ack then covers the stamp; r2 still pins it
+        VersionVector current = service.sync(docId, "r1", joined).join().vector();
+        service.acknowledge(docId, "r1", current);
+        assertEquals(1, service.getSnapshot(docId).tombstoneCount());
+
+        service.acknowledge(docId, "r2", current);
+        assertEquals(0, service.getSnapshot(docId).tombstoneCount());
+        assertEquals(1.0, registry.counter("kolabo.crdt.tombstones.purged").count());
+        assertEquals("ello", service.getText(docId, 0, 10));
+    }
+
+    @Test
+    void repliesCarryTheDocumentsAllocationStrategy() {
+        CrdtOpService service = service();
+        assertEquals(AllocationStrategy.LSEQ, service.sync(docId, "r1", new VersionVector()).join().strategy());
+
+        // clients pick the change up with their next sync
+        service.setAllocationStrategy(docId, AllocationStrategy.MIDPOINT);
+        assertEquals(AllocationStrategy.MIDPOINT, service.sync(docId, "r1", new VersionVector()).join().strategy());
+        assertEquals(AllocationStrategy.MIDPOINT, service.joinSnapshot(docId).join().strategy());
+    }
+
+    @Test
+    void evictedDocumentIsWrittenBack() throws Exception {
+        properties.setCacheMaxBytes(1);
+        CrdtOpService service = service();
+
+        // big enough to be re-weighed, heavier than the whole budget
+        service.processBatch(docId, List.of(run("client", 1, "x".repeat(2000)))).join();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (stored() == null && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals("x".repeat(2000), stored().extractText());
+        assertEquals(2000, service.getText(docId, 0, 5000).length());
+    }
+
+    @Test
+    void changesAreWrittenBehind() {
+        CrdtOpService service = service(tasks::add);
+        CompletableFuture<?> typed = service.processBatch(docId, List.of(run("client", 1, "hello")));
+        runTasks();
+
+        assertTrue(typed.isDone());
+        assertNull(stored());
+        service.flushDirty();
+        runTasks();
+        assertEquals("hello", stored().extractText());
+    }
+
+    @Test
+    void opsLoggedAfterTheLastSnapshotAreReplayedOnLoad() {
+        CrdtOpService service = service();
+        service.processBatch(docId, List.of(run("client", 1, "hello"))).join();
+        service.flushDirty();
+        service.processBatch(docId, List.of(run("client", 6, " world"))).join();
+        assertEquals("hello", stored().extractText());
+
+        // the node dies before the next flush; another one loads the document
+        CrdtOpService restarted = service();
+        assertEquals("hello world", restarted.getText(docId, 0, 100));
+        restarted.processBatch(docId, List.of(run("client", 12, "!"))).join();
+        assertEquals(List.of(1L, 2L, 3L), log.stream().map(CrdtOpEntity::getSeq).toList());
+
+        // the replay was written back with its watermark, only the newest op is past it
+        assertEquals("2", new String(store.get("doc:" + docId + ":snapshot:seq")));
+        CrdtOpService again = service();
+        assertEquals("hello world!", again.getText(docId, 0, 100));
+        assertEquals("3", new String(store.get("doc:" + docId + ":snapshot:seq")));
+    }
+
+    @Test
+    void changesQueuedBeforeHibernationAreWrittenThrough() {
+        CrdtOpService service = service(tasks::add);
+        CompletableFuture<?> typed = service.processBatch(docId, List.of(run("client", 1, "hello")));
+
+        service.hibernate(docId);
+        assertNull(stored());
+        runTasks();
+
+        assertTrue(typed.isDone());
+        assertEquals("hello", stored().extractText());
+        assertNull(registry.find("kolabo.crdt.actor.queue.depth").tag("document", docId.toString()).gauge());
+    }
+
+    @Test
+    void documentReopenedDuringWriteBackKeepsItsState() {
+        CrdtOpService service = service(tasks::add);
+        service.processBatch(docId, List.of(run("client", 1, "hello")));
+        runTasks();
+
+        service.hibernate(docId);
+        // reopened before the write-back ran: the same state comes back instead of the stored one
+        CompletableFuture<?> more = service.processBatch(docId, List.of(run("client", 6, " world")));
+        runTasks();
+        assertTrue(more.isDone());
+        assertEquals("hello", stored().extractText());
+
+        service.flushDirty();
+        runTasks();
+        assertEquals("hello world", stored().extractText());
+        assertNotNull(registry.find("kolabo.crdt.actor.queue.depth").tag("document", docId.toString()).gauge());
+    }
+
+    private CrdtOpService service() {
+        return service(Runnable::run);
+    }
+
+    private CrdtOpService service(Executor executor) {
+        @SuppressWarnings("unchecked")
+        RedisTemplate<String, byte[]> redis = mock(RedisTemplate.class);
+        @SuppressWarnings("unchecked")
+        ValueOperations<String, byte[]> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+        when(values.multiGet(any())).thenAnswer(invocation -> {
+            List<byte[]> found = new ArrayList<>();
+            for (String key : invocation.<Collection<String>>getArgument(0)) found.add(store.get(key));
+            return found;
+        });
+        doAnswer(invocation -> {
+            store.putAll(invocation.getArgument(0));
+            return null;
+        }).when(values).multiSet(any());
+
+        CrdtPersistenceService persistence = mock(CrdtPersistenceService.class);
+        when(persistence.serializeSnapshot(any())).thenAnswer(invocation -> CrdtSnapshotCodec.encode(invocation.getArgument(0), false));
+        when(persistence.deserializeSnapshot(any())).thenAnswer(invocation -> CrdtSnapshotCodec.decode(invocation.getArgument(0)));
+        doAnswer(invocation -> {
+            long seq = invocation.getArgument(1);
+            for (CrdtOp op : invocation.<List<CrdtOp>>getArgument(2)) {
+                CrdtOpEntity entity = new CrdtOpEntity();
+                entity.setSeq(seq++);
+                entity.setOpJson(mapper.writeValueAsString(op));
+                log.add(entity);
+            }
+            return null;
+        }).when(persistence).saveOps(any(), anyLong(), any());
+        when(persistence.getOpsAfter(any(), anyLong())).thenAnswer(invocation -> log.stream()
+            .filter(entity -> entity.getSeq() > invocation.<Long>getArgument(1))
+            .toList());
+        when(persistence.deserialize(any(CrdtOpEntity.class))).thenAnswer(invocation ->
+            mapper.readValue(invocation.<CrdtOpEntity>getArgument(0).getOpJson(), CrdtOp.class));
+        return new CrdtOpService(redis, persistence, properties, executor, Runnable::run, registry);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+    }
+
+    private CRDTInstance stored() {
+        byte[] snapshot = store.get("doc:" + docId + ":snapshot");
+        return snapshot != null ? CrdtSnapshotCodec.decode(snapshot) : null;
+    }
+
+    // a run typed by a client, one unit apart at depth 1 starting from `clock`
+    private static InsertRunOp run(String site, int clock, String text) {
+        Position position = new Position(List.of(32.0 + clock), site, clock);
+        return new InsertRunOp(new UUID(site.hashCode(), (long) clock << 20), text, position);
+    }
+
+    // the text of insert and insert-run ops in order
+    private static String text(List<CrdtOp> ops) {
+        StringBuilder text = new StringBuilder();
+        for (CrdtOp op : ops) {
+            if (op instanceof InsertRunOp run) text.append(run.text());
+            if (op instanceof InsertOp insert) text.append(insert.value());
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package dev.konradsic.kolabo.service;
+
+import dev.konradsic.kolabo.config.CrdtProperties;
+import dev.konradsic.kolabo.crdt.Position;
+import dev.konradsic.kolabo.dao.CrdtOpDao;
+import dev.konradsic.kolabo.dao.DocumentDao;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.model.CrdtOpEntity;
+import dev.konradsic.kolabo.model.Document;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class CrdtPersistenceServiceTest {
+
+    @Test
+    void batchIsWrittenWithOneInsertAndNoDocumentRead() {
+        UUID docId = UUID.randomUUID();
+        CrdtOpDao crdtOpDao = mock(CrdtOpDao.class);
+        DocumentDao documentDao = mock(DocumentDao.class);
+        Document document = new Document();
+        when(documentDao.getReferenceById(docId)).thenReturn(document);
+        CrdtPersistenceService persistence = new CrdtPersistenceService(crdtOpDao, documentDao, new CrdtProperties(), Runnable::run);
+
+        UUID charId = UUID.randomUUID();
+        persistence.saveOps(docId, 7, List.of(
+            new InsertOp(charId, "a", new Position(List.of(40.0), "client", 1)),
+            new DeleteOp(charId)));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<CrdtOpEntity>> saved = ArgumentCaptor.forClass(List.class);
+        verify(crdtOpDao).saveAll(saved.capture());
+        verify(crdtOpDao, never()).save(any());
+        verify(documentDao, never()).findById(any());
+        assertEquals(List.of(7L, 8L), saved.getValue().stream().map(CrdtOpEntity::getSeq).toList());
+        assertTrue(saved.getValue().stream().allMatch(entity -> entity.getDocument() == document));
+    }
+}
@@ -0,0 +1,115 @@
+package dev.konradsic.kolabo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentActorTest {
+
+    @Test
+    void runsTasksOneAtATimeInOrderOfSubmission() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            DocumentActor actor = new DocumentActor(pool);
+            AtomicInteger running = new AtomicInteger();
+            List<Integer> order = new ArrayList<>();
+            List<CompletableFuture<Void>> done = new ArrayList<>();
+
+            for (int i = 0; i < 5000; i++) {
+                int n = i;
+                done.add(actor.execute(() -> {
+                    assertEquals(1, running.incrementAndGet());
+                    order.add(n);
+                    running.decrementAndGet();
+                }));
+            }
+            CompletableFuture.allOf(done.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+            assertEquals(5000, order.size());
+            for (int i = 0; i < order.size(); i++) assertEquals(i, order.get(i));
+            assertEquals(0, actor.queueDepth());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void neverRunsTasksOfOneDocumentConcurrently() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        try {
+            DocumentActor actor = new DocumentActor(pool);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger overlaps = new AtomicInteger();
+            // only touched from the actor, like a CRDT
+            int[] counter = new int[1];
+            List<CompletableFuture<?>> producing = new ArrayList<>();
+
+            for (int p = 0; p < 4; p++) {
+                producing.add(CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        actor.execute(() -> {
+                            if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+                            counter[0]++;
+                            running.decrementAndGet();
+                        });
+                    }
+                }, producers));
+            }
+            CompletableFuture.allOf(producing.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+            int total = actor.submit(() -> counter[0]).get(10, TimeUnit.SECONDS);
+
+            assertEquals(8000, total);
+            assertEquals(0, overlaps.get());
+        } finally {
+            pool.shutdownNow();
+            producers.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedTaskFailsOnlyItsOwnFuture() {
+        DocumentActor actor = new DocumentActor(Runnable::run);
+
+        CompletableFuture<Integer> failed = actor.submit(() -> {
+            throw new IllegalStateException("boom");
+        });
+        CompletableFuture<Integer> next = actor.submit(() -> 42);
+
+        CompletionException e = assertThrows(CompletionException.class, failed::join);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals(42, next.join());
+    }
+
+    @Test
+    void handsTheThreadBackAfterABatch() {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        DocumentActor actor = new DocumentActor(tasks::add);
+        AtomicInteger ran = new AtomicInteger();
+
+        for (int i = 0; i < 100; i++) actor.execute(ran::incrementAndGet);
+        assertEquals(1, tasks.size());
+        assertEquals(100, actor.queueDepth());
+
+        tasks.poll().run();
+        assertEquals(64, ran.get());
+        assertEquals(36, actor.queueDepth());
+        // the rest was scheduled as a new drain instead of holding on to the worker
+        assertEquals(1, tasks.size());
+
+        tasks.poll().run();
+        assertEquals(100, ran.get());
+        assertTrue(tasks.isEmpty());
+    }
+}
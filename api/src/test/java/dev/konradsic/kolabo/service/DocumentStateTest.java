@@ -0,0 +1,82 @@
+package dev.konradsic.kolabo.service;
+
+import dev.konradsic.kolabo.crdt.CRDTInstance;
+import dev.konradsic.kolabo.crdt.Character;
+import dev.konradsic.kolabo.crdt.TombstoneStats;
+import dev.konradsic.kolabo.crdt.VersionVector;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentStateTest {
+
+    @Test
+    void stableClockIsTheLowestAcknowledgedDeleteStamp() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, "abcde");
+        DocumentState state = new DocumentState(UUID.randomUUID(), crdt, new DocumentActor(Runnable::run), null, 0);
+
+        // no replicas: everything this site stamped is stable
+        assertEquals(5, state.stableClock());
+
+        state.registerReplica("r1", new VersionVector());
+        state.registerReplica("r2", new VersionVector());
+        crdt.delete(typed.get(0).getId());
+        crdt.delete(typed.get(3).getId());
+        assertEquals(0, state.stableClock());
+
+        state.acknowledge("r1", new VersionVector(Map.of("doc", 7)));
+        state.acknowledge("r2", new VersionVector(Map.of("doc", 6, "client", 40)));
+        assertEquals(6, state.stableClock());
+
+        state.removeReplica("r2");
+        assertEquals(7, state.stableClock());
+    }
+
+    @Test
+    void purgesOnlyTombstonesEveryReplicaHasSeen() {
+        CRDTInstance crdt = new CRDTInstance(32.0, "doc");
+        List<Character> typed = type(crdt, "abcde");
+        DocumentState state = new DocumentState(UUID.randomUUID(), crdt, new DocumentActor(Runnable::run), null, 0);
+        state.registerReplica("r1", new VersionVector(Map.of("doc", 5)));
+
+        crdt.delete(typed.get(0).getId());
+        crdt.delete(typed.get(3).getId());
+        state.acknowledge("r1", new VersionVector(Map.of("doc", 6)));
+
+        TombstoneStats stats = crdt.purgeTombstones(state.stableClock());
+        assertEquals(1, stats.characters());
+        assertTrue(stats.bytes() > 0);
+        assertNull(crdt.character(typed.get(0).getId()));
+        assertNotNull(crdt.character(typed.get(3).getId()));
+        assertEquals(1, crdt.tombstoneCount());
+        assertEquals(6, crdt.getPurgedThrough());
+        assertEquals("bce", crdt.extractText());
+
+        // a replica that has not seen the purged delete can no longer be caught up with a delta
+        assertNull(crdt.opsSince(new VersionVector(Map.of("doc", 5))));
+        assertNotNull(crdt.opsSince(new VersionVector(Map.of("doc", 6))));
+
+        assertEquals(TombstoneStats.NONE, crdt.purgeTombstones(6));
+        state.removeReplica("r1");
+        assertEquals(1, crdt.purgeTombstones(state.stableClock()).characters());
+        assertEquals(0, crdt.tombstoneCount());
+        assertEquals("bce", crdt.extractText());
+    }
+
+    private static List<Character> type(CRDTInstance crdt, String text) {
+        List<Character> typed = new ArrayList<>();
+        UUID prev = null;
+        for (int i = 0; i < text.length(); i++) {
+            Character character = crdt.insert(String.valueOf(text.charAt(i)), prev, null);
+            typed.add(character);
+            prev = character.getId();
+        }
+        return typed;
+    }
+}
@@ -0,0 +1,76 @@
+package dev.konradsic.kolabo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+
+    private final List<UUID> ids = ids(20_000);
+
+    @Test
+    void everyNodeAgreesOnTheOwner() {
+        HashRing ring = new HashRing(List.of("node-a", "node-b", "node-c"), 128);
+        HashRing shuffled = new HashRing(List.of("node-c", "node-a", "node-b", "node-a"), 128);
+
+        for (UUID id : ids) assertEquals(ring.owner(id), shuffled.owner(id));
+        assertEquals(3, shuffled.getNodes().size());
+        assertNull(new HashRing(List.of(), 128).owner(ids.get(0)));
+    }
+
+    @Test
+    void spreadsIdsEvenly() {
+        HashRing ring = new HashRing(List.of("node-a", "node-b", "node-c", "node-d"), 128);
+
+        Map<String, Integer> owned = new HashMap<>();
+        for (UUID id : ids) owned.merge(ring.owner(id), 1, Integer::sum);
+
+        assertEquals(4, owned.size());
+        for (int count : owned.values()) {
+            assertTrue(count > ids.size() / 4 * 0.75 && count < ids.size() / 4 * 1.25, owned.toString());
+        }
+    }
+
+    @Test
+    void joiningNodeTakesOnlyItsShare() {
+        HashRing before = new HashRing(List.of("node-a", "node-b", "node-c"), 128);
+        HashRing after = new HashRing(List.of("node-a", "node-b", "node-c", "node-d"), 128);
+
+        int moved = 0;
+        for (UUID id : ids) {
+            String owner = after.owner(id);
+            if (owner.equals(before.owner(id))) continue;
+            // nothing moves between the nodes that stayed
+            assertEquals("node-d", owner);
+            moved++;
+        }
+        assertTrue(moved > ids.size() / 4 * 0.75 && moved < ids.size() / 4 * 1.25, "moved " + moved);
+    }
+
+    @Test
+    void leavingNodeHandsOnlyItsOwnIdsOver() {
+        HashRing before = new HashRing(List.of("node-a", "node-b", "node-c"), 128);
+        HashRing after = new HashRing(List.of("node-a", "node-c"), 128);
+
+        for (UUID id : ids) {
+            String owner = before.owner(id);
+            if (!owner.equals("node-b")) assertEquals(owner, after.owner(id));
+        }
+    }
+
+    // random ids as well as sequential ones, which must not cluster on one node
+    private static List<UUID> ids(int count) {
+        Random random = new Random(5);
+        List<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count / 2; i++) ids.add(new UUID(random.nextLong(), random.nextLong()));
+        for (int i = 0; i < count / 2; i++) ids.add(new UUID(0, i));
+        return ids;
+    }
+}
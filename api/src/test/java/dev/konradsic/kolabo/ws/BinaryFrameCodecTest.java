@@ -0,0 +1,112 @@
+package dev.konradsic.kolabo.ws;
+
+import dev.konradsic.kolabo.crdt.Position;
+import dev.konradsic.kolabo.dto.ws.CaretUpdate;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.DeleteRangeOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.InsertRunOp;
+import dev.konradsic.kolabo.dto.ws.WsMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryFrameCodecTest {
+
+    private static final List<CrdtOp> OPS = List.of(
+        new InsertOp(UUID.randomUUID(), "\u017C", new Position(List.of(32.0, 16.5, -3.0), "client-1", 4)),
+        new InsertOp(UUID.randomUUID(), "\uD83D\uDE00", new Position(List.of(-7.25), "client-2", 1)),
+        new DeleteOp(UUID.randomUUID()),
+        new InsertRunOp(new UUID(5, 10), "pasted text", new Position(List.of(1e9, 33.0), "client-1", 70000)),
+        new DeleteRangeOp(new UUID(5, 10), new UUID(5, 14))
+    );
+
+    @Test
+    void roundTripsEveryOp() {
+        for (CrdtOp op : OPS) {
+            ByteBuffer frame = BinaryFrameCodec.encodeOps(List.of(op));
+            assertFalse(BinaryFrameCodec.isBatch(frame));
+            assertEquals(describe(op), describe(BinaryFrameCodec.decode(frame)));
+        }
+    }
+
+    @Test
+    void roundTripsBatchesAndMergedFrames() {
+        ByteBuffer batch = BinaryFrameCodec.encodeOps(OPS);
+        assertTrue(BinaryFrameCodec.isBatch(batch));
+        assertEquals(describeAll(OPS), describeAll(BinaryFrameCodec.decodeBatch(batch)));
+
+        // merging flattens batches and single ops into one batch, in order
+        ByteBuffer merged = BinaryFrameCodec.merge(List.of(
+            BinaryFrameCodec.encodeOps(OPS.subList(0, 2)),
+            BinaryFrameCodec.encodeOps(OPS.subList(2, 3)),
+            BinaryFrameCodec.encodeOps(OPS.subList(3, 5))
+        ));
+        assertEquals(describeAll(OPS), describeAll(BinaryFrameCodec.decodeBatch(merged)));
+        // encoded frames are shared between sessions and must not be consumed by reading them
+        assertEquals(describeAll(OPS), describeAll(BinaryFrameCodec.decodeBatch(batch)));
+    }
+
+    @Test
+    void decodesClientCarets() {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{0x10, (byte) 0xAC, 0x02});
+
+        WsMessage message = BinaryFrameCodec.decode(frame);
+
+        assertEquals(new CaretUpdate(300), message);
+    }
+
+    @Test
+    void encodesServerCaretsWithTheirUser() {
+        UUID user = new UUID(0x0102030405060708L, 0x090A0B0C0D0E0F10L);
+
+        ByteBuffer frame = BinaryFrameCodec.encodeCaret(user, 300);
+
+        assertArrayEquals(new byte[]{0x11, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, (byte) 0xAC, 0x02}, bytes(frame));
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        byte[] insert = bytes(BinaryFrameCodec.encodeOps(OPS.subList(0, 1)));
+
+        assertThrows(IllegalArgumentException.class, () -> BinaryFrameCodec.decode(ByteBuffer.wrap(new byte[]{0x7F})));
+        assertThrows(IllegalArgumentException.class, () -> BinaryFrameCodec.decode(ByteBuffer.wrap(new byte[0])));
+        for (int length = 1; length < insert.length; length++) {
+            byte[] truncated = Arrays.copyOf(insert, length);
+            assertThrows(IllegalArgumentException.class, () -> BinaryFrameCodec.decode(ByteBuffer.wrap(truncated)));
+        }
+        byte[] trailing = Arrays.copyOf(insert, insert.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryFrameCodec.decode(ByteBuffer.wrap(trailing)));
+        assertThrows(IllegalArgumentException.class, () -> BinaryFrameCodec.decodeBatch(ByteBuffer.wrap(insert)));
+    }
+
+    private static byte[] bytes(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static List<String> describeAll(List<CrdtOp> ops) {
+        List<String> described = new ArrayList<>();
+        for (CrdtOp op : ops) described.add(describe(op));
+        return described;
+    }
+
+    // positions have no equals, so ops are compared by what they carry
+    private static String describe(WsMessage message) {
+        if (message instanceof InsertOp insert) return "insert " + insert.charId() + " " + insert.value() + " " + describe(insert.position());
+        if (message instanceof InsertRunOp run) return "insertRun " + run.charId() + " " + run.text() + " " + describe(run.position());
+        return message.toString();
+    }
+
+    private static String describe(Position position) {
+        return position.getIndex() + " " + position.getSiteId() + " " + position.getClock();
+    }
+}
@@ -0,0 +1,110 @@
+package dev.konradsic.kolabo.ws;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class CaretThrottleTest {
+
+    private final UUID docId = UUID.randomUUID();
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+    private final WebSocketSession session = mock(WebSocketSession.class);
+    // delivered carets by document, one list per tick
+    private final Map<UUID, List<Collection<CaretThrottle.Caret>>> delivered = new HashMap<>();
+    private final List<Runnable> ticks = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    CaretThrottleTest() {
+        doAnswer(invocation -> {
+            ticks.add(invocation.getArgument(0));
+            return null;
+        }).when(scheduler).scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    void relaysOnlyTheLatestCaretPerUserEachTick() {
+        CaretThrottle throttle = new CaretThrottle(scheduler, Duration.ofMillis(50), this::deliver);
+        assertEquals(1, ticks.size());
+
+        throttle.update(docId, session, alice, 1);
+        throttle.update(docId, session, alice, 2);
+        throttle.update(docId, session, bob, 7);
+        assertTrue(delivered.isEmpty());
+
+        ticks.get(0).run();
+        assertEquals(1, delivered.get(docId).size());
+        assertEquals(Map.of(alice, 2, bob, 7), offsets(delivered.get(docId).get(0)));
+
+        // nothing moved since, nothing is relayed
+        ticks.get(0).run();
+        assertEquals(1, delivered.get(docId).size());
+
+        throttle.update(docId, session, bob, 8);
+        ticks.get(0).run();
+        assertEquals(Map.of(bob, 8), offsets(delivered.get(docId).get(1)));
+    }
+
+    @Test
+    void eachDocumentIsRelayedOnItsOwn() {
+        CaretThrottle throttle = new CaretThrottle(scheduler, Duration.ofMillis(50), this::deliver);
+        UUID other = UUID.randomUUID();
+
+        throttle.update(docId, session, alice, 1);
+        throttle.update(other, null, alice, 9);
+        ticks.get(0).run();
+
+        assertEquals(Map.of(alice, 1), offsets(delivered.get(docId).get(0)));
+        assertEquals(Map.of(alice, 9), offsets(delivered.get(other).get(0)));
+    }
+
+    @Test
+    void failedDeliveryDoesNotStopOtherDocuments() {
+        UUID failing = UUID.randomUUID();
+        CaretThrottle throttle = new CaretThrottle(scheduler, Duration.ofMillis(50), (doc, carets) -> {
+            if (doc.equals(failing)) throw new IllegalStateException("closed");
+            deliver(doc, carets);
+        });
+
+        throttle.update(failing, session, alice, 1);
+        throttle.update(docId, session, bob, 2);
+        ticks.get(0).run();
+
+        assertEquals(Map.of(bob, 2), offsets(delivered.get(docId).get(0)));
+    }
+
+    @Test
+    void zeroIntervalRelaysEveryUpdate() {
+        CaretThrottle throttle = new CaretThrottle(scheduler, Duration.ZERO, this::deliver);
+
+        throttle.update(docId, session, alice, 1);
+        throttle.update(docId, session, alice, 2);
+
+        assertEquals(2, delivered.get(docId).size());
+        verifyNoInteractions(scheduler);
+    }
+
+    private void deliver(UUID docId, Collection<CaretThrottle.Caret> carets) {
+        delivered.computeIfAbsent(docId, k -> new ArrayList<>()).add(List.copyOf(carets));
+    }
+
+    private static Map<UUID, Integer> offsets(Collection<CaretThrottle.Caret> carets) {
+        Map<UUID, Integer> offsets = new HashMap<>();
+        for (CaretThrottle.Caret caret : carets) offsets.put(caret.userId(), caret.offset());
+        return offsets;
+    }
+}
@@ -0,0 +1,181 @@
+package dev.konradsic.kolabo.ws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.konradsic.kolabo.config.WsProperties;
+import dev.konradsic.kolabo.crdt.AllocationStrategy;
+import dev.konradsic.kolabo.crdt.VersionVector;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.SyncResponse;
+import dev.konradsic.kolabo.service.ClusterMembership;
+import dev.konradsic.kolabo.service.CrdtOpService;
+import dev.konradsic.kolabo.service.DocumentService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpSession;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class DocumentWSComponentTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final UUID docId = UUID.randomUUID();
+    private final CrdtOpService crdtOpService = mock(CrdtOpService.class);
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    private final ClusterBus clusterBus = mock(ClusterBus.class);
+    private final ClusterMembership membership = mock(ClusterMembership.class);
+    // one-shot timers, fired when the test says so
+    private final List<Runnable> timers = new ArrayList<>();
+    // everything written to the session, in order
+    private final List<JsonNode> sent = new ArrayList<>();
+    private final DocumentWSComponent component;
+
+    DocumentWSComponentTest() {
+        doAnswer(invocation -> {
+            timers.add(invocation.getArgument(0));
+            return null;
+        }).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        when(crdtOpService.joinSnapshot(docId)).thenReturn(CompletableFuture.completedFuture(
+            SyncResponse.snapshot(new VersionVector(Map.of("client", 5)), List.of(), AllocationStrategy.LSEQ)));
+        when(membership.isOwner(docId)).thenReturn(true);
+        when(membership.getCatchUpWait()).thenReturn(Duration.ofSeconds(2));
+        component = new DocumentWSComponent(mock(DocumentService.class), crdtOpService, new WsProperties(), Runnable::run,
+            scheduler, clusterBus, membership, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void reconnectingClientGetsOnlyWhatItLacks() throws Exception {
+        when(crdtOpService.sync(eq(docId), eq("s1"), any())).thenReturn(CompletableFuture.completedFuture(
+            SyncResponse.delta(new VersionVector(Map.of("client", 12)), List.<CrdtOp>of(), AllocationStrategy.LSEQ)));
+        WebSocketSession session = connect();
+
+        component.handleTextMessage(session, new TextMessage("{\"type\":\"sync\",\"vector\":{\"client\":11}}"));
+        fireTimers();
+
+        verify(crdtOpService).sync(eq(docId), eq("s1"), argThat(seen -> seen.get("client") == 11));
+        verify(crdtOpService, never()).joinSnapshot(any());
+        List<JsonNode> replies = syncReplies();
+        assertEquals(1, replies.size());
+        assertEquals("delta", replies.get(0).get("mode").asText());
+        assertEquals(12, replies.get(0).get("vector").get("client").asInt());
+    }
+
+    @Test
+    void clientThatOffersNoVectorGetsTheJoinSnapshot() throws Exception {
+        connect();
+        assertEquals(List.of(), syncReplies());
+
+        fireTimers();
+        verify(crdtOpService).joinSnapshot(docId);
+        List<JsonNode> replies = syncReplies();
+        assertEquals(1, replies.size());
+        assertEquals("snapshot", replies.get(0).get("mode").asText());
+    }
+
+    @Test
+    void firstFrameOtherThanSyncGetsTheJoinSnapshotRightAway() throws Exception {
+        WebSocketSession session = connect();
+
+        component.handleTextMessage(session, new TextMessage("{\"type\":\"ack\",\"vector\":{}}"));
+        assertEquals("snapshot", syncReplies().get(0).get("mode").asText());
+
+        // neither the timer nor a later frame sends it again
+        fireTimers();
+        component.handleTextMessage(session, new TextMessage("{\"type\":\"ack\",\"vector\":{}}"));
+        verify(crdtOpService, times(1)).joinSnapshot(docId);
+        assertEquals(1, syncReplies().size());
+    }
+
+    @Test
+    void handedOverClientIsAnsweredOnlyOnceTheFormerOwnersStateArrived() throws Exception {
+        when(clusterBus.subscribe(eq(docId), any())).thenReturn(true);
+        when(crdtOpService.applyPeerState(eq(docId), any())).thenReturn(CompletableFuture.completedFuture(List.of()));
+        when(crdtOpService.sync(eq(docId), eq("s1"), any())).thenReturn(CompletableFuture.completedFuture(
+            SyncResponse.delta(new VersionVector(Map.of("client", 12)), List.<CrdtOp>of(), AllocationStrategy.LSEQ)));
+        WebSocketSession session = connect();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Consumer<ClusterBus.Message>> relay = ArgumentCaptor.forClass(Consumer.class);
+        verify(clusterBus).subscribe(eq(docId), relay.capture());
+        verify(clusterBus).publishCatchUp(docId);
+
+        component.handleTextMessage(session, new TextMessage("{\"type\":\"sync\",\"vector\":{\"client\":11}}"));
+        verify(crdtOpService, never()).sync(any(), any(), any());
+        assertEquals(List.of(), syncReplies());
+
+        relay.getValue().accept(new ClusterBus.Message("former-owner", null, null, null, null,
+            new ClusterBus.PeerState("this-node", new byte[0])));
+        verify(crdtOpService).sync(eq(docId), eq("s1"), any());
+        assertEquals(1, syncReplies().size());
+    }
+
+    @Test
+    void joinRepliesWaitNoLongerThanTheCatchUpWait() throws Exception {
+        when(clusterBus.subscribe(eq(docId), any())).thenReturn(true);
+        connect();
+        verify(scheduler).schedule(any(Runnable.class), eq(2000L), eq(TimeUnit.MILLISECONDS));
+
+        // nobody answers the catch-up; the join wait and the catch-up wait both run out
+        fireTimers();
+        verify(crdtOpService).joinSnapshot(docId);
+        assertEquals(1, syncReplies().size());
+    }
+
+    @Test
+    void documentOwnedByANodeWithoutAKnownUrlIsRefused() throws Exception {
+        when(membership.isOwner(docId)).thenReturn(false);
+        WebSocketSession session = connect();
+
+        verify(session).close(argThat(status -> status.getCode() == CloseStatus.SERVICE_OVERLOAD.getCode()));
+        verify(crdtOpService, never()).registerReplica(any(), any());
+        fireTimers();
+        assertEquals(List.of(), sent);
+    }
+
+    // an authorized session of the document whose sends land in `sent`
+    private WebSocketSession connect() throws Exception {
+        HttpSession httpSession = mock(HttpSession.class);
+        when(httpSession.getAttribute("user")).thenReturn(UUID.randomUUID());
+        WebSocketSession session = mock(WebSocketSession.class);
+        Map<String, Object> attributes = new ConcurrentHashMap<>(Map.of("HTTP_SESSION", httpSession));
+        when(session.getAttributes()).thenReturn(attributes);
+        when(session.getId()).thenReturn("s1");
+        when(session.getUri()).thenReturn(URI.create("ws://localhost/ws/document/" + docId));
+        when(session.isOpen()).thenReturn(true);
+        doAnswer(invocation -> {
+            sent.add(mapper.readTree(((TextMessage) invocation.getArgument(0)).getPayload()));
+            return null;
+        }).when(session).sendMessage(any());
+        component.afterConnectionEstablished(session);
+        return session;
+    }
+
+    private void fireTimers() {
+        List<Runnable> due = new ArrayList<>(timers);
+        timers.clear();
+        due.forEach(Runnable::run);
+    }
+
+    private List<JsonNode> syncReplies() {
+        return sent.stream().filter(m -> "sync".equals(m.path("type").asText())).toList();
+    }
+}
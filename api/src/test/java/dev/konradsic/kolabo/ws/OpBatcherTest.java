@@ -0,0 +1,119 @@
+package dev.konradsic.kolabo.ws;
+
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class OpBatcherTest {
+
+    private final UUID docId = UUID.randomUUID();
+    private final WebSocketSession alice = mock(WebSocketSession.class);
+    private final WebSocketSession bob = mock(WebSocketSession.class);
+    // delivered windows, each a list of entries
+    private final List<List<OpBatcher.Entry>> delivered = new ArrayList<>();
+    // window timers, run only when the test says so
+    private final List<Runnable> timers = new ArrayList<>();
+    private final ScheduledFuture<?> timer = mock(ScheduledFuture.class);
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    OpBatcherTest() {
+        doAnswer(invocation -> {
+            timers.add(invocation.getArgument(0));
+            return timer;
+        }).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    void deliversAWindowOnceItExpires() {
+        OpBatcher batcher = new OpBatcher(scheduler, Duration.ofMillis(20), 100, (doc, entries) -> delivered.add(entries));
+        List<CrdtOp> first = ops(2);
+        List<CrdtOp> second = ops(1);
+
+        batcher.add(docId, alice, first);
+        batcher.add(docId, bob, second);
+        assertTrue(delivered.isEmpty());
+        assertEquals(1, timers.size());
+        verify(scheduler).schedule(any(Runnable.class), eq(Duration.ofMillis(20).toNanos()), eq(TimeUnit.NANOSECONDS));
+
+        timers.get(0).run();
+
+        assertEquals(List.of(List.of(new OpBatcher.Entry(alice, first), new OpBatcher.Entry(bob, second))), delivered);
+        // the next op opens a new window
+        batcher.add(docId, alice, ops(1));
+        assertEquals(2, timers.size());
+    }
+
+    @Test
+    void fullWindowIsDeliveredRightAway() {
+        OpBatcher batcher = new OpBatcher(scheduler, Duration.ofMillis(20), 3, (doc, entries) -> delivered.add(entries));
+
+        batcher.add(docId, alice, ops(2));
+        batcher.add(docId, bob, ops(1));
+
+        assertEquals(1, delivered.size());
+        assertEquals(2, delivered.get(0).size());
+        verify(timer).cancel(false);
+
+        // a late timer of a delivered window finds nothing left
+        timers.get(0).run();
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    void documentsHaveWindowsOfTheirOwn() {
+        List<UUID> docs = new ArrayList<>();
+        OpBatcher batcher = new OpBatcher(scheduler, Duration.ofMillis(20), 100, (doc, entries) -> docs.add(doc));
+        UUID other = UUID.randomUUID();
+
+        batcher.add(docId, alice, ops(1));
+        batcher.add(other, bob, ops(1));
+        timers.get(1).run();
+        timers.get(0).run();
+
+        assertEquals(List.of(other, docId), docs);
+    }
+
+    @Test
+    void forgettingADocumentDeliversWhatIsPending() {
+        OpBatcher batcher = new OpBatcher(scheduler, Duration.ofMillis(20), 100, (doc, entries) -> delivered.add(entries));
+
+        batcher.add(docId, alice, ops(1));
+        batcher.forget(docId);
+        batcher.forget(docId);
+
+        assertEquals(1, delivered.size());
+        verify(timer).cancel(false);
+    }
+
+    @Test
+    void zeroWindowDeliversEveryOpAtOnce() {
+        OpBatcher batcher = new OpBatcher(scheduler, Duration.ZERO, 100, (doc, entries) -> delivered.add(entries));
+        List<CrdtOp> ops = ops(1);
+
+        batcher.add(docId, alice, ops);
+
+        assertEquals(List.of(List.of(new OpBatcher.Entry(alice, ops))), delivered);
+        verifyNoInteractions(scheduler);
+    }
+
+    private static List<CrdtOp> ops(int count) {
+        List<CrdtOp> ops = new ArrayList<>();
+        for (int i = 0; i < count; i++) ops.add(new DeleteOp(UUID.randomUUID()));
+        return ops;
+    }
+}
@@ -0,0 +1,104 @@
+package dev.konradsic.kolabo.ws;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.konradsic.kolabo.dto.ws.CaretUpdate;
+import dev.konradsic.kolabo.dto.ws.CrdtOp;
+import dev.konradsic.kolabo.dto.ws.DeleteOp;
+import dev.konradsic.kolabo.dto.ws.InsertOp;
+import dev.konradsic.kolabo.dto.ws.WsMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpStreamParserTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<List<CrdtOp>> chunks = new ArrayList<>();
+
+    @Test
+    void splitsAnOpArrayIntoChunksWhateverTheFragments() throws Exception {
+        List<UUID> ids = new ArrayList<>();
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        for (int i = 0; i < 10; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            json.add(i % 2 == 0
+                ? "{\"type\":\"delete\",\"charId\":\"" + id + "\"}"
+                : "{\"type\":\"insert\",\"charId\":\"" + id + "\",\"value\":\"\uD83D\uDE00\",\"position\":{\"index\":[32.0],\"siteId\":\"s\",\"clock\":" + i + "}}");
+        }
+        String message = json.toString();
+
+        for (int size : new int[]{1, 7, 64, message.length()}) {
+            chunks.clear();
+            OpStreamParser parser = new OpStreamParser(objectMapper, 4);
+            for (int i = 0; i < message.length(); i += size) {
+                int end = Math.min(message.length(), i + size);
+                assertNull(parser.feed(message.substring(i, end), end == message.length(), chunks::add));
+            }
+
+            assertEquals(List.of(4, 4, 2), chunks.stream().map(List::size).toList());
+            List<UUID> parsed = new ArrayList<>();
+            for (List<CrdtOp> chunk : chunks) {
+                for (CrdtOp op : chunk) {
+                    if (op instanceof DeleteOp delete) parsed.add(delete.charId());
+                    if (op instanceof InsertOp insert) {
+                        parsed.add(insert.charId());
+                        // the surrogate pair survived being cut between fragments
+                        assertEquals("\uD83D\uDE00", insert.value());
+                    }
+                }
+            }
+            assertEquals(ids, parsed);
+        }
+    }
+
+    @Test
+    void returnsOtherMessagesOnceComplete() throws Exception {
+        OpStreamParser parser = new OpStreamParser(objectMapper, 4);
+
+        assertNull(parser.feed("{\"type\":\"caret", false, chunks::add));
+        WsMessage message = parser.feed("Update\",\"offset\":12}", true, chunks::add);
+
+        assertEquals(new CaretUpdate(12), message);
+        assertEquals(new CaretUpdate(3), parser.feed("{\"type\":\"caretUpdate\",\"offset\":3}", true, chunks::add));
+        assertTrue(chunks.isEmpty());
+    }
+
+    @Test
+    void rejectsOpsMissingWhatTheyAreAppliedWith() throws Exception {
+        OpStreamParser parser = new OpStreamParser(objectMapper, 4);
+        String position = "\"position\":{\"index\":[40.0],\"siteId\":\"client\",\"clock\":1}";
+        UUID id = UUID.randomUUID();
+
+        assertThrows(IOException.class, () -> parser.feed(
+            "{\"type\":\"insert\",\"charId\":\"" + id + "\"," + position + "}", true, chunks::add));
+        assertThrows(IOException.class, () -> parser.feed(
+            "[{\"type\":\"insert\",\"charId\":\"" + id + "\",\"value\":null," + position + "}]", true, chunks::add));
+        assertThrows(IOException.class, () -> parser.feed("[{\"type\":\"deleteRange\",\"startId\":\"" + id + "\"}]", true, chunks::add));
+        assertTrue(chunks.isEmpty());
+
+        // the socket's next message still parses
+        parser.feed("[{\"type\":\"insert\",\"charId\":\"" + id + "\",\"value\":\"a\"," + position + "}]", true, chunks::add);
+        assertEquals("a", ((InsertOp) chunks.get(0).get(0)).value());
+    }
+
+    @Test
+    void recoversAfterAMalformedMessage() throws Exception {
+        OpStreamParser parser = new OpStreamParser(objectMapper, 4);
+
+        parser.feed("[{\"type\":\"delete\",", false, chunks::add);
+        assertThrows(IOException.class, () -> parser.feed("\"charId\":", true, chunks::add));
+        assertThrows(IOException.class, () -> parser.feed("[1,2]", true, chunks::add));
+
+        UUID id = UUID.randomUUID();
+        parser.feed("[{\"type\":\"delete\",\"charId\":\"" + id + "\"}]", true, chunks::add);
+        assertEquals(1, chunks.size());
+        assertEquals(id, ((DeleteOp) chunks.get(0).get(0)).charId());
+    }
+}
@@ -0,0 +1,162 @@
+package dev.konradsic.kolabo.ws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class PresenceTrackerTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final UUID docId = UUID.randomUUID();
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+    private final SessionRegistry registry = new SessionRegistry(doc -> {});
+    // messages sent to each session, in order
+    private final Map<WebSocketSession, List<JsonNode>> sent = new HashMap<>();
+    private final List<Runnable> ticks = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    private final PresenceTracker tracker;
+
+    PresenceTrackerTest() {
+        doAnswer(invocation -> {
+            ticks.add(invocation.getArgument(0));
+            return null;
+        }).when(scheduler).scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+        tracker = new PresenceTracker(registry, scheduler, Duration.ofSeconds(5), (session, json) -> {
+            try {
+                sent.computeIfAbsent(session, k -> new ArrayList<>()).add(mapper.readTree(json));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    void joiningSessionGetsTheListOthersGetTheChange() {
+        WebSocketSession a = session(alice);
+        assertTrue(tracker.join(docId, alice, a));
+        assertEquals(List.of(alice.toString()), users(last(a), 1));
+
+        WebSocketSession b = session(bob);
+        assertTrue(tracker.join(docId, bob, b));
+        assertEquals(List.of(alice.toString(), bob.toString()), users(last(b), 2));
+        assertEvent(last(a), "join", bob, 2);
+        assertEquals(1, sent.get(b).size());
+    }
+
+    @Test
+    void userArrivesWithTheFirstSessionAndLeavesWithTheLast() {
+        WebSocketSession a = session(alice);
+        tracker.join(docId, alice, a);
+        WebSocketSession b1 = session(bob);
+        WebSocketSession b2 = session(bob);
+        tracker.join(docId, bob, b1);
+
+        assertFalse(tracker.join(docId, bob, b2));
+        assertEquals(2, sent.get(a).size());
+        assertFalse(tracker.leave(docId, bob, b1));
+        assertEquals(2, sent.get(a).size());
+
+        registry.leave(b2);
+        assertTrue(tracker.leave(docId, bob, b2));
+        assertEvent(last(a), "leave", bob, 3);
+        assertFalse(tracker.leave(docId, bob, b2));
+    }
+
+    @Test
+    void usersOnOtherNodesCountUntilTheirLastNodeLeft() {
+        WebSocketSession a = session(alice);
+        tracker.join(docId, alice, a);
+
+        tracker.applyRemote(docId, bob, true);
+        assertEvent(last(a), "join", bob, 2);
+        tracker.applyRemote(docId, bob, true);
+        tracker.applyRemote(docId, bob, false);
+        assertEquals(2, sent.get(a).size());
+
+        tracker.applyRemote(docId, bob, false);
+        assertEvent(last(a), "leave", bob, 3);
+        // a leave without a join changes nothing
+        tracker.applyRemote(docId, bob, false);
+        assertEquals(3, sent.get(a).size());
+    }
+
+    @Test
+    void resendsTheListOnlyToSessionsStillBehindAfterATick() {
+        WebSocketSession a = session(alice);
+        tracker.join(docId, alice, a);
+        WebSocketSession b = session(bob);
+        tracker.join(docId, bob, b);
+        tracker.acknowledge(docId, a, 1);
+        tracker.acknowledge(docId, b, 2);
+        tracker.acknowledge(docId, b, 1);
+        Runnable tick = ticks.get(0);
+
+        // version 1 was still current at the previous tick, a gets a grace interval
+        tick.run();
+        assertEquals(2, sent.get(a).size());
+
+        tick.run();
+        assertEquals(List.of(alice.toString(), bob.toString()), users(last(a), 2));
+        assertEquals(1, sent.get(b).size());
+
+        tick.run();
+        assertEquals(3, sent.get(a).size());
+    }
+
+    @Test
+    void sessionsThatNeverReportAreNotResynced() {
+        WebSocketSession a = session(alice);
+        tracker.join(docId, alice, a);
+        tracker.applyRemote(docId, bob, true);
+
+        ticks.get(0).run();
+        ticks.get(0).run();
+
+        assertEquals(2, sent.get(a).size());
+    }
+
+    private WebSocketSession session(UUID userId) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(UUID.randomUUID().toString());
+        when(session.isOpen()).thenReturn(true);
+        when(session.getAttributes()).thenReturn(new HashMap<>(Map.of("userId", userId)));
+        registry.join(docId, session);
+        return session;
+    }
+
+    private JsonNode last(WebSocketSession session) {
+        List<JsonNode> messages = sent.get(session);
+        return messages.get(messages.size() - 1);
+    }
+
+    private static List<String> users(JsonNode message, long version) {
+        assertEquals("currentUsers", message.get("type").asText());
+        assertEquals(version, message.get("version").asLong());
+        List<String> users = new ArrayList<>();
+        for (JsonNode user : message.get("users")) users.add(user.get("a").asText());
+        return users;
+    }
+
+    private static void assertEvent(JsonNode message, String action, UUID userId, long version) {
+        assertEquals("userEvent", message.get("type").asText());
+        assertEquals(action, message.get("action").asText());
+        assertEquals(userId.toString(), message.get("userId").asText());
+        assertEquals(version, message.get("version").asLong());
+    }
+}
@@ -0,0 +1,115 @@
+package dev.konradsic.kolabo.ws;
+
+import dev.konradsic.kolabo.ws.SessionOutbox.Kind;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class SessionOutboxTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final SessionOutbox.Meters meters = new SessionOutbox.Meters(
+        registry.timer("latency"),
+        registry.counter("dropped"),
+        registry.counter("coalesced"),
+        registry.counter("disconnects")
+    );
+    // tasks run only when the test says so, like a send executor that is busy elsewhere
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor = tasks::add;
+    private final List<String> sent = new ArrayList<>();
+
+    @Test
+    void sendsCaretsOnlyWhenNothingElseWaits() throws Exception {
+        SessionOutbox outbox = new SessionOutbox(session(), executor, 10, meters);
+
+        outbox.send(Kind.CARET, "u1", text("caret 1"));
+        outbox.send(Kind.OP, null, text("{\"op\":1}"));
+        outbox.send(Kind.CARET, "u1", text("caret 2"));
+        outbox.send(Kind.CONTROL, null, text("control"));
+        runTasks();
+
+        assertEquals(List.of("{\"op\":1}", "control", "caret 2"), sent);
+        assertEquals(1, registry.counter("dropped").count());
+    }
+
+    @Test
+    void mergesOnlyAdjacentOpsWhenOverCapacity() throws Exception {
+        SessionOutbox outbox = new SessionOutbox(session(), executor, 3, meters);
+
+        outbox.send(Kind.OP, null, text("{\"op\":1}"));
+        outbox.send(Kind.OP, null, text("[{\"op\":2},{\"op\":3}]"));
+        outbox.send(Kind.CONTROL, null, text("control"));
+        outbox.send(Kind.OP, null, text("{\"op\":4}"));
+        outbox.send(Kind.OP, null, text("{\"op\":5}"));
+        runTasks();
+
+        assertEquals(List.of("[{\"op\":1},{\"op\":2},{\"op\":3}]", "control", "[{\"op\":4},{\"op\":5}]"), sent);
+        assertEquals(2, registry.counter("coalesced").count());
+        assertEquals(0, registry.counter("disconnects").count());
+    }
+
+    @Test
+    void closesForResyncWhenMergingIsNotEnough() throws Exception {
+        WebSocketSession session = session();
+        SessionOutbox outbox = new SessionOutbox(session, executor, 2, meters);
+
+        outbox.send(Kind.OP, null, text("{\"op\":1}"));
+        outbox.send(Kind.CONTROL, null, text("a"));
+        outbox.send(Kind.OP, null, text("{\"op\":2}"));
+        outbox.send(Kind.CONTROL, null, text("b"));
+        runTasks();
+
+        assertTrue(sent.isEmpty());
+        assertEquals(0, outbox.depth());
+        assertEquals(1, registry.counter("disconnects").count());
+        verify(session).close(SessionOutbox.RESYNC);
+    }
+
+    @Test
+    void closesAfterWhatWasQueued() throws Exception {
+        WebSocketSession session = session();
+        SessionOutbox outbox = new SessionOutbox(session, executor, 10, meters);
+
+        outbox.send(Kind.CONTROL, null, text("redirect"));
+        outbox.closeAfter(SessionOutbox.RESYNC);
+        outbox.send(Kind.OP, null, text("{\"op\":1}"));
+        runTasks();
+
+        assertEquals(List.of("redirect"), sent);
+        verify(session).close(SessionOutbox.RESYNC);
+    }
+
+    private WebSocketSession session() throws Exception {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s");
+        when(session.isOpen()).thenReturn(true);
+        doAnswer(invocation -> {
+            WebSocketMessage<?> message = invocation.getArgument(0);
+            sent.add((String) message.getPayload());
+            return null;
+        }).when(session).sendMessage(any());
+        return session;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+    }
+
+    private static TextMessage text(String payload) {
+        return new TextMessage(payload);
+    }
+}
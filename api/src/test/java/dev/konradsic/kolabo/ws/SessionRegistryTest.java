@@ -0,0 +1,118 @@
+package dev.konradsic.kolabo.ws;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SessionRegistryTest {
+
+    private final UUID doc = UUID.randomUUID();
+
+    @Test
+    void tellsTheFirstSessionOfADocument() {
+        SessionRegistry registry = new SessionRegistry(docId -> {});
+
+        assertTrue(registry.join(doc, session("a")));
+        assertFalse(registry.join(doc, session("b")));
+        assertTrue(registry.join(UUID.randomUUID(), session("c")));
+        assertEquals(2, registry.documentCount());
+        assertEquals(3, registry.sessionCount());
+    }
+
+    @Test
+    void cleansUpOnceTheLastSessionLeft() {
+        List<UUID> emptied = new ArrayList<>();
+        SessionRegistry registry = new SessionRegistry(emptied::add);
+        WebSocketSession a = session("a");
+        WebSocketSession b = session("b");
+        registry.join(doc, a);
+        registry.join(doc, b);
+
+        registry.leave(a);
+        assertTrue(emptied.isEmpty());
+        registry.leave(b);
+        registry.leave(b);
+
+        assertEquals(List.of(doc), emptied);
+        assertEquals(Set.of(), registry.sessions(doc));
+        assertEquals(0, registry.documentCount());
+        assertEquals(0, registry.sessionCount());
+    }
+
+    @Test
+    void cleanupMayUseTheRegistry() {
+        UUID other = UUID.randomUUID();
+        SessionRegistry[] holder = new SessionRegistry[1];
+        holder[0] = new SessionRegistry(docId -> {
+            assertTrue(holder[0].sessions(docId).isEmpty());
+            holder[0].join(other, session("c"));
+        });
+        SessionRegistry registry = holder[0];
+        WebSocketSession a = session("a");
+        registry.join(doc, a);
+
+        assertDoesNotThrow(() -> registry.leave(a));
+
+        assertEquals(1, registry.sessions(other).size());
+        assertTrue(registry.join(doc, session("d")));
+    }
+
+    @Test
+    void joinWaitsForTheCleanupOfTheLastLeave() throws Exception {
+        CountDownLatch cleaning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> events = new ArrayList<>();
+        SessionRegistry registry = new SessionRegistry(docId -> {
+            cleaning.countDown();
+            await(release);
+            synchronized (events) {
+                events.add("cleaned");
+            }
+        });
+        WebSocketSession a = session("a");
+        registry.join(doc, a);
+
+        CompletableFuture<Void> leaving = CompletableFuture.runAsync(() -> registry.leave(a));
+        assertTrue(cleaning.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> joining = CompletableFuture.supplyAsync(() -> {
+            boolean first = registry.join(doc, session("b"));
+            synchronized (events) {
+                events.add("joined");
+            }
+            return first;
+        });
+
+        Thread.sleep(50);
+        assertFalse(joining.isDone());
+        release.countDown();
+
+        assertTrue(joining.get(5, TimeUnit.SECONDS));
+        leaving.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("cleaned", "joined"), events);
+    }
+
+    private static WebSocketSession session(String id) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(id);
+        return session;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -39,24 +39,124 @@ export type DeleteOp = {
   charId: string;
 };
 
+// A run of characters, one per UTF-16 unit of `text`. Character k has the id of `charId` with k
+// added to its lower 64 bits, and `position` with k added to its last digit and to its clock.
+export type InsertRunOp = {
+  type: "insertRun";
+  charId: string;
+  text: string;
+  position: Position;
+};
+
+// Deletes the characters with ids from `startId` to `endId` inclusive, all from one run.
+export type DeleteRangeOp = {
+  type: "deleteRange";
+  startId: string;
+  endId: string;
+};
+
 export type CrdtOp = InsertOp | DeleteOp;
 
+export type RemoteOp = CrdtOp | InsertRunOp | DeleteRangeOp;
+
+// highest clock applied per site, as the server's VersionVector serializes it
+export type VersionVector = Record<string, number>;
+
+// the server reads the lower 64 bits of an id as a signed long
+const MAX_LOW = (1n << 63n) - 1n;
+
+// id of the k-th character of a run; expandOp has already rejected runs that would pass MAX_LOW
+function idAt(charId: string, k: number): string {
+  const hex = charId.replace(/-/g, "");
+  const low = BigInt.asUintN(64, lowBits(charId) + BigInt(k))
+    .toString(16)
+    .padStart(16, "0");
+  const high = hex.slice(0, 16);
+  return `${high.slice(0, 8)}-${high.slice(8, 12)}-${high.slice(12)}-${low.slice(0, 4)}-${low.slice(4)}`;
+}
+
+function lowBits(charId: string): bigint {
+  return BigInt.asIntN(64, BigInt(`0x${charId.replace(/-/g, "").slice(16)}`));
+}
+
+// runs and ranges as the single-character ops they stand for
+export function expandOp(op: RemoteOp): CrdtOp[] {
+  if (op.type === "insertRun") {
+    // the server's isValidRun drops runs whose ids overflow the signed lower half, so do we
+    if (!op.text || lowBits(op.charId) + BigInt(op.text.length - 1) > MAX_LOW) return [];
+    const last = op.position.index.length - 1;
+    return Array.from({ length: op.text.length }, (_, k): InsertOp => ({
+      type: "insert",
+      charId: idAt(op.charId, k),
+      value: op.text.charAt(k),
+      position: {
+        index: op.position.index.map((digit, i) => (i === last ? digit + k : digit)),
+        siteId: op.position.siteId,
+        clock: op.position.clock + k,
+      },
+    }));
+  }
+  if (op.type === "deleteRange") {
+    const count = Number(lowBits(op.endId) - lowBits(op.startId)) + 1;
+    if (count < 1 || op.startId.slice(0, 18) !== op.endId.slice(0, 18)) return [];
+    return Array.from({ length: count }, (_, k): DeleteOp => ({
+      type: "delete",
+      charId: idAt(op.startId, k),
+    }));
+  }
+  return [op];
+}
+
+// How new positions are allocated, chosen per document on the server and sent with every sync reply.
+export type AllocationStrategy = "MIDPOINT" | "LSEQ";
+
 export class CRDTInstance {
   private clock = 0;
   private characters = new Map<string, Character>();
   private BASE: number;
   private siteId: string;
+  // The server stamps deletes with the clock of the document's own site (the document id). A relayed
+  // delete says nothing about the ones stamped before it, so only server vectors move that entry.
+  private docSite: string;
+  private vector: VersionVector = {};
   boundary = 10;
+  strategy: AllocationStrategy = "MIDPOINT";
 
-  constructor(base: number, siteId: string) {
+  constructor(base: number, siteId: string, docSite: string) {
     this.BASE = base;
     this.siteId = siteId;
+    this.docSite = docSite;
   }
 
   private tick() {
     return ++this.clock;
   }
 
+  // what to send with a sync or ack
+  getVector(): VersionVector {
+    return { ...this.vector };
+  }
+
+  // A server vector, once everything it covers was applied. Our clock moves past everything the
+  // server has seen from this site, so positions generated from now on are never reused.
+  mergeVector(vector: VersionVector) {
+    for (const [site, clock] of Object.entries(vector)) {
+      this.vector[site] = Math.max(this.vector[site] ?? 0, clock);
+    }
+    this.clock = Math.max(this.clock, this.vector[this.siteId] ?? 0);
+  }
+
+  // replaces the whole state with a server snapshot
+  reset(ops: CrdtOp[], vector: VersionVector = {}) {
+    this.characters.clear();
+    this.cachedSortedCharacters = null;
+    this.cachedOrderedCharacters = null;
+    this.cachedText = null;
+    this.vector = {};
+    for (const op of ops) this.apply(op);
+    this.mergeVector(vector);
+  }
+
   private comparePositions(a: Position, b: Position): number {
     const len = Math.min(a.index.length, b.index.length);
 
@@ -86,7 +186,62 @@ export class CRDTInstance {
     return [...index, this.BASE];
   }
 
-  generateBetween(
+  generateBetween(prev: Position | null, next: Position | null): Position {
+    return this.strategy === "LSEQ"
+      ? this.allocateLseq(prev, next)
+      : this.allocateMidpoint(prev, next);
+  }
+
+  // doubles per depth up to a cap, the same levels the server allocates in
+  private levelBase(depth: number): number {
+    return this.BASE * 2 ** Math.min(depth, 20);
+  }
+
+  // The server's LSEQ allocator with whole-number digits: boundary+ on even depths, boundary- on
+  // odd ones, and appends at the end of the document stay one digit deep.
+  private allocateLseq(prev: Position | null, next: Position | null): Position {
+    const step = Math.max(1, Math.floor(this.boundary));
+    const randomBelow = (n: number) => Math.floor(Math.random() * n);
+    if (!prev && !next) {
+      return { index: [this.BASE], siteId: this.siteId, clock: this.tick() };
+    }
+    if (!next) {
+      return {
+        index: [prev!.index[0] + 1 + randomBelow(step)],
+        siteId: this.siteId,
+        clock: this.tick(),
+      };
+    }
+
+    const p = prev ? prev.index : [];
+    const q = next.index;
+    const out: number[] = [];
+    let boundedBelow = prev !== null;
+    let boundedAbove = true;
+    for (let d = 0; ; d++) {
+      // both bounds are exclusive
+      const lower = boundedBelow && d < p.length ? p[d] : 0;
+      const upper = boundedAbove && d < q.length ? q[d] : this.levelBase(d);
+
+      if (upper - lower >= 2) {
+        const offset = 1 + randomBelow(Math.min(step, Math.floor(upper - lower) - 1));
+        out.push(d % 2 === 0 ? lower + offset : upper - offset);
+        return { index: out, siteId: this.siteId, clock: this.tick() };
+      }
+
+      // no room at this depth: follow the lower neighbour, or step just below the upper one
+      if (boundedBelow && d < p.length) {
+        out.push(p[d]);
+        boundedAbove = boundedAbove && d < q.length && q[d] === p[d];
+      } else {
+        out.push(upper - 1);
+        boundedBelow = false;
+        boundedAbove = false;
+      }
+    }
+  }
+
+  private allocateMidpoint(
     prev: Position | null,
     next: Position | null,
     acc: number[] = [],
@@ -132,7 +287,7 @@ export class CRDTInstance {
     }
 
     head.push(prevDigit);
-    return this.generateBetween(
+    return this.allocateMidpoint(
       {
         index: prev.index.slice(i + 1),
         siteId: prev.siteId,
@@ -151,21 +306,25 @@ export class CRDTInstance {
   private cachedOrderedCharacters: Character[] | null = null;
   private cachedText: string | null = null;
 
-  apply(op: CrdtOp) {
-    this.cachedOrderedCharacters = null;
-    this.cachedText = null;
+  // false when the op changed nothing, ops may arrive twice around a sync
+  apply(op: CrdtOp): boolean {
     if (op.type === "insert") {
-      this.cachedSortedCharacters = null;
+      const { siteId, clock } = op.position;
+      if (siteId !== this.docSite) this.vector[siteId] = Math.max(this.vector[siteId] ?? 0, clock);
+      if (this.characters.has(op.charId)) return false;
       this.characters.set(
         op.charId,
         new Character(op.charId, op.value, op.position),
       );
-    }
-
-    if (op.type === "delete") {
+      this.cachedSortedCharacters = null;
+    } else {
       const c = this.characters.get(op.charId);
-      if (c) c.meta.isDeleted = true;
+      if (!c || c.meta.isDeleted) return false;
+      c.meta.isDeleted = true;
     }
+    this.cachedOrderedCharacters = null;
+    this.cachedText = null;
+    return true;
   }
 
   extractText(): string {
@@ -18,7 +18,7 @@ import {
 import { Label } from "@/components/ui/label";
 import { Avatar, AvatarFallback } from "@/components/ui/avatar";
 import { Separator } from "@/components/ui/separator";
-import { CRDTInstance, type CrdtOp, type InsertOp, type DeleteOp } from "@/lib/crdt";
+import { CRDTInstance, expandOp, type CrdtOp, type InsertOp, type DeleteOp, type RemoteOp, type VersionVector } from "@/lib/crdt";
 import useWebSocketRaw, { ReadyState } from "react-use-websocket";
 import DocumentNavbar from "@/components/document-navbar";
 import type { Document, Invite } from "@/lib/doc";
@@ -28,6 +28,16 @@ import { AVATAR_COLORS } from "@/lib/avatar-colors";
 // eslint-disable-next-line @typescript-eslint/no-explicit-any
 const useWebSocket = (useWebSocketRaw as any).default ?? useWebSocketRaw;
 
+// How often an open document syncs again. The reply's vector, acked once applied, tells the server
+// which deletes this replica has, so their tombstones can be purged while the document stays open.
+const SYNC_INTERVAL_MS = 10_000;
+
+const isRemoteOp = (op: { type?: string }): op is RemoteOp =>
+	op.type === "insert" ||
+	op.type === "delete" ||
+	op.type === "insertRun" ||
+	op.type === "deleteRange";
+
 export default function DocumentPage() {
 	const { id } = useParams<{ id: string }>();
 	const { loading, authenticated, user } = useAuth();
@@ -44,13 +54,26 @@ export default function DocumentPage() {
 	const crdtRef = useRef<CRDTInstance | null>(null);
 	const lastTextRef = useRef<string>("");
 	const pendingOps = useRef<CrdtOp[]>([]);
+	// every op applied since the last sync request, ours included; a snapshot reply may predate them
+	const sinceSyncRef = useRef<CrdtOp[]>([]);
+	// a sync request is out, another one would cut the ops above short for the first reply
+	const syncPendingRef = useRef(false);
+	// the presence version applied without a gap; after a missed userEvent it stays put until the
+	// server notices the stale ack and sends the whole list again
+	const presenceVersionRef = useRef(-1);
 	const lastSentCursorRef = useRef<{ offset: number } | null>(null);
 	const [remoteCursors, setRemoteCursors] = useState<Record<string, { offset: number }>>({});
 	const [copyButtonText, setCopyButtonText] = useState("Copy Document Link");
 	const copyTimeoutRef = useRef<number | null>(null);
+	// the node that owns the document, once a redirect named it
+	const [ownerUrl, setOwnerUrl] = useState<string | null>(null);
+
+	useEffect(() => {
+		setOwnerUrl(null);
+	}, [wsUrl, id]);
 
 	const { sendJsonMessage, lastJsonMessage, readyState } = useWebSocket(
-		`${wsUrl}/document/${id}`,
+		ownerUrl ?? `${wsUrl}/document/${id}`,
 		{
 			shouldReconnect: () => true,
 			share: false,
@@ -99,7 +122,7 @@ export default function DocumentPage() {
 		if (authenticated && id) {
 			fetchDocument();
 			fetchInvites();
-			crdtRef.current = new CRDTInstance(32, user?.id || "unknown");
+			crdtRef.current = new CRDTInstance(32, user?.id || "unknown", id);
             console.log("CRDT init completed");
 		}
 	}, [authenticated, id, apiUrl]);
@@ -146,7 +169,8 @@ export default function DocumentPage() {
 		const el = editorRef.current;
 		if (!crdt || !el) return;
 
-		crdt.apply(op);
+		sinceSyncRef.current.push(op);
+		if (!crdt.apply(op)) return;
 
 		if (op.type === "insert") {
 			insertCharDOM(op);
@@ -161,12 +185,40 @@ export default function DocumentPage() {
 		}
 	};
 
+	// The server's state replaces ours. What was applied since the request may not be in it yet and
+	// goes on top again, as do ops typed but not sent.
+	const applySnapshot = (ops: CrdtOp[], vector: VersionVector) => {
+		const crdt = crdtRef.current;
+		const el = editorRef.current;
+		if (!crdt || !el) return;
+
+		crdt.reset(ops, vector);
+		for (const op of sinceSyncRef.current) crdt.apply(op);
+		for (const op of pendingOps.current) crdt.apply(op);
+		lastTextRef.current = crdt.extractText();
+		el.textContent = lastTextRef.current;
+	};
+
+	// Asks for what this replica lacks; as the first frame of a connection it replaces the whole
+	// document the server would send otherwise.
+	const requestSync = () => {
+		syncPendingRef.current = true;
+		sinceSyncRef.current = [];
+		sendJsonMessage({ type: "sync", vector: crdtRef.current?.getVector() ?? {} });
+	};
+
 	useEffect(() => {
 		if (readyState === ReadyState.OPEN) {
 			console.log("Connected to document WS");
+			requestSync();
+			const interval = setInterval(() => {
+				if (!syncPendingRef.current) requestSync();
+			}, SYNC_INTERVAL_MS);
+			return () => clearInterval(interval);
 		} else if (readyState === ReadyState.CLOSED) {
 			console.log("WS Disconnected");
 		}
+		// eslint-disable-next-line react-hooks/exhaustive-deps
 	}, [readyState]);
 
 	useEffect(() => {
@@ -179,13 +231,27 @@ export default function DocumentPage() {
 					if (Array.isArray(data)) {
 						for (let i = 0; i < data.length; i++) {
 							const op = data[i];
-							if (op.type === "insert" || op.type === "delete") {
-								applyRemoteOp(op, true);
+							if (isRemoteOp(op)) {
+								for (const charOp of expandOp(op)) applyRemoteOp(charOp, true);
 								await new Promise((resolve) =>
 									requestAnimationFrame(() => resolve(undefined)),
 								);
 							}
 						}
+					} else if (data.type === "sync" && Array.isArray(data.ops)) {
+						const ops = (data.ops as RemoteOp[]).flatMap(expandOp);
+						if (data.mode === "snapshot") {
+							applySnapshot(ops, data.vector ?? {});
+						} else {
+							for (const op of ops) applyRemoteOp(op, true);
+							crdtRef.current?.mergeVector(data.vector ?? {});
+						}
+						syncPendingRef.current = false;
+						if (crdtRef.current) {
+							// the periodic sync brings strategy changes made since the page opened
+							if (data.strategy) crdtRef.current.strategy = data.strategy;
+							sendJsonMessage({ type: "ack", vector: crdtRef.current.getVector() });
+						}
 					} else if (
 						data.type === "currentUsers" &&
 						Array.isArray(data.users)
@@ -198,7 +264,15 @@ export default function DocumentPage() {
 						}
 						setActiveUserIds(newUsers);
 						setColorMapping(newColorMapping);
+						if (typeof data.version === "number") {
+							presenceVersionRef.current = data.version;
+							sendJsonMessage({ type: "presenceAck", version: data.version });
+						}
 					} else if (data.type === "userEvent") {
+						if (data.version === presenceVersionRef.current + 1) {
+							presenceVersionRef.current = data.version;
+							sendJsonMessage({ type: "presenceAck", version: data.version });
+						}
 						if (data.action === "join") {
 							setActiveUserIds((prev) => {
 								const next = new Set(prev);
@@ -216,8 +290,10 @@ export default function DocumentPage() {
 								return next;
 							});
 						}
-					} else if (data.type === "insert" || data.type === "delete") {
-						applyRemoteOp(data);
+					} else if (data.type === "redirect" && typeof data.url === "string") {
+						setOwnerUrl(data.url);
+					} else if (isRemoteOp(data)) {
+						for (const op of expandOp(data)) applyRemoteOp(op);
 					} else if (data.type === "caretUpdate") {
 						setRemoteCursors((prev) => ({
 							...prev,
@@ -385,6 +461,7 @@ export default function DocumentPage() {
 		ops.forEach((op) => {
 			crdt.apply(op);
 			pendingOps.current.push(op);
+			sinceSyncRef.current.push(op);
 		});
 	};
 